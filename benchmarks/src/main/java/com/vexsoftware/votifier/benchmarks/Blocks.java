@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.benchmarks;
+
+/**
+ * The vote block shared by the benchmarks.
+ */
+final class Blocks {
+
+	private Blocks() {
+	}
+
+	/**
+	 * Gets a typical unencrypted vote block.
+	 * 
+	 * @return The block
+	 */
+	static byte[] plain() throws Exception {
+		return "VOTE\nPlanetMinecraft\nNotch\n203.0.113.7\n1404172800\n"
+				.getBytes("UTF-8");
+	}
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.benchmarks;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.vexsoftware.votifier.crypto.RSA;
+import com.vexsoftware.votifier.crypto.RSADecryptor;
+import com.vexsoftware.votifier.crypto.RSAKeygen;
+
+/**
+ * Decrypting a vote block with a 2048 bit key, both the way the original
+ * receiver did with {@link RSA#decrypt(byte[], java.security.PrivateKey)} and
+ * with the reusable {@link RSADecryptor} the pipeline uses now.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecryptBenchmark {
+
+	private KeyPair keyPair;
+
+	private RSADecryptor decryptor;
+
+	private byte[] block;
+
+	private byte[] buffer;
+
+	@Setup
+	public void setUp() throws Exception {
+		keyPair = RSAKeygen.generate(2048);
+		decryptor = new RSADecryptor(keyPair);
+		block = RSA.encrypt(Blocks.plain(), keyPair.getPublic());
+		buffer = new byte[decryptor.getBlockSize()];
+	}
+
+	@Benchmark
+	public byte[] rsaDecrypt() throws Exception {
+		return RSA.decrypt(block, keyPair.getPrivate());
+	}
+
+	@Benchmark
+	public int decryptorDecrypt() throws Exception {
+		return decryptor.decrypt(block, 0, block.length, buffer, 0);
+	}
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyPair;
+import java.util.Collections;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.vexsoftware.votifier.crypto.KeyRegistry;
+import com.vexsoftware.votifier.crypto.RSA;
+import com.vexsoftware.votifier.crypto.RSAKeygen;
+import com.vexsoftware.votifier.metrics.VoteMetrics;
+import com.vexsoftware.votifier.model.Vote;
+import com.vexsoftware.votifier.net.TokenAuthenticator;
+import com.vexsoftware.votifier.net.VoteHandler;
+import com.vexsoftware.votifier.net.VotePipeline;
+import com.vexsoftware.votifier.net.VoteReceiver;
+import com.vexsoftware.votifier.util.NamedThreadFactory;
+import com.vexsoftware.votifier.util.VirtualThreads;
+
+/**
+ * A complete vote over a loopback connection: connect, read the greeting,
+ * send an RSA encrypted block (or a signed protocol v2 packet) and wait until
+ * the vote reaches the handler. Votes end at a handler that does nothing,
+ * standing in for a server with no listeners, so this measures the receiving
+ * side of Votifier alone. The receiver either handles every connection on its
+ * selector ("nio"), or on a thread of its own ("threads", virtual threads
+ * where the JVM has them).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+
+	private static final String HOST = "127.0.0.1";
+
+	private static final String TOKEN = "benchmark";
+
+	private final Semaphore received = new Semaphore(0);
+
+	@Param({ "nio", "threads" })
+	public String mode;
+
+	private VotePipeline pipeline;
+
+	private VoteReceiver receiver;
+
+	private int port;
+
+	private byte[] block;
+
+	private Mac mac;
+
+	@Setup
+	public void setUp() throws Exception {
+		KeyPair keyPair = RSAKeygen.generate(2048);
+		final KeyRegistry keys = new KeyRegistry(Collections.singletonMap(
+				KeyRegistry.DEFAULT_KEY, new KeyRegistry.Entry(
+						KeyRegistry.DEFAULT_KEY, keyPair)));
+		block = RSA.encrypt(Blocks.plain(), keyPair.getPublic());
+
+		VoteMetrics metrics = new VoteMetrics(false);
+		pipeline = new VotePipeline(new VoteHandler() {
+			public KeyRegistry getKeys() {
+				return keys;
+			}
+
+			public void voteReceived(Vote vote) {
+				received.release();
+			}
+
+			public boolean isDebug() {
+				return false;
+			}
+		}, metrics, Runtime.getRuntime().availableProcessors(), 256, 1, 1024);
+
+		ServerSocket probe = new ServerSocket(0);
+		port = probe.getLocalPort();
+		probe.close();
+		ThreadFactory connectionThreads = null;
+		if (mode.equals("threads")) {
+			connectionThreads = VirtualThreads.create("benchmark connection");
+			if (connectionThreads == null)
+				connectionThreads = new NamedThreadFactory(
+						"benchmark connection");
+		}
+		receiver = new VoteReceiver("benchmark", metrics, HOST, port,
+				Collections.<Integer, String> emptyMap(), pipeline, null, null, new TokenAuthenticator(Collections.singletonMap(
+						TokenAuthenticator.DEFAULT_TOKEN, TOKEN)), connectionThreads);
+		mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(TOKEN.getBytes("UTF-8"), "HmacSHA256"));
+		receiver.start();
+		receiver.setReady();
+	}
+
+	@TearDown
+	public void tearDown() {
+		receiver.shutdown();
+		pipeline.shutdown();
+	}
+
+	@Benchmark
+	public void roundTrip() throws Exception {
+		Socket socket = new Socket(HOST, port);
+		try {
+			readLine(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			out.write(block);
+			out.flush();
+		} finally {
+			socket.close();
+		}
+		received.acquire();
+	}
+
+	@Benchmark
+	public void roundTripV2() throws Exception {
+		Socket socket = new Socket(HOST, port);
+		try {
+			InputStream in = socket.getInputStream();
+			String greeting = readLine(in);
+			String challenge = greeting.substring(greeting.lastIndexOf(' ') + 1);
+			byte[] payload = ("VOTE\nPlanetMinecraft\nNotch\n203.0.113.7\n1404172800\n"
+					+ challenge + "\n").getBytes("UTF-8");
+			ByteArrayOutputStream packet = new ByteArrayOutputStream();
+			DataOutputStream data = new DataOutputStream(packet);
+			data.writeShort(VoteReceiver.MAGIC);
+			data.writeShort(payload.length + mac.getMacLength());
+			data.write(payload);
+			data.write(mac.doFinal(payload));
+			OutputStream out = socket.getOutputStream();
+			packet.writeTo(out);
+			out.flush();
+			if (!readLine(in).equals("OK"))
+				throw new IOException("Vote rejected");
+		} finally {
+			socket.close();
+		}
+		received.acquire();
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0)
+				throw new EOFException();
+			line.append((char) b);
+		}
+		return line.toString();
+	}
+
+}
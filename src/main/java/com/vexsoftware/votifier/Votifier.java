@@ -20,20 +20,34 @@ package com.vexsoftware.votifier;
 
 import java.io.*;
 import java.security.KeyPair;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.*;
 import org.bukkit.Bukkit;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.plugin.java.JavaPlugin;
-import com.vexsoftware.votifier.crypto.RSAIO;
-import com.vexsoftware.votifier.crypto.RSAKeygen;
-import com.vexsoftware.votifier.model.ListenerLoader;
+import com.vexsoftware.votifier.core.VotifierCore;
+import com.vexsoftware.votifier.crypto.KeyRegistry;
+import com.vexsoftware.votifier.crypto.KeyRotator;
+import com.vexsoftware.votifier.crypto.RSADecryptor;
+import com.vexsoftware.votifier.dispatch.EventDeliveryTask;
+import com.vexsoftware.votifier.dispatch.EventQueue;
+import com.vexsoftware.votifier.dispatch.PendingVoteStore;
+import com.vexsoftware.votifier.dispatch.VoteDispatcher;
+import com.vexsoftware.votifier.metrics.VoteMetrics;
 import com.vexsoftware.votifier.model.VoteListener;
+import com.vexsoftware.votifier.model.VotifierEvent;
+import com.vexsoftware.votifier.net.TokenAuthenticator;
+import com.vexsoftware.votifier.net.VotePipeline;
 import com.vexsoftware.votifier.net.VoteReceiver;
+import com.vexsoftware.votifier.tally.VoteTally;
 
 /**
- * The main Votifier plugin class.
+ * The main Votifier plugin class. The plugin runs a {@link VotifierCore} with
+ * the settings from config.yml, and fires a {@link VotifierEvent} on the main
+ * thread for every vote it receives.
  * 
  * @author Blake Beaupain
  * @author Kramer Campbell
@@ -52,17 +66,11 @@ public class Votifier extends JavaPlugin {
 	/** The current Votifier version. */
 	private String version;
 
-	/** The vote listeners. */
-	private final List<VoteListener> listeners = new ArrayList<VoteListener>();
+	/** The core that receives the votes. */
+	private VotifierCore core;
 
-	/** The vote receiver. */
-	private VoteReceiver voteReceiver;
-
-	/** The RSA key pair. */
-	private KeyPair keyPair;
-
-	/** Debug mode flag */
-	private boolean debug;
+	/** The store for the votes of offline players, or null if disabled. */
+	private volatile PendingVoteStore pendingVotes;
 
 	/**
 	 * Attach custom log filter to logger.
@@ -84,7 +92,6 @@ public class Votifier extends JavaPlugin {
 		}
 		File config = new File(getDataFolder() + "/config.yml");
 		YamlConfiguration cfg = YamlConfiguration.loadConfiguration(config);
-		File rsaDirectory = new File(getDataFolder() + "/rsa");
 		// Replace to remove a bug with Windows paths - SmilingDevil
 		String listenerDirectory = getDataFolder().toString()
 				.replace("\\", "/") + "/listeners";
@@ -110,9 +117,12 @@ public class Votifier extends JavaPlugin {
 				// Initialize the configuration file.
 				config.createNewFile();
 
-				cfg.set("host", hostAddr);
-				cfg.set("port", 8192);
-				cfg.set("debug", false);
+				for (Map.Entry<String, Object> entry : VotifierCore
+						.getDefaults(hostAddr, listenerDirectory).entrySet()) {
+					cfg.set(entry.getKey(), entry.getValue());
+				}
+				cfg.set("events.tick_budget_ms", 5);
+				cfg.set("pending.enabled", false);
 
 				/*
 				 * Remind hosted server admins to be sure they have the right
@@ -125,71 +135,130 @@ public class Votifier extends JavaPlugin {
 				LOG.info("a different port, which you need to specify in config.yml");
 				LOG.info("------------------------------------------------------------------------------");
 
-				cfg.set("listener_folder", listenerDirectory);
 				cfg.save(config);
 			} catch (Exception ex) {
 				LOG.log(Level.SEVERE, "Error creating configuration file", ex);
-				gracefulExit();
+				LOG.log(Level.SEVERE, "Votifier did not initialize properly!");
 				return;
 			}
 		} else {
 			// Load configuration.
 			cfg = YamlConfiguration.loadConfiguration(config);
-		}
 
-		/*
-		 * Create RSA directory and keys if it does not exist; otherwise, read
-		 * keys.
-		 */
-		try {
-			if (!rsaDirectory.exists()) {
-				rsaDirectory.mkdir();
-				new File(listenerDirectory).mkdir();
-				keyPair = RSAKeygen.generate(2048);
-				RSAIO.save(rsaDirectory, keyPair);
-			} else {
-				keyPair = RSAIO.load(rsaDirectory);
+			// Configurations from before protocol v2 have no tokens yet.
+			if (!cfg.isConfigurationSection("tokens")) {
+				cfg.set("tokens." + TokenAuthenticator.DEFAULT_TOKEN,
+						VotifierCore.createToken());
+				try {
+					cfg.save(config);
+					LOG.info("Added a protocol v2 token to config.yml");
+				} catch (IOException ex) {
+					LOG.log(Level.WARNING, "Error saving the protocol v2 token",
+							ex);
+				}
 			}
-		} catch (Exception ex) {
-			LOG.log(Level.SEVERE,
-					"Error reading configuration file or RSA keys", ex);
-			gracefulExit();
-			return;
 		}
+		if (!cfg.isSet("host"))
+			cfg.set("host", hostAddr);
+
+		final YamlConfiguration settings = cfg;
+		core = new VotifierCore(version, getDataFolder(), new YamlSettings(
+				cfg), new VotifierCore.EventQueueFactory() {
+			public EventQueue create(VoteMetrics metrics) {
+				return createEvents(settings, metrics);
+			}
+		});
+		core.start();
+	}
 
-		// Load the vote listeners.
-		listenerDirectory = cfg.getString("listener_folder");
-		listeners.addAll(ListenerLoader.load(listenerDirectory));
-
-		// Initialize the receiver.
-		String host = cfg.getString("host", hostAddr);
-		int port = cfg.getInt("port", 8192);
-		debug = cfg.getBoolean("debug", false);
-		if (debug)
-			LOG.info("DEBUG mode enabled!");
-
-		try {
-			voteReceiver = new VoteReceiver(this, host, port);
-			voteReceiver.start();
-
-			LOG.info("Votifier enabled.");
-		} catch (Exception ex) {
-			gracefulExit();
-			return;
+	/**
+	 * Creates the event delivery, storing the votes of offline players if
+	 * enabled. Runs on the bootstrap thread.
+	 * 
+	 * @param cfg
+	 *            The configuration
+	 * @param metrics
+	 *            The metrics to record in
+	 * @return The event delivery
+	 */
+	private EventQueue createEvents(YamlConfiguration cfg, VoteMetrics metrics) {
+		if (cfg.getBoolean("pending.enabled", false)) {
+			try {
+				pendingVotes = new PendingVoteStore(new File(getDataFolder(),
+						"pending.dat"));
+				LOG.info("Loaded " + pendingVotes.size()
+						+ " pending votes of offline players.");
+			} catch (IOException ex) {
+				LOG.log(Level.WARNING,
+						"Error opening the pending votes. Votes of offline players will fire right away.",
+						ex);
+			}
 		}
+		return new EventDeliveryTask(this, metrics, Math.max(0,
+				cfg.getLong("events.tick_budget_ms", 5)), pendingVotes);
 	}
 
 	@Override
 	public void onDisable() {
-		// Interrupt the vote receiver.
-		if (voteReceiver != null) {
-			voteReceiver.shutdown();
+		if (core != null) {
+			core.shutdown();
+		}
+		// Closed after the last events were fired.
+		if (pendingVotes != null) {
+			pendingVotes.close();
 		}
-		LOG.info("Votifier disabled.");
 	}
 
-	private void gracefulExit() {
-		LOG.log(Level.SEVERE, "Votifier did not initialize properly!");
+	@Override
+	public boolean onCommand(CommandSender sender, Command command,
+			String label, String[] args) {
+		if (!isReady()) {
+			sender.sendMessage("Votifier is still starting up.");
+			return true;
+		}
+		if (args.length == 1 && args[0].equalsIgnoreCase("stats")) {
+			send(sender, core.getStats());
+			if (pendingVotes != null && core.getMetrics().isEnabled()) {
+				sender.sendMessage("pending: " + pendingVotes.size()
+						+ " votes of " + pendingVotes.getPlayers()
+						+ " offline players");
+			}
+			return true;
+		}
+		if (args.length == 1 && args[0].equalsIgnoreCase("reloadkeys")) {
+			core.getKeyRotator().reloadLater();
+			sender.sendMessage("Reloading the RSA keys. See the server log for the result.");
+			return true;
+		}
+		if (args.length == 2 && args[0].equalsIgnoreCase("top")) {
+			send(sender, core.getTop(args[1]));
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Sends lines to a command sender.
+	 * 
+	 * @param sender
+	 *            The command sender
+	 * @param lines
+	 *            The lines
+	 */
+	private static void send(CommandSender sender, List<String> lines) {
+		for (String line : lines) {
+			sender.sendMessage(line);
+		}
+	}
+
+	/**
+	 * Loads the listeners in the listener folder again and swaps them in.
+	 * 
+	 * @see VotifierCore#reloadListeners()
+	 */
+	public void reloadListeners() {
+		if (core != null)
+			core.reloadListeners();
 	}
 
 	/**
@@ -201,6 +270,15 @@ public class Votifier extends JavaPlugin {
 		return instance;
 	}
 
+	/**
+	 * Gets the core that receives the votes.
+	 * 
+	 * @return The core, or null if the plugin is not enabled
+	 */
+	public VotifierCore getCore() {
+		return core;
+	}
+
 	/**
 	 * Gets the version.
 	 * 
@@ -216,7 +294,7 @@ public class Votifier extends JavaPlugin {
 	 * @return The listeners
 	 */
 	public List<VoteListener> getListeners() {
-		return listeners;
+		return core.getListeners();
 	}
 
 	/**
@@ -225,7 +303,25 @@ public class Votifier extends JavaPlugin {
 	 * @return The vote receiver
 	 */
 	public VoteReceiver getVoteReceiver() {
-		return voteReceiver;
+		return core.getVoteReceiver();
+	}
+
+	/**
+	 * Gets the vote pipeline.
+	 * 
+	 * @return The vote pipeline
+	 */
+	public VotePipeline getVotePipeline() {
+		return core.getVotePipeline();
+	}
+
+	/**
+	 * Gets the vote dispatcher.
+	 * 
+	 * @return The vote dispatcher
+	 */
+	public VoteDispatcher getVoteDispatcher() {
+		return core.getVoteDispatcher();
 	}
 
 	/**
@@ -234,11 +330,63 @@ public class Votifier extends JavaPlugin {
 	 * @return The keyPair
 	 */
 	public KeyPair getKeyPair() {
-		return keyPair;
+		return getKeys().getDefault().getKeyPair();
+	}
+
+	/**
+	 * Gets the decryptor for the key pair.
+	 * 
+	 * @return The decryptor
+	 */
+	public RSADecryptor getDecryptor() {
+		return getKeys().getDefault().getDecryptor();
+	}
+
+	/**
+	 * Gets the RSA key pairs.
+	 * 
+	 * @return The key registry, or null until the keys are loaded
+	 */
+	public KeyRegistry getKeys() {
+		return core != null ? core.getKeys() : null;
 	}
 
-	public boolean isDebug() {
-		return debug;
+	/**
+	 * Checks whether Votifier has loaded its keys and listeners and accepts
+	 * votes.
+	 * 
+	 * @return True if ready
+	 */
+	public boolean isReady() {
+		return core != null && core.isReady();
+	}
+
+	/**
+	 * Gets the key rotator.
+	 * 
+	 * @return The key rotator
+	 */
+	public KeyRotator getKeyRotator() {
+		return core.getKeyRotator();
+	}
+
+	/**
+	 * Gets the vote tallies.
+	 * 
+	 * @return The tallies, or null if they are disabled or Votifier is still
+	 *         starting up
+	 */
+	public VoteTally getTallies() {
+		return core != null ? core.getTallies() : null;
+	}
+
+	/**
+	 * Gets the vote path metrics.
+	 * 
+	 * @return The metrics
+	 */
+	public VoteMetrics getMetrics() {
+		return core.getMetrics();
 	}
 
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import com.vexsoftware.votifier.core.Settings;
+
+/**
+ * The settings of the plugin, read from config.yml.
+ */
+class YamlSettings implements Settings {
+
+	/** The configuration. */
+	private final ConfigurationSection config;
+
+	/**
+	 * Instantiates new settings.
+	 * 
+	 * @param config
+	 *            The configuration
+	 */
+	YamlSettings(ConfigurationSection config) {
+		this.config = config;
+	}
+
+	public String getString(String path, String def) {
+		return config.getString(path, def);
+	}
+
+	public int getInt(String path, int def) {
+		return config.getInt(path, def);
+	}
+
+	public long getLong(String path, long def) {
+		return config.getLong(path, def);
+	}
+
+	public double getDouble(String path, double def) {
+		return config.getDouble(path, def);
+	}
+
+	public boolean getBoolean(String path, boolean def) {
+		return config.getBoolean(path, def);
+	}
+
+	public List<String> getStringList(String path) {
+		return config.getStringList(path);
+	}
+
+	public Set<String> getKeys(String path) {
+		ConfigurationSection section = config.getConfigurationSection(path);
+		return section == null ? Collections.<String> emptySet() : section
+				.getKeys(false);
+	}
+
+	public Map<String, String> getStrings(String path) {
+		Map<String, String> strings = new LinkedHashMap<String, String>();
+		ConfigurationSection section = config.getConfigurationSection(path);
+		if (section == null)
+			return strings;
+		// Bukkit splits keys at dots, so a name with dots ends up nested.
+		for (Map.Entry<String, Object> entry : section.getValues(true)
+				.entrySet()) {
+			if (!(entry.getValue() instanceof ConfigurationSection))
+				strings.put(entry.getKey(), String.valueOf(entry.getValue()));
+		}
+		return strings;
+	}
+
+}
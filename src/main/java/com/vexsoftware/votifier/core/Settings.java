@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.core;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read access to the configuration of a {@link VotifierCore}, whatever file
+ * it came from. Paths are separated by dots, like "pipeline.decrypt_threads".
+ * Missing and malformed values read as the given default.
+ */
+public interface Settings {
+
+	/**
+	 * Gets a string.
+	 * 
+	 * @param path
+	 *            The path
+	 * @param def
+	 *            The default value
+	 * @return The value
+	 */
+	public String getString(String path, String def);
+
+	/**
+	 * Gets an int.
+	 * 
+	 * @param path
+	 *            The path
+	 * @param def
+	 *            The default value
+	 * @return The value
+	 */
+	public int getInt(String path, int def);
+
+	/**
+	 * Gets a long.
+	 * 
+	 * @param path
+	 *            The path
+	 * @param def
+	 *            The default value
+	 * @return The value
+	 */
+	public long getLong(String path, long def);
+
+	/**
+	 * Gets a double.
+	 * 
+	 * @param path
+	 *            The path
+	 * @param def
+	 *            The default value
+	 * @return The value
+	 */
+	public double getDouble(String path, double def);
+
+	/**
+	 * Gets a boolean.
+	 * 
+	 * @param path
+	 *            The path
+	 * @param def
+	 *            The default value
+	 * @return The value
+	 */
+	public boolean getBoolean(String path, boolean def);
+
+	/**
+	 * Gets a list of strings.
+	 * 
+	 * @param path
+	 *            The path
+	 * @return The strings, empty if there are none
+	 */
+	public List<String> getStringList(String path);
+
+	/**
+	 * Gets the names of the entries directly below a path, such as the
+	 * services under "tokens".
+	 * 
+	 * @param path
+	 *            The path
+	 * @return The names, empty if there are none
+	 */
+	public Set<String> getKeys(String path);
+
+	/**
+	 * Gets all strings below a path, by their path relative to it. Unlike
+	 * {@link #getKeys(String)}, names may contain dots, like the service name
+	 * "PlanetMinecraft.com" under "tokens".
+	 * 
+	 * @param path
+	 *            The path
+	 * @return The strings, empty if there are none
+	 */
+	public Map<String, String> getStrings(String path);
+
+}
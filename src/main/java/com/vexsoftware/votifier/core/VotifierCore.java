@@ -0,0 +1,900 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.*;
+
+import com.vexsoftware.votifier.crypto.KeyRegistry;
+import com.vexsoftware.votifier.crypto.KeyRotator;
+import com.vexsoftware.votifier.dispatch.DuplicateVoteFilter;
+import com.vexsoftware.votifier.dispatch.EventQueue;
+import com.vexsoftware.votifier.dispatch.ListenerQueue;
+import com.vexsoftware.votifier.dispatch.OverflowPolicy;
+import com.vexsoftware.votifier.dispatch.VoteDispatcher;
+import com.vexsoftware.votifier.journal.VoteJournal;
+import com.vexsoftware.votifier.metrics.LatencyHistogram;
+import com.vexsoftware.votifier.metrics.VoteMetrics;
+import com.vexsoftware.votifier.metrics.VoteMetrics.Counter;
+import com.vexsoftware.votifier.metrics.VoteMetrics.Stage;
+import com.vexsoftware.votifier.model.ListenerLoader;
+import com.vexsoftware.votifier.model.ListenerSet;
+import com.vexsoftware.votifier.model.Vote;
+import com.vexsoftware.votifier.model.VoteListener;
+import com.vexsoftware.votifier.model.listeners.FlatfileVoteListener;
+import com.vexsoftware.votifier.model.listeners.ForwardingVoteListener;
+import com.vexsoftware.votifier.net.ConnectionThrottle;
+import com.vexsoftware.votifier.net.OverloadGuard;
+import com.vexsoftware.votifier.net.ShedPolicy;
+import com.vexsoftware.votifier.net.TokenAuthenticator;
+import com.vexsoftware.votifier.net.VoteHandler;
+import com.vexsoftware.votifier.net.VotePipeline;
+import com.vexsoftware.votifier.net.VoteReceiver;
+import com.vexsoftware.votifier.tally.VoteTally;
+import com.vexsoftware.votifier.util.DirectoryWatcher;
+import com.vexsoftware.votifier.util.NamedThreadFactory;
+import com.vexsoftware.votifier.util.VirtualThreads;
+
+/**
+ * Everything Votifier does between the network and the vote listeners: the
+ * receiver and its pipeline, the keys, the listeners and their queues, the
+ * journal, the duplicate filter and the tallies. The core knows nothing of
+ * Bukkit. The plugin runs it inside a server and fires an event for every
+ * vote, while the standalone gateway runs it on its own and only hands votes
+ * to the listeners.
+ */
+public class VotifierCore implements VoteHandler {
+
+	/**
+	 * Creates the queue that fires the event of every vote.
+	 */
+	public interface EventQueueFactory {
+
+		/**
+		 * Creates the event queue. Called on the bootstrap thread, before the
+		 * first vote is dispatched.
+		 * 
+		 * @param metrics
+		 *            The metrics to record in
+		 * @return The event queue, or null to only hand votes to the listeners
+		 */
+		public EventQueue create(VoteMetrics metrics);
+
+	}
+
+	/** The logger instance. */
+	private static final Logger LOG = Logger.getLogger("Votifier");
+
+	/** How long (in seconds) to wait for an unfinished startup on shutdown. */
+	private static final long BOOTSTRAP_TIMEOUT = 30;
+
+	/** The version sent to clients. */
+	private final String version;
+
+	/** The folder with the keys, the journal and the other data files. */
+	private final File dataFolder;
+
+	/** The configuration. */
+	private final Settings settings;
+
+	/** Creates the event queue, or null if no events are fired. */
+	private final EventQueueFactory eventQueueFactory;
+
+	/** The vote listeners. */
+	private final List<VoteListener> listeners = new CopyOnWriteArrayList<VoteListener>();
+
+	/** The listeners loaded from the listener folder. */
+	private ListenerSet listenerSet;
+
+	/** The listener folder. */
+	private String listenerFolder;
+
+	/** Creates the queues of newly loaded listeners. */
+	private VoteDispatcher.QueueFactory queueFactory;
+
+	/** The watcher that reloads the listeners, if enabled. */
+	private DirectoryWatcher listenerWatcher;
+
+	/** The built-in flat file listener, if enabled. */
+	private FlatfileVoteListener flatfileListener;
+
+	/** The listeners that forward votes to other Votifiers. */
+	private final List<ForwardingVoteListener> forwarders = new ArrayList<ForwardingVoteListener>();
+
+	/** The vote receiver. */
+	private VoteReceiver voteReceiver;
+
+	/** The overload guard of the vote receiver, or null if disabled. */
+	private OverloadGuard overloadGuard;
+
+	/** The pipeline behind the vote receiver. */
+	private VotePipeline votePipeline;
+
+	/** The vote tallies, or null if disabled. */
+	private VoteTally tallies;
+
+	/** The dispatcher that hands votes to the listeners. */
+	private VoteDispatcher voteDispatcher;
+
+	/** The vote path metrics. */
+	private VoteMetrics metrics = new VoteMetrics(false);
+
+	/** The RSA key pairs, reloaded when they change. */
+	private volatile KeyRotator keyRotator;
+
+	/** The thread that loads keys and listeners at startup. */
+	private ExecutorService bootstrap;
+
+	/** Counted down once the startup finished or failed. */
+	private final CountDownLatch started = new CountDownLatch(1);
+
+	/** Whether keys and listeners are loaded and votes are accepted. */
+	private volatile boolean ready;
+
+	/** Debug mode flag */
+	private boolean debug;
+
+	/**
+	 * Instantiates a new core. Nothing is started until {@link #start()}.
+	 * 
+	 * @param version
+	 *            The version sent to clients in the greeting
+	 * @param dataFolder
+	 *            The folder with the keys, the journal and the other data
+	 *            files
+	 * @param settings
+	 *            The configuration
+	 * @param eventQueueFactory
+	 *            Creates the queue that fires the event of every vote, or null
+	 *            to only hand votes to the listeners
+	 */
+	public VotifierCore(String version, File dataFolder, Settings settings,
+			EventQueueFactory eventQueueFactory) {
+		this.version = version;
+		this.dataFolder = dataFolder;
+		this.settings = settings;
+		this.eventQueueFactory = eventQueueFactory;
+	}
+
+	/**
+	 * Gets the default configuration of a new installation, including a new
+	 * protocol v2 token.
+	 * 
+	 * @param host
+	 *            The host to listen on
+	 * @param listenerFolder
+	 *            The listener folder
+	 * @return The default values, by path
+	 */
+	public static Map<String, Object> getDefaults(String host,
+			String listenerFolder) {
+		Map<String, Object> defaults = new LinkedHashMap<String, Object>();
+		defaults.put("host", host);
+		defaults.put("port", 8192);
+		defaults.put("debug", false);
+		defaults.put("receiver.mode", "nio");
+		defaults.put("pipeline.decrypt_threads", Runtime.getRuntime()
+				.availableProcessors());
+		defaults.put("pipeline.decrypt_queue", 256);
+		defaults.put("pipeline.dispatch_threads", 1);
+		defaults.put("pipeline.dispatch_queue", 1024);
+		defaults.put("listener_queues.default.depth", 1024);
+		defaults.put("listener_queues.default.overflow", "block");
+		defaults.put("listener_queues.default.batch_size", 100);
+		defaults.put("listener_queues.default.batch_linger_ms", 50);
+		defaults.put("flatfile.enabled", false);
+		defaults.put("flatfile.file", "votes.log");
+		defaults.put("flatfile.rotate_size_kb", 10240);
+		defaults.put("flatfile.rotate_interval_hours", 24);
+		defaults.put("throttle.enabled", false);
+		defaults.put("throttle.per_ip_rate", 5.0);
+		defaults.put("throttle.per_ip_burst", 20);
+		defaults.put("throttle.global_rate", 500.0);
+		defaults.put("throttle.global_burst", 1000);
+		defaults.put("throttle.allowlist", new ArrayList<String>());
+		defaults.put("overload.enabled", true);
+		defaults.put("overload.max_connections", 512);
+		defaults.put("overload.max_pending_votes", 10000);
+		defaults.put("overload.policy", "refuse");
+		defaults.put("dedup.enabled", true);
+		defaults.put("dedup.size", 10000);
+		defaults.put("dedup.ttl_seconds", 3600);
+		defaults.put("journal.enabled", true);
+		defaults.put("journal.segment_size_kb", 1024);
+		defaults.put("journal.fsync_interval_ms", 200);
+		defaults.put("tallies.enabled", true);
+		defaults.put("tallies.top_size", 10);
+		defaults.put("tallies.save_interval_seconds", 60);
+		defaults.put("metrics.enabled", true);
+		defaults.put("keys.watch", true);
+		defaults.put("keys.overlap_hours", 24);
+		defaults.put("tokens." + TokenAuthenticator.DEFAULT_TOKEN,
+				createToken());
+		defaults.put("listener_folder", listenerFolder);
+		defaults.put("listener_watch", true);
+		return defaults;
+	}
+
+	/**
+	 * Creates a random protocol v2 token.
+	 * 
+	 * @return The token
+	 */
+	public static String createToken() {
+		return new BigInteger(130, new SecureRandom()).toString(32);
+	}
+
+	/**
+	 * Binds the receiver's ports and loads the keys and listeners in the
+	 * background. Connections are accepted once that is done.
+	 * 
+	 * @return False if the receiver could not be started
+	 */
+	public boolean start() {
+		// Set up the metrics before anything records into them.
+		metrics = new VoteMetrics(settings.getBoolean("metrics.enabled", true));
+		metrics.registerMBeans();
+
+		// Initialize the receiver.
+		String host = settings.getString("host", "0.0.0.0");
+		int port = settings.getInt("port", 8192);
+		debug = settings.getBoolean("debug", false);
+		if (debug)
+			LOG.info("DEBUG mode enabled!");
+
+		votePipeline = new VotePipeline(this, metrics, Math.max(1,
+				settings.getInt("pipeline.decrypt_threads", Runtime
+						.getRuntime().availableProcessors())), Math.max(1,
+				settings.getInt("pipeline.decrypt_queue", 256)), Math.max(1,
+				settings.getInt("pipeline.dispatch_threads", 1)), Math.max(1,
+				settings.getInt("pipeline.dispatch_queue", 1024)));
+
+		ConnectionThrottle throttle = null;
+		if (settings.getBoolean("throttle.enabled", false)) {
+			List<InetAddress> allowed = new ArrayList<InetAddress>();
+			for (String address : settings.getStringList("throttle.allowlist")) {
+				try {
+					allowed.add(InetAddress.getByName(address));
+				} catch (UnknownHostException ex) {
+					LOG.warning("Ignoring unknown allowlist address "
+							+ address);
+				}
+			}
+			throttle = new ConnectionThrottle(settings.getDouble(
+					"throttle.per_ip_rate", 5), settings.getInt(
+					"throttle.per_ip_burst", 20), settings.getDouble(
+					"throttle.global_rate", 500), settings.getInt(
+					"throttle.global_burst", 1000), allowed);
+		}
+
+		// Shed load instead of queuing without bounds.
+		if (settings.getBoolean("overload.enabled", true)) {
+			String policyName = settings.getString("overload.policy",
+					"refuse");
+			ShedPolicy policy = ShedPolicy.fromName(policyName);
+			if (policy == null) {
+				LOG.warning("Unknown overload policy '" + policyName
+						+ "', using refuse");
+				policy = ShedPolicy.REFUSE;
+			}
+			overloadGuard = new OverloadGuard(Math.max(0, settings.getInt(
+					"overload.max_connections", 512)), Math.max(0,
+					settings.getInt("overload.max_pending_votes", 10000)),
+					policy, new OverloadGuard.Backlog() {
+						public int size() {
+							VoteDispatcher dispatcher = voteDispatcher;
+							EventQueue events = dispatcher == null ? null
+									: dispatcher.getEvents();
+							return events == null ? 0 : events.size();
+						}
+					});
+		}
+
+		// Further ports that decrypt with a named key.
+		final Map<Integer, String> keyPorts = new HashMap<Integer, String>();
+		for (Map.Entry<String, String> keyPort : settings.getStrings(
+				"key_ports").entrySet()) {
+			try {
+				keyPorts.put(Integer.parseInt(keyPort.getKey()),
+						keyPort.getValue());
+			} catch (NumberFormatException ex) {
+				LOG.warning("Ignoring invalid key port " + keyPort.getKey());
+			}
+		}
+
+		Map<String, String> tokens = settings.getStrings("tokens");
+
+		// Either multiplex all connections on the I/O thread, or give each
+		// its own virtual thread.
+		ThreadFactory connectionThreads = null;
+		String mode = settings.getString("receiver.mode", "nio");
+		if (mode.equalsIgnoreCase("virtual")) {
+			connectionThreads = VirtualThreads.create("Votifier connection");
+			if (connectionThreads == null) {
+				LOG.warning("Virtual threads need Java 21 or newer, using the nio receiver");
+			}
+		} else if (!mode.equalsIgnoreCase("nio")) {
+			LOG.warning("Unknown receiver mode '" + mode + "', using nio");
+		}
+
+		try {
+			voteReceiver = new VoteReceiver(version, metrics, host, port,
+					keyPorts, votePipeline, throttle, overloadGuard,
+					new TokenAuthenticator(tokens), connectionThreads);
+			voteReceiver.start();
+		} catch (Exception ex) {
+			failed();
+			return false;
+		}
+
+		/*
+		 * Generating and reading keys and loading listener classes can take a
+		 * while, so leave it out of the server's startup. Until it is done the
+		 * receiver leaves new connections waiting to be accepted.
+		 */
+		bootstrap = Executors.newSingleThreadExecutor(new NamedThreadFactory(
+				"Votifier bootstrap"));
+		bootstrap.execute(new Runnable() {
+			public void run() {
+				try {
+					bootstrap(keyPorts);
+				} finally {
+					started.countDown();
+				}
+			}
+		});
+		bootstrap.shutdown();
+		return true;
+	}
+
+	/**
+	 * Loads the keys and the vote listeners and starts the dispatcher, then
+	 * lets the receiver accept connections. Runs on the bootstrap thread.
+	 * 
+	 * @param keyPorts
+	 *            The ports that decrypt with a named key
+	 */
+	private void bootstrap(Map<Integer, String> keyPorts) {
+		listenerFolder = settings.getString("listener_folder", new File(
+				dataFolder, "listeners").getPath());
+
+		/*
+		 * Create RSA directory and keys if it does not exist; otherwise, read
+		 * keys. Missing keys of named key directories are generated as well.
+		 */
+		File rsaDirectory = new File(dataFolder, "rsa");
+		try {
+			if (!rsaDirectory.exists()) {
+				rsaDirectory.mkdir();
+				new File(listenerFolder).mkdir();
+			}
+			keyRotator = new KeyRotator(rsaDirectory,
+					KeyRegistry.load(rsaDirectory), Math.max(0,
+							settings.getLong("keys.overlap_hours", 24)) * 3600000L);
+		} catch (Exception ex) {
+			LOG.log(Level.SEVERE,
+					"Error reading configuration file or RSA keys", ex);
+			voteReceiver.shutdown();
+			failed();
+			return;
+		}
+
+		// Load the vote listeners.
+		listenerSet = ListenerLoader.loadSet(listenerFolder);
+		listeners.addAll(listenerSet.getListeners());
+		if (settings.getBoolean("flatfile.enabled", false)) {
+			try {
+				flatfileListener = new FlatfileVoteListener(new File(
+						dataFolder, settings.getString("flatfile.file",
+								"votes.log")), settings.getLong(
+						"flatfile.rotate_size_kb", 10240) * 1024,
+						settings.getLong("flatfile.rotate_interval_hours", 24) * 3600000L);
+				listeners.add(flatfileListener);
+				LOG.info("Loaded vote listener: FlatfileVoteListener");
+			} catch (IOException ex) {
+				LOG.log(Level.WARNING,
+						"Error opening the vote log! Listener disabled.", ex);
+			}
+		}
+		for (String target : settings.getKeys("forwarding.targets")) {
+			String path = "forwarding.targets." + target;
+			String token = settings.getString(path + ".token", null);
+			if (token == null) {
+				LOG.warning("Forwarding target '" + target
+						+ "' has no token. Not forwarding to it.");
+				continue;
+			}
+			ForwardingVoteListener forwarder = new ForwardingVoteListener(
+					target, InetSocketAddress.createUnresolved(
+							settings.getString(path + ".host", "127.0.0.1"),
+							settings.getInt(path + ".port", 8192)), token);
+			forwarders.add(forwarder);
+			listeners.add(forwarder);
+			LOG.info("Forwarding votes to '" + target + "'");
+		}
+
+		// Give each listener its own queue.
+		queueFactory = new VoteDispatcher.QueueFactory() {
+			public ListenerQueue create(VoteListener listener)
+					throws IOException {
+				return createListenerQueue(listener);
+			}
+		};
+		List<ListenerQueue> queues = new ArrayList<ListenerQueue>();
+		try {
+			for (VoteListener listener : listeners) {
+				queues.add(queueFactory.create(listener));
+			}
+		} catch (IOException ex) {
+			LOG.log(Level.SEVERE, "Error creating listener queues", ex);
+			voteReceiver.shutdown();
+			failed();
+			return;
+		}
+		// Open the vote journal.
+		VoteJournal journal = null;
+		if (settings.getBoolean("journal.enabled", true)) {
+			try {
+				journal = new VoteJournal(new File(dataFolder, "journal"),
+						settings.getInt("journal.segment_size_kb", 1024) * 1024,
+						Math.max(1, settings.getLong("journal.fsync_interval_ms", 200)));
+			} catch (IOException ex) {
+				LOG.log(Level.SEVERE,
+						"Error opening the vote journal. Votes will not survive a crash!",
+						ex);
+			}
+		}
+		DuplicateVoteFilter duplicates = null;
+		if (settings.getBoolean("dedup.enabled", true)) {
+			duplicates = new DuplicateVoteFilter(Math.max(1,
+					settings.getInt("dedup.size", 10000)), Math.max(1,
+					settings.getLong("dedup.ttl_seconds", 3600)));
+		}
+		if (settings.getBoolean("tallies.enabled", true)) {
+			try {
+				tallies = new VoteTally(new File(dataFolder, "tallies.dat"),
+						Math.max(1, settings.getInt("tallies.top_size", 10)));
+				tallies.start(Math.max(1,
+						settings.getLong("tallies.save_interval_seconds", 60)));
+			} catch (IOException ex) {
+				LOG.log(Level.WARNING,
+						"Error reading the vote tallies. Tallies disabled.", ex);
+			}
+		}
+		EventQueue events = eventQueueFactory != null ? eventQueueFactory
+				.create(metrics) : null;
+		voteDispatcher = new VoteDispatcher(metrics, debug, queues, events,
+				journal, duplicates);
+		voteDispatcher.start();
+
+		for (Map.Entry<Integer, String> keyPort : keyPorts.entrySet()) {
+			if (keyRotator.getKeys().get(keyPort.getValue()) == null) {
+				LOG.warning("Port " + keyPort.getKey() + " uses unknown key "
+						+ keyPort.getValue() + ", using the default key");
+			}
+		}
+
+		// Pick up new keys without a restart.
+		if (settings.getBoolean("keys.watch", true)) {
+			try {
+				keyRotator.watch();
+			} catch (IOException ex) {
+				LOG.log(Level.WARNING,
+						"Unable to watch the RSA keys. Reload them with the reloadkeys command after changing them.",
+						ex);
+			}
+		}
+
+		// Pick up new and updated listeners without a restart.
+		if (settings.getBoolean("listener_watch", true)) {
+			listenerWatcher = new DirectoryWatcher(new File(listenerFolder),
+					false, new Runnable() {
+						public void run() {
+							reloadListeners();
+						}
+					});
+			try {
+				listenerWatcher.start("Votifier listener watcher");
+			} catch (IOException ex) {
+				LOG.log(Level.WARNING,
+						"Unable to watch the listener folder. Listeners are only loaded at startup.",
+						ex);
+			}
+		}
+
+		ready = true;
+		voteReceiver.setReady();
+		LOG.info("Votifier enabled.");
+	}
+
+	/**
+	 * Waits until the keys and listeners are loaded, or loading them failed.
+	 * 
+	 * @return True if votes are accepted
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 */
+	public boolean awaitStartup() throws InterruptedException {
+		started.await();
+		return ready;
+	}
+
+	/**
+	 * Stops receiving votes and lets the votes already received finish
+	 * processing. Fires the remaining events, so when there is a server, it
+	 * must be called from its main thread.
+	 */
+	public void shutdown() {
+		// Let an unfinished startup end before stopping what it started.
+		if (bootstrap != null) {
+			bootstrap.shutdownNow();
+			try {
+				bootstrap.awaitTermination(BOOTSTRAP_TIMEOUT, TimeUnit.SECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		// Interrupt the vote receiver.
+		if (voteReceiver != null) {
+			voteReceiver.shutdown();
+		}
+		if (keyRotator != null) {
+			keyRotator.shutdown();
+		}
+		if (listenerWatcher != null) {
+			listenerWatcher.close();
+		}
+		// Wait for a listener reload to finish, and prevent further ones.
+		synchronized (this) {
+			ready = false;
+		}
+		// Let the votes already received finish processing.
+		if (votePipeline != null) {
+			votePipeline.shutdown();
+		}
+		if (voteDispatcher != null) {
+			voteDispatcher.shutdown();
+		}
+		if (tallies != null) {
+			tallies.shutdown();
+		}
+		if (flatfileListener != null) {
+			flatfileListener.close();
+		}
+		for (ForwardingVoteListener forwarder : forwarders) {
+			forwarder.close();
+		}
+		if (listenerSet != null) {
+			listenerSet.close();
+		}
+		metrics.unregisterMBeans();
+		LOG.info("Votifier disabled.");
+	}
+
+	/**
+	 * Loads the listeners in the listener folder again and swaps them in. The
+	 * old listeners receive the votes they were given before they are
+	 * dropped, and votes that arrive meanwhile wait for the new ones.
+	 */
+	public synchronized void reloadListeners() {
+		if (!ready)
+			return;
+		ListenerSet loaded = ListenerLoader.loadSet(listenerFolder);
+		List<VoteListener> next = new ArrayList<VoteListener>(
+				loaded.getListeners());
+		if (flatfileListener != null)
+			next.add(flatfileListener);
+		next.addAll(forwarders);
+		voteDispatcher.replaceListeners(next, queueFactory);
+		listeners.retainAll(next);
+		for (VoteListener listener : next) {
+			if (!listeners.contains(listener))
+				listeners.add(listener);
+		}
+		listenerSet.close();
+		listenerSet = loaded;
+		LOG.info("Reloaded " + loaded.getListeners().size()
+				+ " vote listeners.");
+	}
+
+	/**
+	 * Creates the queue of a listener from the "listener_queues" section of
+	 * the configuration. Settings are looked up under the listener's simple
+	 * class name first, or "forward-" and the target name for forwarders, then
+	 * under "default". The batch settings only apply to batch listeners.
+	 * Forwarders spill by default, so that a target that is down never holds
+	 * up the others.
+	 * 
+	 * @param listener
+	 *            The listener
+	 * @return The listener queue
+	 * @throws IOException
+	 *             If the spill file cannot be opened
+	 */
+	private ListenerQueue createListenerQueue(VoteListener listener)
+			throws IOException {
+		String name = listener.getClass().getSimpleName().length() > 0 ? listener
+				.getClass().getSimpleName() : listener.getClass().getName();
+		String defaultOverflow = settings.getString(
+				"listener_queues.default.overflow", "block");
+		if (listener instanceof ForwardingVoteListener) {
+			name = "forward-" + ((ForwardingVoteListener) listener).getTarget();
+			defaultOverflow = "spill";
+		}
+		String path = "listener_queues." + name;
+		int depth = settings.getInt(path + ".depth",
+				settings.getInt("listener_queues.default.depth", 1024));
+		String overflowName = settings.getString(path + ".overflow",
+				defaultOverflow);
+		OverflowPolicy overflow = OverflowPolicy.fromName(overflowName);
+		if (overflow == null) {
+			LOG.warning("Unknown overflow policy '" + overflowName + "' for "
+					+ path + ", using block");
+			overflow = OverflowPolicy.BLOCK;
+		}
+		int batchSize = settings.getInt(path + ".batch_size",
+				settings.getInt("listener_queues.default.batch_size", 100));
+		long batchLinger = settings.getLong(path + ".batch_linger_ms",
+				settings.getLong("listener_queues.default.batch_linger_ms", 50));
+		return new ListenerQueue(name, listener, Math.max(1, depth), overflow,
+				Math.max(1, batchSize), Math.max(0, batchLinger), new File(
+						dataFolder, "spill"));
+	}
+
+	/**
+	 * Describes the vote path counters, latencies and queue sizes.
+	 * 
+	 * @return The lines of the description
+	 */
+	public List<String> getStats() {
+		List<String> lines = new ArrayList<String>();
+		if (!metrics.isEnabled()) {
+			lines.add("Metrics are disabled. Set metrics.enabled to true in the configuration.");
+			return lines;
+		}
+		lines.add("Connections: " + metrics.get(Counter.CONNECTIONS)
+				+ " (throttled " + metrics.get(Counter.THROTTLED)
+				+ ", timed out " + metrics.get(Counter.TIMED_OUT)
+				+ ", errors " + metrics.get(Counter.PROTOCOL_ERRORS) + ")");
+		if (overloadGuard != null) {
+			lines.add("Overload: "
+					+ (overloadGuard.isOverloaded() ? "overloaded" : "normal")
+					+ " (" + overloadGuard.getPendingVotes() + "/"
+					+ overloadGuard.getMaxPendingVotes()
+					+ " votes waiting, shed "
+					+ metrics.get(Counter.SHED) + ")");
+		}
+		DuplicateVoteFilter duplicates = voteDispatcher != null ? voteDispatcher
+				.getDuplicates() : null;
+		lines.add("Votes: " + metrics.get(Counter.VOTES)
+				+ " (decrypt failures " + metrics.get(Counter.DECRYPT_FAILURES)
+				+ ", signature failures "
+				+ metrics.get(Counter.SIGNATURE_FAILURES) + ", pipeline full " + metrics.get(Counter.PIPELINE_REJECTIONS)
+				+ ", duplicates "
+				+ (duplicates != null ? duplicates.getDuplicates() : 0) + ")");
+		KeyRegistry keys = getKeys();
+		if (keys != null) {
+			for (KeyRegistry.Entry key : keys.getEntries()) {
+				lines.add("key " + key.getName() + ": "
+						+ key.getDecrypted() + " decrypted ("
+						+ key.getRetiredDecrypted() + " with the previous key), "
+						+ key.getFailures() + " failures");
+			}
+		}
+		for (Stage stage : Stage.values()) {
+			lines.add(stage.name().toLowerCase() + ": "
+					+ metrics.getStage(stage));
+		}
+		for (Map.Entry<String, LatencyHistogram> entry : metrics
+				.getListeners().entrySet()) {
+			lines.add("listener " + entry.getKey() + ": "
+					+ entry.getValue());
+		}
+		if (voteDispatcher != null) {
+			for (ListenerQueue queue : voteDispatcher.getQueues()) {
+				lines.add("queue " + queue.getName() + ": "
+						+ queue.size() + " waiting, " + queue.getDropped()
+						+ " dropped");
+			}
+			EventQueue events = voteDispatcher.getEvents();
+			if (events != null)
+				lines.add("events: " + events.size() + " waiting");
+		}
+		return lines;
+	}
+
+	/**
+	 * Describes the top voters of the current hour, day or month.
+	 * 
+	 * @param periodName
+	 *            The name of the period
+	 * @return The lines of the description
+	 */
+	public List<String> getTop(String periodName) {
+		List<String> lines = new ArrayList<String>();
+		if (tallies == null) {
+			lines.add("Tallies are disabled. Set tallies.enabled to true in the configuration.");
+			return lines;
+		}
+		VoteTally.Period period;
+		try {
+			period = VoteTally.Period.valueOf(periodName.toUpperCase());
+		} catch (IllegalArgumentException ex) {
+			lines.add("Unknown period '" + periodName
+					+ "', use hour, day or month.");
+			return lines;
+		}
+		int rank = 1;
+		for (VoteTally.Entry entry : tallies.getTopVoters(period,
+				tallies.getTopSize())) {
+			lines.add(rank++ + ". " + entry);
+		}
+		if (rank == 1)
+			lines.add("No votes yet this " + periodName.toLowerCase() + ".");
+		return lines;
+	}
+
+	private void failed() {
+		LOG.log(Level.SEVERE, "Votifier did not initialize properly!");
+	}
+
+	/**
+	 * Gets the version.
+	 * 
+	 * @return The version
+	 */
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * Gets the data folder.
+	 * 
+	 * @return The data folder
+	 */
+	public File getDataFolder() {
+		return dataFolder;
+	}
+
+	/**
+	 * Gets the configuration.
+	 * 
+	 * @return The configuration
+	 */
+	public Settings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * Gets the listeners.
+	 * 
+	 * @return The listeners
+	 */
+	public List<VoteListener> getListeners() {
+		return listeners;
+	}
+
+	/**
+	 * Gets the vote receiver.
+	 * 
+	 * @return The vote receiver
+	 */
+	public VoteReceiver getVoteReceiver() {
+		return voteReceiver;
+	}
+
+	/**
+	 * Gets the vote pipeline.
+	 * 
+	 * @return The vote pipeline
+	 */
+	public VotePipeline getVotePipeline() {
+		return votePipeline;
+	}
+
+	/**
+	 * Gets the vote dispatcher.
+	 * 
+	 * @return The vote dispatcher
+	 */
+	public VoteDispatcher getVoteDispatcher() {
+		return voteDispatcher;
+	}
+
+	/**
+	 * Gets the RSA key pairs. They stay available while Votifier shuts down,
+	 * so that the votes received before can still be decrypted.
+	 * 
+	 * @return The key registry, or null until the keys are loaded
+	 */
+	public KeyRegistry getKeys() {
+		KeyRotator keyRotator = this.keyRotator;
+		return keyRotator != null ? keyRotator.getKeys() : null;
+	}
+
+	/**
+	 * Checks whether the keys and listeners are loaded and votes are
+	 * accepted.
+	 * 
+	 * @return True if ready
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Gets the key rotator.
+	 * 
+	 * @return The key rotator
+	 */
+	public KeyRotator getKeyRotator() {
+		return keyRotator;
+	}
+
+	/**
+	 * Gets the vote tallies.
+	 * 
+	 * @return The tallies, or null if they are disabled or Votifier is still
+	 *         starting up
+	 */
+	public VoteTally getTallies() {
+		return tallies;
+	}
+
+	/**
+	 * Gets the vote path metrics.
+	 * 
+	 * @return The metrics
+	 */
+	public VoteMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Hands a received vote to the dispatcher.
+	 * 
+	 * @param vote
+	 *            The vote
+	 */
+	public void voteReceived(Vote vote) {
+		if (voteDispatcher.dispatch(vote) && tallies != null)
+			tallies.record(vote);
+	}
+
+	public boolean isDebug() {
+		return debug;
+	}
+
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.crypto;
+
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The RSA key pairs votes can be encrypted with. The key pair in the "rsa"
+ * directory itself is the "default" key; every subdirectory holds another key
+ * pair named after the subdirectory, usually the vote site that uses it. An
+ * empty subdirectory gets a new key pair when the registry is loaded.
+ * <p>
+ * Which key a block was encrypted with is decided before it is decrypted, by
+ * the port it arrived on or a hint the client sent, and looked up here by
+ * name. Decryption failures are counted per key.
+ * <p>
+ * A registry never changes; reloading the keys creates a new one. A key that
+ * was replaced keeps decrypting with its previous key pair for a while, so
+ * that votes from server lists that still use the old public key are not
+ * lost.
+ */
+public class KeyRegistry {
+
+	/** The logger instance. */
+	private static final Logger LOG = Logger.getLogger("Votifier");
+
+	/** The name of the key in the "rsa" directory itself. */
+	public static final String DEFAULT_KEY = "default";
+
+	/** The size of generated keys. */
+	private static final int KEY_SIZE = 2048;
+
+	/** The keys, by name. */
+	private final Map<String, Entry> keys;
+
+	/**
+	 * Instantiates a new registry.
+	 * 
+	 * @param keys
+	 *            The keys, by name, including the default key
+	 */
+	public KeyRegistry(Map<String, Entry> keys) {
+		if (!keys.containsKey(DEFAULT_KEY))
+			throw new IllegalArgumentException("No default key");
+		this.keys = Collections.unmodifiableMap(new HashMap<String, Entry>(
+				keys));
+	}
+
+	/**
+	 * Loads the keys from a directory, generating the default key and the
+	 * keys of empty subdirectories.
+	 * 
+	 * @param directory
+	 *            The "rsa" directory
+	 * @return The registry
+	 * @throws Exception
+	 *             If a key cannot be read, generated or saved
+	 */
+	public static KeyRegistry load(File directory) throws Exception {
+		return load(directory, null, 0);
+	}
+
+	/**
+	 * Reloads the keys from a directory, generating the default key and the
+	 * keys of empty subdirectories. Keys that did not change are carried over
+	 * as they are. Keys that changed still accept blocks encrypted with their
+	 * previous key pair until the overlap ends.
+	 * 
+	 * @param directory
+	 *            The "rsa" directory
+	 * @param previous
+	 *            The registry being replaced, or null
+	 * @param overlap
+	 *            How long (in milliseconds) replaced key pairs are still
+	 *            accepted
+	 * @return The registry
+	 * @throws Exception
+	 *             If a key cannot be read, generated or saved
+	 */
+	public static KeyRegistry load(File directory, KeyRegistry previous,
+			long overlap) throws Exception {
+		Map<String, Entry> keys = new HashMap<String, Entry>();
+		long retiredUntil = System.currentTimeMillis() + overlap;
+		keys.put(DEFAULT_KEY, entry(DEFAULT_KEY, loadOrGenerate(directory),
+				previous, retiredUntil));
+		File[] children = directory.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				if (child.isDirectory()) {
+					keys.put(child.getName(), entry(child.getName(),
+							loadOrGenerate(child), previous, retiredUntil));
+				}
+			}
+		}
+		return new KeyRegistry(keys);
+	}
+
+	/**
+	 * Creates the entry of a loaded key pair, or carries over the previous one
+	 * if the key pair did not change.
+	 * 
+	 * @param name
+	 *            The key name
+	 * @param keyPair
+	 *            The loaded key pair
+	 * @param previous
+	 *            The registry being replaced, or null
+	 * @param retiredUntil
+	 *            The time until which a replaced key pair is still accepted
+	 * @return The entry
+	 * @throws Exception
+	 *             If no cipher can be initialized with the key pair
+	 */
+	private static Entry entry(String name, KeyPair keyPair,
+			KeyRegistry previous, long retiredUntil) throws Exception {
+		Entry old = previous != null ? previous.get(name) : null;
+		if (old == null)
+			return new Entry(name, keyPair);
+		if (old.getKeyPair().getPublic().equals(keyPair.getPublic()))
+			return old;
+		LOG.info("Key " + name + " was replaced");
+		return new Entry(name, keyPair, old, retiredUntil);
+	}
+
+	/**
+	 * Loads the key pair in a directory, generating one if there is none.
+	 * 
+	 * @param directory
+	 *            The directory
+	 * @return The key pair
+	 * @throws Exception
+	 *             If the key pair cannot be read, generated or saved
+	 */
+	private static KeyPair loadOrGenerate(File directory) throws Exception {
+		if (new File(directory, "public.key").exists()) {
+			KeyPair keyPair = RSAIO.load(directory);
+			// Catch a pair read while only one of its files was replaced.
+			if (!((RSAPublicKey) keyPair.getPublic()).getModulus().equals(
+					((RSAPrivateKey) keyPair.getPrivate()).getModulus()))
+				throw new GeneralSecurityException("The keys in " + directory
+						+ " do not belong together");
+			return keyPair;
+		}
+		LOG.info("Generating a key pair in " + directory);
+		directory.mkdirs();
+		KeyPair keyPair = RSAKeygen.generate(KEY_SIZE);
+		RSAIO.save(directory, keyPair);
+		return keyPair;
+	}
+
+	/**
+	 * Gets a key.
+	 * 
+	 * @param name
+	 *            The key name
+	 * @return The key, or null if there is no such key
+	 */
+	public Entry get(String name) {
+		return keys.get(name);
+	}
+
+	/**
+	 * Gets the default key.
+	 * 
+	 * @return The default key
+	 */
+	public Entry getDefault() {
+		return keys.get(DEFAULT_KEY);
+	}
+
+	/**
+	 * Gets all keys, sorted by name.
+	 * 
+	 * @return The keys
+	 */
+	public List<Entry> getEntries() {
+		List<Entry> entries = new ArrayList<Entry>(keys.values());
+		Collections.sort(entries, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return entries;
+	}
+
+	/**
+	 * A named key pair with its decryptor and statistics.
+	 */
+	public static class Entry {
+
+		/** The key name. */
+		private final String name;
+
+		/** The decryptor for the key pair. */
+		private final RSADecryptor decryptor;
+
+		/** The decryptor for the replaced key pair, or null. */
+		private final RSADecryptor retired;
+
+		/** The time until which the replaced key pair is accepted. */
+		private final long retiredUntil;
+
+		/** The number of blocks decrypted. */
+		private final AtomicLong decrypted;
+
+		/** The number of blocks decrypted with the replaced key pair. */
+		private final AtomicLong retiredDecrypted;
+
+		/** The number of blocks that could not be decrypted. */
+		private final AtomicLong failures;
+
+		/**
+		 * Instantiates a new entry.
+		 * 
+		 * @param name
+		 *            The key name
+		 * @param keyPair
+		 *            The key pair
+		 * @throws Exception
+		 *             If no cipher can be initialized with the key pair
+		 */
+		public Entry(String name, KeyPair keyPair) throws Exception {
+			this.name = name;
+			this.decryptor = new RSADecryptor(keyPair);
+			this.retired = null;
+			this.retiredUntil = 0;
+			this.decrypted = new AtomicLong();
+			this.retiredDecrypted = new AtomicLong();
+			this.failures = new AtomicLong();
+		}
+
+		/**
+		 * Instantiates an entry that replaces another one. The replaced key
+		 * pair is still accepted for a while, and the counts carry on.
+		 * 
+		 * @param name
+		 *            The key name
+		 * @param keyPair
+		 *            The new key pair
+		 * @param previous
+		 *            The entry being replaced
+		 * @param retiredUntil
+		 *            The time until which the replaced key pair is accepted
+		 * @throws Exception
+		 *             If no cipher can be initialized with the key pair
+		 */
+		public Entry(String name, KeyPair keyPair, Entry previous,
+				long retiredUntil) throws Exception {
+			this.name = name;
+			this.decryptor = new RSADecryptor(keyPair);
+			this.retired = previous.decryptor;
+			this.retiredUntil = retiredUntil;
+			this.decrypted = previous.decrypted;
+			this.retiredDecrypted = previous.retiredDecrypted;
+			this.failures = previous.failures;
+		}
+
+		/**
+		 * Gets the key name.
+		 * 
+		 * @return The key name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Gets the decryptor.
+		 * 
+		 * @return The decryptor
+		 */
+		public RSADecryptor getDecryptor() {
+			return decryptor;
+		}
+
+		/**
+		 * Gets the decryptor for the replaced key pair, as long as it is still
+		 * accepted.
+		 * 
+		 * @return The decryptor, or null if there is none
+		 */
+		public RSADecryptor getRetired() {
+			return retired != null
+					&& System.currentTimeMillis() < retiredUntil ? retired
+					: null;
+		}
+
+		/**
+		 * Gets the key pair.
+		 * 
+		 * @return The key pair
+		 */
+		public KeyPair getKeyPair() {
+			return decryptor.getKeyPair();
+		}
+
+		/**
+		 * Counts a decrypted block.
+		 */
+		public void decrypted() {
+			decrypted.incrementAndGet();
+		}
+
+		/**
+		 * Counts a block decrypted with the replaced key pair.
+		 */
+		public void retiredDecrypted() {
+			decrypted.incrementAndGet();
+			retiredDecrypted.incrementAndGet();
+		}
+
+		/**
+		 * Counts a block that could not be decrypted.
+		 */
+		public void failed() {
+			failures.incrementAndGet();
+		}
+
+		/**
+		 * Gets the number of blocks decrypted.
+		 * 
+		 * @return The count
+		 */
+		public long getDecrypted() {
+			return decrypted.get();
+		}
+
+		/**
+		 * Gets the number of blocks decrypted with a replaced key pair.
+		 * 
+		 * @return The count
+		 */
+		public long getRetiredDecrypted() {
+			return retiredDecrypted.get();
+		}
+
+		/**
+		 * Gets the number of blocks that could not be decrypted.
+		 * 
+		 * @return The count
+		 */
+		public long getFailures() {
+			return failures.get();
+		}
+
+	}
+
+}
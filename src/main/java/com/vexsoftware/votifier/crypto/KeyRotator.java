@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.crypto;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vexsoftware.votifier.util.DirectoryWatcher;
+import com.vexsoftware.votifier.util.NamedThreadFactory;
+
+/**
+ * Keeps the current {@link KeyRegistry} and replaces it when the keys in the
+ * "rsa" directory change. Keys are read on a background thread and swapped in
+ * with a single write, so decrypt workers and open connections never wait for
+ * a reload; a block already being decrypted finishes with the registry it
+ * started with.
+ */
+public class KeyRotator {
+
+	/** The logger instance. */
+	private static final Logger LOG = Logger.getLogger("Votifier");
+
+	/** The "rsa" directory. */
+	private final File directory;
+
+	/** How long (in milliseconds) replaced key pairs are still accepted. */
+	private final long overlap;
+
+	/** The thread that reads the keys. */
+	private final ExecutorService loader = Executors
+			.newSingleThreadExecutor(new NamedThreadFactory("Votifier keys"));
+
+	/** The current keys. */
+	private volatile KeyRegistry keys;
+
+	/** The directory watcher, if watching. */
+	private DirectoryWatcher watcher;
+
+	/**
+	 * Instantiates a new key rotator.
+	 * 
+	 * @param directory
+	 *            The "rsa" directory
+	 * @param keys
+	 *            The keys loaded from the directory
+	 * @param overlap
+	 *            How long (in milliseconds) replaced key pairs are still
+	 *            accepted
+	 */
+	public KeyRotator(File directory, KeyRegistry keys, long overlap) {
+		this.directory = directory;
+		this.keys = keys;
+		this.overlap = overlap;
+	}
+
+	/**
+	 * Gets the current keys.
+	 * 
+	 * @return The key registry
+	 */
+	public KeyRegistry getKeys() {
+		return keys;
+	}
+
+	/**
+	 * Reads the keys again and swaps them in. On failure the current keys
+	 * stay in use.
+	 * 
+	 * @return The new keys
+	 * @throws Exception
+	 *             If a key cannot be read, generated or saved
+	 */
+	public synchronized KeyRegistry reload() throws Exception {
+		keys = KeyRegistry.load(directory, keys, overlap);
+		return keys;
+	}
+
+	/**
+	 * Reads the keys again on the background thread.
+	 */
+	public void reloadLater() {
+		try {
+			loader.execute(new Runnable() {
+				public void run() {
+					try {
+						LOG.info("Reloaded " + reload().getEntries().size()
+								+ " RSA keys.");
+					} catch (Exception ex) {
+						LOG.log(Level.WARNING,
+								"Error reloading the RSA keys. Keeping the current keys.",
+								ex);
+					}
+				}
+			});
+		} catch (RejectedExecutionException ignored) {
+			// Shutting down.
+		}
+	}
+
+	/**
+	 * Starts reloading the keys whenever the directory or one of its key
+	 * directories changes.
+	 * 
+	 * @throws IOException
+	 *             If the directory cannot be watched
+	 */
+	public void watch() throws IOException {
+		watcher = new DirectoryWatcher(directory, true, new Runnable() {
+			public void run() {
+				reloadLater();
+			}
+		});
+		watcher.start("Votifier key watcher");
+	}
+
+	/**
+	 * Stops watching the directory and cancels pending reloads.
+	 */
+	public void shutdown() {
+		loader.shutdownNow();
+		if (watcher != null)
+			watcher.close();
+	}
+
+}
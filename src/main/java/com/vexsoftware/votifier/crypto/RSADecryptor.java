@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.interfaces.RSAKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+
+/**
+ * A reusable RSA decryption engine for one key pair. Unlike
+ * {@link RSA#decrypt(byte[], PrivateKey)}, which looks up and initializes a new
+ * cipher for every block, each thread keeps one cipher initialized with the
+ * private key and reuses it for every block it decrypts.
+ */
+public class RSADecryptor {
+
+	/** The logger instance. */
+	private static final Logger LOG = Logger.getLogger("Votifier");
+
+	/** The cipher transformation, the same one used by {@link RSA}. */
+	private static final String TRANSFORMATION = "RSA";
+
+	/** The key pair. */
+	private final KeyPair keyPair;
+
+	/** The provider resolved for the first cipher, reused for all others. */
+	private final Provider provider;
+
+	/** The size (in bytes) of the key modulus. */
+	private final int blockSize;
+
+	/** The initialized cipher of each thread. */
+	private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				return createCipher(Cipher.getInstance(TRANSFORMATION,
+						provider));
+			} catch (GeneralSecurityException ex) {
+				// The constructor already initialized a cipher successfully.
+				throw new IllegalStateException(ex);
+			}
+		}
+	};
+
+	/**
+	 * Instantiates a new decryptor.
+	 *
+	 * @param keyPair
+	 *            The key pair to decrypt with
+	 * @throws GeneralSecurityException
+	 *             If no cipher can be initialized with the private key
+	 */
+	public RSADecryptor(KeyPair keyPair) throws GeneralSecurityException {
+		this.keyPair = keyPair;
+		PrivateKey key = keyPair.getPrivate();
+		if (!(key instanceof RSAPrivateCrtKey)) {
+			LOG.warning("The private key has no CRT parameters. Decryption will be slower.");
+		}
+		this.blockSize = (((RSAKey) key).getModulus().bitLength() + 7) / 8;
+
+		// Resolve the provider and initialize the calling thread's cipher.
+		Cipher cipher = createCipher(Cipher.getInstance(TRANSFORMATION));
+		this.provider = cipher.getProvider();
+		ciphers.set(cipher);
+	}
+
+	/**
+	 * Decrypts a block of data into a caller supplied buffer.
+	 *
+	 * @param data
+	 *            The data to decrypt
+	 * @param offset
+	 *            The offset of the encrypted block in the data
+	 * @param length
+	 *            The length of the encrypted block
+	 * @param output
+	 *            The buffer to decrypt into, at least {@link #getBlockSize()}
+	 *            bytes long from the output offset
+	 * @param outputOffset
+	 *            The offset in the buffer to decrypt into
+	 * @return The number of decrypted bytes
+	 * @throws GeneralSecurityException
+	 *             If the block cannot be decrypted
+	 */
+	public int decrypt(byte[] data, int offset, int length, byte[] output,
+			int outputOffset) throws GeneralSecurityException {
+		return ciphers.get().doFinal(data, offset, length, output,
+				outputOffset);
+	}
+
+	/**
+	 * Decrypts a block of data.
+	 *
+	 * @param data
+	 *            The data to decrypt
+	 * @return The decrypted data
+	 * @throws GeneralSecurityException
+	 *             If the block cannot be decrypted
+	 */
+	public byte[] decrypt(byte[] data) throws GeneralSecurityException {
+		return ciphers.get().doFinal(data);
+	}
+
+	/**
+	 * Gets the size of an encrypted block, which is also the size of the
+	 * buffer needed to decrypt one.
+	 *
+	 * @return The block size in bytes
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Gets the keyPair.
+	 *
+	 * @return The keyPair
+	 */
+	public KeyPair getKeyPair() {
+		return keyPair;
+	}
+
+	/**
+	 * Initializes a cipher for decryption with the private key.
+	 *
+	 * @param cipher
+	 *            The cipher
+	 * @return The cipher
+	 * @throws GeneralSecurityException
+	 *             If the key is rejected
+	 */
+	private Cipher createCipher(Cipher cipher)
+			throws GeneralSecurityException {
+		cipher.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
+		return cipher;
+	}
+
+}
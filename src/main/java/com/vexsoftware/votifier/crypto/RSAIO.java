@@ -27,8 +27,8 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
-
-import javax.xml.bind.DatatypeConverter;
+import java.util.Arrays;
+import java.util.Base64;
 
 /**
  * Static utility methods for saving and loading RSA key pairs.
@@ -55,16 +55,14 @@ public class RSAIO {
 		X509EncodedKeySpec publicSpec = new X509EncodedKeySpec(
 				publicKey.getEncoded());
 		FileOutputStream out = new FileOutputStream(directory + "/public.key");
-		out.write(DatatypeConverter.printBase64Binary(publicSpec.getEncoded())
-				.getBytes());
+		out.write(Base64.getEncoder().encode(publicSpec.getEncoded()));
 		out.close();
 
 		// Store the private key.
 		PKCS8EncodedKeySpec privateSpec = new PKCS8EncodedKeySpec(
 				privateKey.getEncoded());
 		out = new FileOutputStream(directory + "/private.key");
-		out.write(DatatypeConverter.printBase64Binary(privateSpec.getEncoded())
-				.getBytes());
+		out.write(Base64.getEncoder().encode(privateSpec.getEncoded()));
 		out.close();
 	}
 
@@ -79,23 +77,9 @@ public class RSAIO {
 	 *             If an error occurs
 	 */
 	public static KeyPair load(File directory) throws Exception {
-		// Read the public key file.
-		File publicKeyFile = new File(directory + "/public.key");
-		FileInputStream in = new FileInputStream(directory + "/public.key");
-		byte[] encodedPublicKey = new byte[(int) publicKeyFile.length()];
-		in.read(encodedPublicKey);
-		encodedPublicKey = DatatypeConverter.parseBase64Binary(new String(
-				encodedPublicKey));
-		in.close();
-
-		// Read the private key file.
-		File privateKeyFile = new File(directory + "/private.key");
-		in = new FileInputStream(directory + "/private.key");
-		byte[] encodedPrivateKey = new byte[(int) privateKeyFile.length()];
-		in.read(encodedPrivateKey);
-		encodedPrivateKey = DatatypeConverter.parseBase64Binary(new String(
-				encodedPrivateKey));
-		in.close();
+		// Read the key files.
+		byte[] encodedPublicKey = readKey(new File(directory + "/public.key"));
+		byte[] encodedPrivateKey = readKey(new File(directory + "/private.key"));
 
 		// Instantiate and return the key pair.
 		KeyFactory keyFactory = KeyFactory.getInstance("RSA");
@@ -108,4 +92,49 @@ public class RSAIO {
 		return new KeyPair(publicKey, privateKey);
 	}
 
+	/**
+	 * Loads only the public key from a directory, as a server list would. The
+	 * directory must have the file "public.key".
+	 * 
+	 * @param directory
+	 *            The directory to load from
+	 * @return The public key
+	 * @throws Exception
+	 *             If an error occurs
+	 */
+	public static PublicKey loadPublicKey(File directory) throws Exception {
+		byte[] encodedPublicKey = readKey(new File(directory + "/public.key"));
+		KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+		return keyFactory.generatePublic(new X509EncodedKeySpec(
+				encodedPublicKey));
+	}
+
+	/**
+	 * Reads and decodes a Base64 encoded key file.
+	 * 
+	 * @param file
+	 *            The key file
+	 * @return The encoded key
+	 * @throws Exception
+	 *             If an error occurs
+	 */
+	private static byte[] readKey(File file) throws Exception {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] encoded = new byte[(int) file.length()];
+			int read = 0;
+			while (read < encoded.length) {
+				int n = in.read(encoded, read, encoded.length - read);
+				if (n < 0)
+					break;
+				read += n;
+			}
+			// Like the old decoder, skip line breaks and other stray characters.
+			return Base64.getMimeDecoder().decode(
+					Arrays.copyOf(encoded, read));
+		} finally {
+			in.close();
+		}
+	}
+
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.dispatch;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vexsoftware.votifier.model.Vote;
+
+/**
+ * Recognizes votes that were already received recently, such as retried
+ * deliveries from a server list. A vote is identified by a 64 bit hash of its
+ * service name, username, address and time stamp, and is remembered for a
+ * fixed time. The cache is split into independently locked stripes, each
+ * holding a bounded number of hashes in arrival order, so the oldest entries
+ * are both the first to expire and the first to be evicted.
+ */
+public class DuplicateVoteFilter {
+
+	/** The number of stripes, a power of two. */
+	private static final int STRIPES = 16;
+
+	/** The FNV-1a 64 bit offset basis. */
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+	/** The FNV-1a 64 bit prime. */
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/** The stripes, each mapping hashes to their expiry time. */
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	/** How long (in nanoseconds) a vote is remembered. */
+	private final long ttl;
+
+	/** The number of duplicates that were recognized. */
+	private final AtomicLong duplicates = new AtomicLong();
+
+	/**
+	 * Instantiates a new duplicate vote filter.
+	 * 
+	 * @param size
+	 *            The maximum number of votes to remember
+	 * @param ttl
+	 *            How long (in seconds) to remember a vote
+	 */
+	public DuplicateVoteFilter(int size, long ttl) {
+		this.ttl = TimeUnit.SECONDS.toNanos(ttl);
+		int perStripe = Math.max(1, size / STRIPES);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(perStripe);
+		}
+	}
+
+	/**
+	 * Checks whether a vote was seen recently, and remembers it if not.
+	 * 
+	 * @param vote
+	 *            The vote
+	 * @return True if the vote is a duplicate
+	 */
+	public boolean isDuplicate(Vote vote) {
+		long hash = hash(vote);
+		Long key = hash;
+		long now = System.nanoTime();
+		Stripe stripe = stripes[(int) (hash ^ (hash >>> 32)) & (STRIPES - 1)];
+		synchronized (stripe) {
+			stripe.expire(now);
+			Long expiry = stripe.get(key);
+			if (expiry != null) {
+				duplicates.incrementAndGet();
+				return true;
+			}
+			stripe.put(key, now + ttl);
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the number of duplicates that were recognized.
+	 * 
+	 * @return The duplicate count
+	 */
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	/**
+	 * Hashes the fields of a vote.
+	 * 
+	 * @param vote
+	 *            The vote
+	 * @return The hash
+	 */
+	static long hash(Vote vote) {
+		long hash = FNV_OFFSET;
+		hash = hash(hash, vote.getServiceName());
+		hash = hash(hash, vote.getUsername());
+		hash = hash(hash, vote.getAddress());
+		hash = hash(hash, vote.getTimeStamp());
+		return hash;
+	}
+
+	private static long hash(long hash, String value) {
+		if (value != null) {
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+				hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+			}
+		}
+		// Separate the fields so that "ab"+"c" differs from "a"+"bc".
+		return (hash ^ 0xff) * FNV_PRIME;
+	}
+
+	/**
+	 * A bounded map of hashes to expiry times, in insertion order.
+	 */
+	@SuppressWarnings("serial")
+	private static class Stripe extends LinkedHashMap<Long, Long> {
+
+		/** The maximum number of entries. */
+		private final int capacity;
+
+		Stripe(int capacity) {
+			super(Math.min(capacity, 1024) * 4 / 3 + 1);
+			this.capacity = capacity;
+		}
+
+		/**
+		 * Removes the entries that have expired. As every entry lives equally
+		 * long, they are all at the start.
+		 * 
+		 * @param now
+		 *            The current time
+		 */
+		void expire(long now) {
+			Iterator<Long> expiries = values().iterator();
+			while (expiries.hasNext() && expiries.next() - now <= 0) {
+				expiries.remove();
+			}
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+			return size() > capacity;
+		}
+
+	}
+
+}
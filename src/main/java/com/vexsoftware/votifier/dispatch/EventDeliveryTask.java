@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.dispatch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import com.vexsoftware.votifier.journal.VoteJournal;
+import com.vexsoftware.votifier.metrics.VoteMetrics;
+import com.vexsoftware.votifier.metrics.VoteMetrics.Stage;
+import com.vexsoftware.votifier.model.Vote;
+import com.vexsoftware.votifier.model.VotifierEvent;
+import com.vexsoftware.votifier.util.NamedThreadFactory;
+
+/**
+ * Fires {@link VotifierEvent}s on the server's main thread. Votes from any
+ * thread are collected in a queue which a single repeating task drains once
+ * per tick, stopping when the tick's time budget is spent and carrying the
+ * rest over to the next tick. At least one event is fired per tick, so the
+ * queue always makes progress. Journaled votes are acknowledged once their
+ * event was fired.
+ * <p>
+ * With a {@link PendingVoteStore}, the votes of players who are offline are
+ * stored instead, and queued again when the player joins. The store is only
+ * read and written on a background thread, which syncs the votes it stored
+ * together. A journaled vote is acknowledged once it is synced, and a
+ * player's stored votes are cleared once their events have fired, so neither
+ * is lost in a crash.
+ */
+public class EventDeliveryTask implements EventQueue, Runnable, Listener {
+
+	/** The logger instance. */
+	private static final Logger LOG = Logger.getLogger("Votifier");
+
+	/** How long (in seconds) to wait for the pending vote writes on shutdown. */
+	private static final long WRITER_TIMEOUT = 5;
+
+	private final Plugin plugin;
+
+	/** The metrics. */
+	private final VoteMetrics metrics;
+
+	/** The time budget per tick, in nanoseconds. */
+	private final long budget;
+
+	/** The votes waiting for their event. */
+	private final Queue<QueuedVote> pending = new ConcurrentLinkedQueue<QueuedVote>();
+
+	/** The number of waiting votes, tracked separately as it is O(1). */
+	private final AtomicInteger size = new AtomicInteger();
+
+	/** The pending vote store, or null to fire events for offline players. */
+	private final PendingVoteStore pendingVotes;
+
+	/** Reads and writes the pending vote store, or null if there is none. */
+	private final ExecutorService writer;
+
+	/** The votes of offline players waiting for the writer. */
+	private final Queue<QueuedVote> toStore = new ConcurrentLinkedQueue<QueuedVote>();
+
+	/**
+	 * The lowercase names of the players whose stored votes are queued. Only
+	 * used on the writer thread.
+	 */
+	private final Set<String> delivering = new HashSet<String>();
+
+	/** The journal consumer, or null if votes are not journaled. */
+	private volatile VoteJournal.Consumer consumer;
+
+	/** The repeating task, while running. */
+	private BukkitTask task;
+
+	/**
+	 * Instantiates a new event delivery task.
+	 * 
+	 * @param plugin
+	 *            The plugin
+	 * @param metrics
+	 *            The metrics to record in
+	 * @param budget
+	 *            The time (in milliseconds) events may take per tick
+	 * @param pendingVotes
+	 *            The store for the votes of offline players, or null to fire
+	 *            their events right away
+	 */
+	public EventDeliveryTask(Plugin plugin, VoteMetrics metrics, long budget,
+			PendingVoteStore pendingVotes) {
+		this.plugin = plugin;
+		this.metrics = metrics;
+		this.budget = TimeUnit.MILLISECONDS.toNanos(budget);
+		this.pendingVotes = pendingVotes;
+		this.writer = pendingVotes != null ? Executors
+				.newSingleThreadExecutor(new NamedThreadFactory(
+						"Votifier pending votes")) : null;
+	}
+
+	/**
+	 * Schedules the task to run every tick, and to listen for joining players
+	 * if there is a pending vote store.
+	 */
+	public void start() {
+		task = plugin.getServer().getScheduler()
+				.runTaskTimer(plugin, this, 1, 1);
+		if (pendingVotes != null) {
+			// Register on the main thread, start may be called from another.
+			plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+				public void run() {
+					plugin.getServer().getPluginManager()
+							.registerEvents(EventDeliveryTask.this, plugin);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Queues the pending votes of a joining player once they are read. Their
+	 * events are fired from the next tick on, unless the player left again by
+	 * then.
+	 * 
+	 * @param event
+	 *            The join event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerJoin(PlayerJoinEvent event) {
+		final String name = event.getPlayer().getName();
+		try {
+			writer.execute(new Runnable() {
+				public void run() {
+					queueStored(name);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			// Shutting down, the votes stay stored.
+		}
+	}
+
+	public void setJournalConsumer(VoteJournal.Consumer consumer) {
+		this.consumer = consumer;
+	}
+
+	public void enqueue(Vote vote, long position) {
+		pending.add(new QueuedVote(vote, position));
+		size.incrementAndGet();
+	}
+
+	/**
+	 * Fires queued events until the budget is spent. Runs on the main thread.
+	 */
+	public void run() {
+		long deadline = System.nanoTime() + budget;
+		do {
+			if (!fireNext())
+				return;
+		} while (System.nanoTime() < deadline);
+	}
+
+	/**
+	 * Cancels the task and fires all remaining events. Must be called from
+	 * the main thread.
+	 */
+	public void shutdown() {
+		if (task != null) {
+			task.cancel();
+			task = null;
+		}
+		while (fireNext())
+			;
+		if (writer != null) {
+			writer.shutdown();
+			try {
+				if (!writer.awaitTermination(WRITER_TIMEOUT, TimeUnit.SECONDS))
+					LOG.warning("Pending votes were still being written when Votifier stopped.");
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Fires the event of the oldest queued vote, or stores it if the player
+	 * is offline.
+	 * 
+	 * @return False if no votes were queued
+	 */
+	private boolean fireNext() {
+		QueuedVote vote = pending.poll();
+		if (vote == null)
+			return false;
+		size.decrementAndGet();
+		long start = metrics.start();
+		boolean stored = false;
+		try {
+			if (vote instanceof StoredVote) {
+				fireStored((StoredVote) vote);
+			} else {
+				stored = storePending(vote);
+				if (!stored)
+					callEvent(vote.vote);
+			}
+		} finally {
+			metrics.record(Stage.EVENT, start);
+			// A stored vote is acknowledged once it is written.
+			if (!stored)
+				acknowledge(vote);
+		}
+		return true;
+	}
+
+	/**
+	 * Fires the event of a vote that was stored, unless its player left
+	 * again. Once one of a player's stored votes was not fired, the rest are
+	 * not either, so what stays stored is always the newest votes.
+	 * 
+	 * @param vote
+	 *            The vote
+	 */
+	private void fireStored(StoredVote vote) {
+		Delivery delivery = vote.delivery;
+		if (delivery == null) {
+			callEvent(vote.vote);
+			return;
+		}
+		if (!delivery.stopped
+				&& plugin.getServer().getPlayerExact(delivery.username) != null) {
+			callEvent(vote.vote);
+			delivery.fired++;
+		} else {
+			delivery.stopped = true;
+		}
+		if (--delivery.remaining == 0)
+			clearStored(delivery);
+	}
+
+	private void callEvent(Vote vote) {
+		plugin.getServer().getPluginManager()
+				.callEvent(new VotifierEvent(vote));
+	}
+
+	/**
+	 * Acknowledges a journaled vote to the journal consumer.
+	 * 
+	 * @param vote
+	 *            The vote
+	 */
+	private void acknowledge(QueuedVote vote) {
+		VoteJournal.Consumer consumer = this.consumer;
+		if (consumer != null && vote.position != QueuedVote.NOT_JOURNALED)
+			consumer.acknowledge(vote.position);
+	}
+
+	/**
+	 * Stores the vote of an offline player in the pending vote store, on the
+	 * writer thread.
+	 * 
+	 * @param vote
+	 *            The vote
+	 * @return False if the event should be fired now
+	 */
+	private boolean storePending(QueuedVote vote) {
+		String username = vote.vote.getUsername();
+		if (pendingVotes == null || username == null || username.isEmpty()
+				|| plugin.getServer().getPlayerExact(username) != null)
+			return false;
+		// Keep the journal position from passing the vote until it is written.
+		VoteJournal.Consumer consumer = this.consumer;
+		if (consumer != null && vote.position != QueuedVote.NOT_JOURNALED)
+			consumer.track(vote.position);
+		toStore.add(vote);
+		try {
+			writer.execute(new Runnable() {
+				public void run() {
+					writePending();
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException ex) {
+			toStore.remove(vote);
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the votes of offline players that are waiting, syncs them at
+	 * once and acknowledges them. The event of a vote that cannot be written
+	 * is fired instead. Runs on the writer thread.
+	 */
+	private void writePending() {
+		List<QueuedVote> written = new ArrayList<QueuedVote>();
+		QueuedVote vote;
+		while ((vote = toStore.poll()) != null) {
+			try {
+				pendingVotes.add(vote.vote);
+				written.add(vote);
+			} catch (IOException ex) {
+				LOG.log(Level.WARNING, "Unable to store the pending vote of "
+						+ vote.vote.getUsername() + ", firing its event now",
+						ex);
+				pending.add(new StoredVote(vote.vote, vote.position, null));
+				size.incrementAndGet();
+			}
+		}
+		if (written.isEmpty())
+			return;
+		try {
+			pendingVotes.force();
+		} catch (IOException ex) {
+			// Leave them to the journal, which replays them on start.
+			LOG.log(Level.WARNING, "Unable to sync " + written.size()
+					+ " pending votes", ex);
+			return;
+		}
+		for (QueuedVote stored : written) {
+			acknowledge(stored);
+		}
+	}
+
+	/**
+	 * Queues the stored votes of a player who joined. Runs on the writer
+	 * thread.
+	 * 
+	 * @param username
+	 *            The player's name
+	 */
+	private void queueStored(String username) {
+		// The votes of a player who joined again are still queued.
+		if (!delivering.add(username.toLowerCase(Locale.ENGLISH)))
+			return;
+		List<Vote> votes;
+		try {
+			votes = pendingVotes.get(username);
+		} catch (IOException ex) {
+			LOG.log(Level.WARNING, "Unable to read the pending votes of "
+					+ username, ex);
+			votes = null;
+		}
+		if (votes == null || votes.isEmpty()) {
+			delivering.remove(username.toLowerCase(Locale.ENGLISH));
+			return;
+		}
+		Delivery delivery = new Delivery(username, votes.size());
+		for (Vote vote : votes) {
+			pending.add(new StoredVote(vote, QueuedVote.NOT_JOURNALED,
+					delivery));
+			size.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Clears the stored votes of a player whose events have fired, on the
+	 * writer thread.
+	 * 
+	 * @param delivery
+	 *            The finished delivery
+	 */
+	private void clearStored(final Delivery delivery) {
+		Runnable clear = new Runnable() {
+			public void run() {
+				try {
+					pendingVotes.clear(delivery.username, delivery.fired);
+				} catch (IOException ex) {
+					LOG.log(Level.WARNING,
+							"Unable to clear the pending votes of "
+									+ delivery.username
+									+ ", their events will fire again", ex);
+				} finally {
+					delivering.remove(delivery.username
+							.toLowerCase(Locale.ENGLISH));
+				}
+			}
+		};
+		try {
+			writer.execute(clear);
+		} catch (RejectedExecutionException ex) {
+			LOG.warning("Unable to clear the pending votes of "
+					+ delivery.username + ", their events will fire again");
+		}
+	}
+
+	/**
+	 * The stored votes of a player that were queued when they joined. Only
+	 * used on the main thread once queued.
+	 */
+	private static class Delivery {
+
+		/** The player's name. */
+		final String username;
+
+		/** The number of votes not handled yet. */
+		int remaining;
+
+		/** The number of votes whose event was fired. */
+		int fired;
+
+		/** Set once a vote was not fired because the player left. */
+		boolean stopped;
+
+		Delivery(String username, int remaining) {
+			this.username = username;
+			this.remaining = remaining;
+		}
+
+	}
+
+	/**
+	 * A vote from the pending vote store, or one that could not be stored.
+	 */
+	private static class StoredVote extends QueuedVote {
+
+		/** The delivery, or null if the vote could not be stored. */
+		final Delivery delivery;
+
+		StoredVote(Vote vote, long position, Delivery delivery) {
+			super(vote, position);
+			this.delivery = delivery;
+		}
+
+	}
+
+}
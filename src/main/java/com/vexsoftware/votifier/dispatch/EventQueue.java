@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.dispatch;
+
+import com.vexsoftware.votifier.journal.VoteJournal;
+import com.vexsoftware.votifier.model.Vote;
+
+/**
+ * Fires an event for every dispatched vote on the server that runs Votifier,
+ * such as the {@link EventDeliveryTask} of the Bukkit plugin. A standalone
+ * gateway has no server and no event queue, and only hands votes to its
+ * listeners.
+ */
+public interface EventQueue {
+
+	/**
+	 * Sets the journal consumer that fired events are acknowledged to.
+	 * 
+	 * @param consumer
+	 *            The journal consumer
+	 */
+	public void setJournalConsumer(VoteJournal.Consumer consumer);
+
+	/**
+	 * Starts firing events.
+	 */
+	public void start();
+
+	/**
+	 * Queues the event of a vote. May be called from any thread.
+	 * 
+	 * @param vote
+	 *            The vote
+	 * @param position
+	 *            The position after the vote in the journal, or -1 if the
+	 *            vote is not journaled
+	 */
+	public void enqueue(Vote vote, long position);
+
+	/**
+	 * Stops and fires all remaining events.
+	 */
+	public void shutdown();
+
+	/**
+	 * Gets the number of events waiting to be fired.
+	 * 
+	 * @return The number of waiting events
+	 */
+	public int size();
+
+}
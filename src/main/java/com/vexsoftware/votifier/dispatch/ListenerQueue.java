@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.dispatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.*;
+
+import com.vexsoftware.votifier.journal.VoteJournal;
+import com.vexsoftware.votifier.metrics.LatencyHistogram;
+import com.vexsoftware.votifier.metrics.VoteMetrics;
+import com.vexsoftware.votifier.model.BatchVoteListener;
+import com.vexsoftware.votifier.model.Vote;
+import com.vexsoftware.votifier.model.VoteListener;
+import com.vexsoftware.votifier.util.NamedThreadFactory;
+
+/**
+ * Delivers votes to a single listener on its own thread through a bounded
+ * queue, so that a slow listener neither delays the other listeners nor the
+ * vote receiver. What happens when the queue is full is decided by the
+ * queue's {@link OverflowPolicy}. Votes for a {@link BatchVoteListener} are
+ * delivered in batches of up to the configured size, waiting at most the
+ * linger time for a batch to fill up. If the votes are journaled, each vote is
+ * acknowledged to the queue's journal consumer once the listener returns.
+ */
+public class ListenerQueue {
+
+	/** The logger instance. */
+	private static final Logger LOG = Logger.getLogger("Votifier");
+
+	/** How long (in milliseconds) the worker waits for a vote at a time. */
+	private static final long POLL_INTERVAL = 100;
+
+	/** The listener. */
+	private final VoteListener listener;
+
+	/**
+	 * The listener name, used in log messages, thread, spill file and
+	 * journal consumer names.
+	 */
+	private final String name;
+
+	/** The queued votes. */
+	private final BlockingQueue<QueuedVote> queue;
+
+	/** The overflow policy. */
+	private final OverflowPolicy overflow;
+
+	/** The listener as a batch listener, or null if it is not one. */
+	private final BatchVoteListener batchListener;
+
+	/** The maximum number of votes per batch. */
+	private final int batchSize;
+
+	/** How long (in nanoseconds) to wait for a batch to fill up. */
+	private final long batchLinger;
+
+	/** The spill file, only used with {@link OverflowPolicy#SPILL}. */
+	private final SpillFile spill;
+
+	/** The worker thread. */
+	private final Thread worker;
+
+	/** The journal consumer, or null if votes are not journaled. */
+	private volatile VoteJournal.Consumer consumer;
+
+	/** The listener latency histogram, or null if metrics are disabled. */
+	private volatile LatencyHistogram latency;
+
+	/** The number of votes that were dropped. */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/** The running flag. */
+	private volatile boolean running = true;
+
+	/**
+	 * Instantiates a new listener queue.
+	 * 
+	 * @param listener
+	 *            The listener to deliver to
+	 * @param depth
+	 *            The number of votes that may wait for the listener
+	 * @param overflow
+	 *            What to do with votes that do not fit in the queue
+	 * @param batchSize
+	 *            The maximum number of votes per batch, only used for batch
+	 *            listeners
+	 * @param batchLinger
+	 *            How long (in milliseconds) to wait for a batch to fill up,
+	 *            only used for batch listeners
+	 * @param spillDirectory
+	 *            The directory to keep the spill file in
+	 * @throws IOException
+	 *             If the spill file cannot be opened
+	 */
+	public ListenerQueue(VoteListener listener, int depth,
+			OverflowPolicy overflow, int batchSize, long batchLinger,
+			File spillDirectory) throws IOException {
+		this(listener.getClass().getSimpleName().length() > 0 ? listener
+				.getClass().getSimpleName() : listener.getClass().getName(),
+				listener, depth, overflow, batchSize, batchLinger,
+				spillDirectory);
+	}
+
+	/**
+	 * Instantiates a new listener queue with a name of its own, for listeners
+	 * that are used more than once.
+	 * 
+	 * @param name
+	 *            The unique listener name
+	 * @param listener
+	 *            The listener to deliver to
+	 * @param depth
+	 *            The number of votes that may wait for the listener
+	 * @param overflow
+	 *            What to do with votes that do not fit in the queue
+	 * @param batchSize
+	 *            The maximum number of votes per batch, only used for batch
+	 *            listeners
+	 * @param batchLinger
+	 *            How long (in milliseconds) to wait for a batch to fill up,
+	 *            only used for batch listeners
+	 * @param spillDirectory
+	 *            The directory to keep the spill file in
+	 * @throws IOException
+	 *             If the spill file cannot be opened
+	 */
+	public ListenerQueue(String name, VoteListener listener, int depth,
+			OverflowPolicy overflow, int batchSize, long batchLinger,
+			File spillDirectory) throws IOException {
+		this.listener = listener;
+		this.batchListener = listener instanceof BatchVoteListener ? (BatchVoteListener) listener
+				: null;
+		this.batchSize = batchSize;
+		this.batchLinger = TimeUnit.MILLISECONDS.toNanos(batchLinger);
+		this.name = name;
+		this.queue = new ArrayBlockingQueue<QueuedVote>(depth);
+		this.overflow = overflow;
+		if (overflow == OverflowPolicy.SPILL) {
+			spillDirectory.mkdirs();
+			spill = new SpillFile(new File(spillDirectory, name + ".dat"));
+		} else {
+			spill = null;
+		}
+		this.worker = new NamedThreadFactory("Votifier listener " + name)
+				.newThread(new Runnable() {
+					public void run() {
+						deliver();
+					}
+				});
+	}
+
+	/**
+	 * Starts delivering votes.
+	 */
+	public void start() {
+		if (spill != null && !spill.isEmpty()) {
+			LOG.info("Resuming spilled votes for the '" + name + "' listener");
+		}
+		worker.start();
+	}
+
+	/**
+	 * Sets the journal consumer that delivered votes are acknowledged to. Must
+	 * be called before the queue is started. Spilled votes that the journal
+	 * replays are dropped from the spill file.
+	 * 
+	 * @param consumer
+	 *            The journal consumer
+	 */
+	public void setJournalConsumer(VoteJournal.Consumer consumer) {
+		this.consumer = consumer;
+		if (spill == null)
+			return;
+		synchronized (spill) {
+			if (spill.isEmpty())
+				return;
+			try {
+				spill.discardJournaled();
+			} catch (IOException ex) {
+				LOG.log(Level.WARNING,
+						"Unable to drop the journaled votes from the spill file of the '"
+								+ name + "' listener", ex);
+			}
+		}
+	}
+
+	/**
+	 * Sets the metrics that the listener's latency is recorded in. Must be
+	 * called before the queue is started.
+	 * 
+	 * @param metrics
+	 *            The metrics
+	 */
+	public void setMetrics(VoteMetrics metrics) {
+		this.latency = metrics.isEnabled() ? metrics.getListener(name) : null;
+	}
+
+	/**
+	 * Queues a vote for the listener.
+	 * 
+	 * @param vote
+	 *            The vote
+	 * @param position
+	 *            The position after the vote in the journal, or -1 if the
+	 *            vote is not journaled
+	 */
+	public void offer(Vote vote, long position) {
+		offer(new QueuedVote(vote, position));
+	}
+
+	/**
+	 * Queues a vote for the listener, applying the overflow policy.
+	 * 
+	 * @param vote
+	 *            The vote
+	 */
+	private void offer(QueuedVote vote) {
+		switch (overflow) {
+		case BLOCK:
+			try {
+				while (running) {
+					if (queue.offer(vote, POLL_INTERVAL, TimeUnit.MILLISECONDS))
+						return;
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			drop(vote, "Votifier is shutting down");
+			break;
+		case DROP_OLDEST:
+			while (!queue.offer(vote)) {
+				QueuedVote oldest = queue.poll();
+				if (oldest != null)
+					drop(oldest, "queue is full");
+			}
+			break;
+		case SPILL:
+			synchronized (spill) {
+				// Once spilling, keep spilling so the listener sees votes in order.
+				if (spill.isEmpty() && queue.offer(vote))
+					return;
+				try {
+					spill.append(vote);
+				} catch (IOException ex) {
+					LOG.log(Level.WARNING, "Unable to spill vote for the '"
+							+ name + "' listener", ex);
+					drop(vote, "spill file is not writable");
+				}
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Stops accepting votes and waits for the queued ones to be delivered.
+	 * 
+	 * @param timeout
+	 *            How long (in milliseconds) to wait
+	 */
+	public void shutdown(long timeout) {
+		running = false;
+		try {
+			worker.join(timeout);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if (worker.isAlive()) {
+			LOG.log(Level.WARNING, "The '" + name + "' listener still had "
+					+ queue.size() + " votes queued when Votifier stopped.");
+			worker.interrupt();
+		}
+	}
+
+	/**
+	 * Gets the listener name, its simple class name.
+	 * 
+	 * @return The listener name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the listener.
+	 * 
+	 * @return The listener
+	 */
+	public VoteListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Gets the number of votes waiting in memory.
+	 * 
+	 * @return The queue size
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+	/**
+	 * Gets the number of votes that were dropped.
+	 * 
+	 * @return The dropped vote count
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * The worker loop. Delivers queued votes first, then spilled ones, until
+	 * shut down and drained.
+	 */
+	private void deliver() {
+		try {
+			while (true) {
+				QueuedVote vote = next(POLL_INTERVAL);
+				if (vote == null) {
+					if (!running && queue.isEmpty())
+						break;
+					continue;
+				}
+				LatencyHistogram latency = this.latency;
+				long start = latency != null ? System.nanoTime() : 0;
+				if (batchListener == null) {
+					try {
+						listener.voteMade(vote.vote);
+					} catch (Exception ex) {
+						LOG.log(Level.WARNING,
+								"Exception caught while sending the vote notification to the '"
+										+ name + "' listener", ex);
+					}
+					if (latency != null)
+						latency.recordSince(start);
+					checkInterrupted();
+					acknowledge(vote);
+				} else {
+					List<QueuedVote> queued = new ArrayList<QueuedVote>(
+							Math.min(batchSize, 64));
+					List<Vote> batch = collectBatch(vote, queued);
+					if (latency != null)
+						start = System.nanoTime();
+					try {
+						batchListener.votesMade(batch);
+					} catch (Exception ex) {
+						LOG.log(Level.WARNING,
+								"Exception caught while sending " + batch.size()
+										+ " vote notifications to the '"
+										+ name + "' listener", ex);
+					}
+					if (latency != null)
+						latency.recordSince(start);
+					checkInterrupted();
+					for (QueuedVote delivered : queued) {
+						acknowledge(delivered);
+					}
+				}
+			}
+		} catch (InterruptedException ex) {
+			// Shutdown timed out, give up on the remaining votes.
+		} finally {
+			if (spill != null) {
+				synchronized (spill) {
+					spill.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Collects a batch of votes, starting with the given one.
+	 * 
+	 * @param first
+	 *            The first vote of the batch
+	 * @param queued
+	 *            The list to collect the queued votes in
+	 * @return The votes of the batch
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 */
+	private List<Vote> collectBatch(QueuedVote first, List<QueuedVote> queued)
+			throws InterruptedException {
+		List<Vote> batch = new ArrayList<Vote>(Math.min(batchSize, 64));
+		queued.add(first);
+		batch.add(first.vote);
+		long deadline = System.nanoTime() + batchLinger;
+		while (batch.size() < batchSize) {
+			long wait = running ? deadline - System.nanoTime() : 0;
+			QueuedVote vote = next(TimeUnit.NANOSECONDS.toMillis(Math.max(0,
+					wait)));
+			if (vote == null)
+				break;
+			queued.add(vote);
+			batch.add(vote.vote);
+		}
+		return batch;
+	}
+
+	/**
+	 * Takes the next vote, from the queue or else from the spill file,
+	 * waiting for one to be queued if neither has any.
+	 * 
+	 * @param timeout
+	 *            How long (in milliseconds) to wait
+	 * @return The vote, or null if none arrived in time
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 */
+	private QueuedVote next(long timeout) throws InterruptedException {
+		QueuedVote vote = queue.poll();
+		if (vote == null && spill != null)
+			vote = nextSpilled();
+		if (vote == null && timeout > 0)
+			vote = queue.poll(timeout, TimeUnit.MILLISECONDS);
+		return vote;
+	}
+
+	/**
+	 * Reads the oldest spilled vote, if any.
+	 * 
+	 * @return The vote, or null
+	 */
+	private QueuedVote nextSpilled() {
+		// Spilled votes are left on disk for the next start.
+		if (!running)
+			return null;
+		synchronized (spill) {
+			try {
+				return spill.next();
+			} catch (IOException ex) {
+				LOG.log(Level.WARNING, "Unable to read spilled votes for the '"
+						+ name + "' listener", ex);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Gives up if the worker was interrupted by a shutdown timeout. The
+	 * listener may have stopped short, so the votes are left unacknowledged
+	 * for the journal to replay.
+	 * 
+	 * @throws InterruptedException
+	 *             If interrupted
+	 */
+	private static void checkInterrupted() throws InterruptedException {
+		if (Thread.interrupted())
+			throw new InterruptedException();
+	}
+
+	/**
+	 * Acknowledges a vote to the journal consumer, if any.
+	 * 
+	 * @param vote
+	 *            The vote
+	 */
+	private void acknowledge(QueuedVote vote) {
+		VoteJournal.Consumer consumer = this.consumer;
+		if (consumer != null && vote.position != QueuedVote.NOT_JOURNALED)
+			consumer.acknowledge(vote.position);
+	}
+
+	/**
+	 * Records a dropped vote. Dropped votes are acknowledged, as they were
+	 * dropped on purpose. Older votes that are still queued keep the journal
+	 * position from passing them.
+	 * 
+	 * @param vote
+	 *            The vote
+	 * @param reason
+	 *            Why it was dropped
+	 */
+	private void drop(QueuedVote vote, String reason) {
+		dropped.incrementAndGet();
+		acknowledge(vote);
+		LOG.log(Level.WARNING, "Dropped vote for the '" + name
+				+ "' listener (" + reason + ") -> " + vote.vote);
+	}
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.dispatch;
+
+/**
+ * What a {@link ListenerQueue} does with a vote when it is full.
+ */
+public enum OverflowPolicy {
+
+	/** Wait until the listener has made room for the vote. */
+	BLOCK,
+
+	/** Discard the oldest queued vote to make room for the new one. */
+	DROP_OLDEST,
+
+	/** Write the vote to a spill file and deliver it once the queue drains. */
+	SPILL;
+
+	/**
+	 * Gets a policy by its configuration name, e.g. "drop_oldest".
+	 * 
+	 * @param name
+	 *            The configuration name
+	 * @return The policy, or null if there is no such policy
+	 */
+	public static OverflowPolicy fromName(String name) {
+		try {
+			return valueOf(name.trim().toUpperCase().replace('-', '_'));
+		} catch (IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,545 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.dispatch;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.vexsoftware.votifier.model.Vote;
+
+/**
+ * Keeps the votes of players who were offline when their vote arrived, until
+ * they join. The votes stay on disk in an append-only file. Memory only holds
+ * an index from each lowercase username to the offset of the player's latest
+ * vote, and every vote record points at the player's vote before it, so the
+ * votes of a joining player are found without a scan. Votes are only cleared
+ * once their events have fired, with a record that clears either all votes
+ * of a player or the oldest ones up to an offset. The file is compacted when
+ * it is opened if most of it was cleared.
+ * <p>
+ * A record is framed like a journal record: the payload length, the CRC32 of
+ * the payload and the payload itself. A record whose checksum does not match
+ * is a torn write and ends the file.
+ */
+public class PendingVoteStore implements Closeable {
+
+	/** The logger instance. */
+	private static final Logger LOG = Logger.getLogger("Votifier");
+
+	/** The size of a record header. */
+	private static final int HEADER_SIZE = 8;
+
+	/** The type of a record that adds a vote. */
+	private static final byte ADD = 1;
+
+	/** The type of a record that clears the votes of a player. */
+	private static final byte CLEAR = 2;
+
+	/**
+	 * The type of a record that clears the votes of a player up to and
+	 * including an offset.
+	 */
+	private static final byte CLEAR_TO = 3;
+
+	/** The offset that marks the first vote of a player. */
+	private static final long NONE = -1;
+
+	/** The size (in bytes) below which the file is never compacted. */
+	private static final long MIN_COMPACT_SIZE = 1024 * 1024;
+
+	/** The file. */
+	private final File file;
+
+	/** The offset of the latest vote of each player, by lowercase username. */
+	private final Map<String, Long> index = new HashMap<String, Long>();
+
+	/**
+	 * The offset of the latest cleared vote of each player whose older votes
+	 * were cleared while newer ones are still pending.
+	 */
+	private final Map<String, Long> floors = new HashMap<String, Long>();
+
+	/** The open file. */
+	private FileChannel channel;
+
+	/** The size of the file. */
+	private long size;
+
+	/** The number of pending votes. */
+	private int votes;
+
+	/**
+	 * Opens a pending vote store, creating the file if needed.
+	 * 
+	 * @param file
+	 *            The file
+	 * @throws IOException
+	 *             If the file cannot be read or opened
+	 */
+	public PendingVoteStore(File file) throws IOException {
+		this.file = file;
+		long live = load();
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		// Drop a torn record at the end.
+		channel.truncate(size);
+		if (size >= MIN_COMPACT_SIZE && live < size / 2)
+			compact();
+	}
+
+	/**
+	 * Adds the vote of an offline player. It is only on disk once the store
+	 * was {@link #force() forced}.
+	 * 
+	 * @param vote
+	 *            The vote
+	 * @throws IOException
+	 *             If the vote cannot be written
+	 */
+	public synchronized void add(Vote vote) throws IOException {
+		String key = key(vote.getUsername());
+		Long previous = index.get(key);
+		index.put(key, append(encode(vote, previous == null ? NONE
+				: previous)));
+		votes++;
+	}
+
+	/**
+	 * Forces the added votes to disk, so a batch of votes costs one sync.
+	 * 
+	 * @throws IOException
+	 *             If the file cannot be synced
+	 */
+	public synchronized void force() throws IOException {
+		channel.force(false);
+	}
+
+	/**
+	 * Gets the votes of a player. They stay in the store until they are
+	 * cleared.
+	 * 
+	 * @param username
+	 *            The player's name, in any case
+	 * @return The votes, oldest first
+	 * @throws IOException
+	 *             If the votes cannot be read
+	 */
+	public synchronized List<Vote> get(String username) throws IOException {
+		String key = key(username);
+		Long latest = index.get(key);
+		if (latest == null)
+			return Collections.emptyList();
+		return read(channel, latest, floor(key));
+	}
+
+	/**
+	 * Clears the oldest votes of a player, once their events have fired.
+	 * Votes added since they were read stay pending.
+	 * 
+	 * @param username
+	 *            The player's name, in any case
+	 * @param count
+	 *            The number of votes to clear
+	 * @throws IOException
+	 *             If the votes cannot be read or cleared
+	 */
+	public synchronized void clear(String username, int count)
+			throws IOException {
+		String key = key(username);
+		Long latest = index.get(key);
+		if (latest == null || count <= 0)
+			return;
+		List<Long> offsets = offsets(channel, latest, floor(key));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+		DataOutputStream out = new DataOutputStream(bytes);
+		if (count >= offsets.size()) {
+			out.writeByte(CLEAR);
+			out.writeUTF(key);
+			append(bytes.toByteArray());
+			index.remove(key);
+			floors.remove(key);
+			votes -= offsets.size();
+		} else {
+			// The offsets are newest first.
+			long upTo = offsets.get(offsets.size() - count);
+			out.writeByte(CLEAR_TO);
+			out.writeUTF(key);
+			out.writeLong(upTo);
+			append(bytes.toByteArray());
+			floors.put(key, upTo);
+			votes -= count;
+		}
+	}
+
+	/**
+	 * Gets the number of pending votes.
+	 * 
+	 * @return The number of votes
+	 */
+	public synchronized int size() {
+		return votes;
+	}
+
+	/**
+	 * Gets the number of players with pending votes.
+	 * 
+	 * @return The number of players
+	 */
+	public synchronized int getPlayers() {
+		return index.size();
+	}
+
+	/**
+	 * Syncs and closes the file.
+	 */
+	public synchronized void close() {
+		try {
+			channel.force(false);
+			channel.close();
+		} catch (IOException ex) {
+			LOG.warning("Unable to close " + file + ": " + ex);
+		}
+	}
+
+	/**
+	 * Reads the file and builds the index.
+	 * 
+	 * @return The number of bytes taken by pending votes
+	 * @throws IOException
+	 *             If the file cannot be read
+	 */
+	private long load() throws IOException {
+		if (!file.exists())
+			return 0;
+		// The offset and size of each vote of each player, while loading.
+		Map<String, ArrayDeque<long[]>> loaded = new HashMap<String, ArrayDeque<long[]>>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			CRC32 crc = new CRC32();
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException ex) {
+					break;
+				}
+				if (length <= 0 || size + HEADER_SIZE + length > file.length())
+					break;
+				int checksum = in.readInt();
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				crc.reset();
+				crc.update(payload);
+				if ((int) crc.getValue() != checksum)
+					break;
+				DataInputStream record = new DataInputStream(
+						new ByteArrayInputStream(payload));
+				byte type = record.readByte();
+				if (type == ADD) {
+					record.readLong();
+					String key = key(decode(record).getUsername());
+					ArrayDeque<long[]> player = loaded.get(key);
+					if (player == null) {
+						player = new ArrayDeque<long[]>();
+						loaded.put(key, player);
+					}
+					player.add(new long[] { size, HEADER_SIZE + length });
+					index.put(key, size);
+				} else {
+					String key = record.readUTF();
+					ArrayDeque<long[]> player = loaded.get(key);
+					if (type == CLEAR_TO && player != null) {
+						long upTo = record.readLong();
+						while (!player.isEmpty() && player.peek()[0] <= upTo) {
+							player.remove();
+						}
+						floors.put(key, upTo);
+					}
+					if (player == null || player.isEmpty() || type == CLEAR) {
+						loaded.remove(key);
+						index.remove(key);
+						floors.remove(key);
+					}
+				}
+				size += HEADER_SIZE + length;
+			}
+		} finally {
+			in.close();
+		}
+		long live = 0;
+		for (ArrayDeque<long[]> player : loaded.values()) {
+			votes += player.size();
+			for (long[] vote : player) {
+				live += vote[1];
+			}
+		}
+		return live;
+	}
+
+	/**
+	 * Rewrites the file with only the pending votes.
+	 * 
+	 * @throws IOException
+	 *             If the file cannot be rewritten
+	 */
+	private void compact() throws IOException {
+		long before = size;
+		File temp = new File(file.getPath() + ".tmp");
+		FileChannel old = channel;
+		channel = new RandomAccessFile(temp, "rw").getChannel();
+		try {
+			channel.truncate(0);
+			size = 0;
+			for (Map.Entry<String, Long> player : index.entrySet()) {
+				long previous = NONE;
+				for (Vote vote : read(old, player.getValue(),
+						floor(player.getKey()))) {
+					previous = append(encode(vote, previous));
+				}
+				player.setValue(previous);
+			}
+			channel.force(false);
+		} catch (IOException ex) {
+			channel.close();
+			temp.delete();
+			channel = old;
+			throw ex;
+		}
+		// The rewritten file only holds pending votes.
+		floors.clear();
+		old.close();
+		channel.close();
+		if (!temp.renameTo(file)) {
+			// Windows does not rename over existing files.
+			file.delete();
+			if (!temp.renameTo(file))
+				throw new IOException("Cannot replace " + file);
+		}
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		LOG.info("Compacted the pending votes from " + before / 1024
+				+ " KB to " + size / 1024 + " KB");
+	}
+
+	/**
+	 * Gets the offset of the latest cleared vote of a player.
+	 * 
+	 * @param key
+	 *            The lowercase username
+	 * @return The offset, or {@link #NONE} if none of the player's votes in
+	 *         the file were cleared
+	 */
+	private long floor(String key) {
+		Long floor = floors.get(key);
+		return floor != null ? floor : NONE;
+	}
+
+	/**
+	 * Reads the votes of a player by following the records back from the
+	 * latest one.
+	 * 
+	 * @param from
+	 *            The file to read
+	 * @param latest
+	 *            The offset of the player's latest vote
+	 * @param floor
+	 *            The offset of the player's latest cleared vote, where
+	 *            reading stops
+	 * @return The votes, oldest first
+	 * @throws IOException
+	 *             If the votes cannot be read
+	 */
+	private static List<Vote> read(FileChannel from, long latest, long floor)
+			throws IOException {
+		List<Vote> read = new ArrayList<Vote>();
+		for (long offset = latest; offset > floor;) {
+			DataInputStream record = record(from, offset);
+			offset = record.readLong();
+			read.add(decode(record));
+		}
+		Collections.reverse(read);
+		return read;
+	}
+
+	/**
+	 * Gets the offsets of the votes of a player.
+	 * 
+	 * @param from
+	 *            The file to read
+	 * @param latest
+	 *            The offset of the player's latest vote
+	 * @param floor
+	 *            The offset of the player's latest cleared vote, where
+	 *            reading stops
+	 * @return The offsets, newest first
+	 * @throws IOException
+	 *             If the votes cannot be read
+	 */
+	private static List<Long> offsets(FileChannel from, long latest,
+			long floor) throws IOException {
+		List<Long> offsets = new ArrayList<Long>();
+		for (long offset = latest; offset > floor;) {
+			offsets.add(offset);
+			offset = record(from, offset).readLong();
+		}
+		return offsets;
+	}
+
+	/**
+	 * Reads an add record.
+	 * 
+	 * @param from
+	 *            The file to read
+	 * @param offset
+	 *            The offset of the record
+	 * @return The payload, after the record type
+	 * @throws IOException
+	 *             If the record cannot be read or is not an add record
+	 */
+	private static DataInputStream record(FileChannel from, long offset)
+			throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(from, header, offset);
+		ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+		readFully(from, payload, offset + HEADER_SIZE);
+		DataInputStream record = new DataInputStream(new ByteArrayInputStream(
+				payload.array()));
+		if (record.readByte() != ADD)
+			throw new IOException("Corrupt pending vote at " + offset);
+		return record;
+	}
+
+	/**
+	 * Fills a buffer from a file.
+	 * 
+	 * @param from
+	 *            The file
+	 * @param buffer
+	 *            The buffer
+	 * @param position
+	 *            The position in the file to read from
+	 * @throws IOException
+	 *             If the file ends first
+	 */
+	private static void readFully(FileChannel from, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (from.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException();
+		}
+	}
+
+	/**
+	 * Appends a record to the open file.
+	 * 
+	 * @param payload
+	 *            The record payload
+	 * @return The offset of the record
+	 * @throws IOException
+	 *             If the record cannot be written
+	 */
+	private long append(byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+		record.putInt(payload.length).putInt((int) crc.getValue())
+				.put(payload).flip();
+		long offset = size;
+		while (record.hasRemaining()) {
+			channel.write(record, offset + record.position());
+		}
+		size += record.limit();
+		return offset;
+	}
+
+	/**
+	 * Encodes a vote as a record payload.
+	 * 
+	 * @param vote
+	 *            The vote
+	 * @param previous
+	 *            The offset of the player's vote before it
+	 * @return The payload
+	 * @throws IOException
+	 *             Never
+	 */
+	private static byte[] encode(Vote vote, long previous) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(ADD);
+		out.writeLong(previous);
+		out.writeUTF(nullToEmpty(vote.getServiceName()));
+		out.writeUTF(nullToEmpty(vote.getUsername()));
+		out.writeUTF(nullToEmpty(vote.getAddress()));
+		out.writeUTF(nullToEmpty(vote.getTimeStamp()));
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes the vote of an add record.
+	 * 
+	 * @param in
+	 *            The payload, after the previous offset
+	 * @return The vote
+	 * @throws IOException
+	 *             If the payload is malformed
+	 */
+	private static Vote decode(DataInputStream in) throws IOException {
+		Vote vote = new Vote();
+		vote.setServiceName(in.readUTF());
+		vote.setUsername(in.readUTF());
+		vote.setAddress(in.readUTF());
+		vote.setTimeStamp(in.readUTF());
+		return vote;
+	}
+
+	/**
+	 * Gets the index key of a username.
+	 * 
+	 * @param username
+	 *            The username
+	 * @return The lowercase username
+	 */
+	private static String key(String username) {
+		return nullToEmpty(username).toLowerCase(Locale.ENGLISH);
+	}
+
+	private static String nullToEmpty(String value) {
+		return value == null ? "" : value;
+	}
+
+}
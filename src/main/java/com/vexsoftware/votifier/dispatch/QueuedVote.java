@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.dispatch;
+
+import com.vexsoftware.votifier.model.Vote;
+
+/**
+ * A vote waiting for delivery, together with its journal position.
+ */
+class QueuedVote {
+
+	/** The position of votes that are not journaled. */
+	static final long NOT_JOURNALED = -1;
+
+	/** The vote. */
+	final Vote vote;
+
+	/** The position after the vote in the journal. */
+	final long position;
+
+	/**
+	 * Instantiates a new queued vote.
+	 * 
+	 * @param vote
+	 *            The vote
+	 * @param position
+	 *            The position after the vote in the journal, or
+	 *            {@link #NOT_JOURNALED}
+	 */
+	QueuedVote(Vote vote, long position) {
+		this.vote = vote;
+		this.position = position;
+	}
+
+}
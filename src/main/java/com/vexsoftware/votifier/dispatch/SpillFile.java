@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.dispatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vexsoftware.votifier.model.Vote;
+
+/**
+ * An on-disk overflow area for a {@link ListenerQueue}. Votes are appended at
+ * the end and read back from the front; once everything has been read the
+ * file is truncated. Anything left over when Votifier stops is delivered after
+ * the next start. Not thread safe, the owning queue synchronizes access.
+ * <p>
+ * The file starts with a magic number and the format version. Each record is
+ * the vote's journal position followed by the vote.
+ */
+class SpillFile {
+
+	/** The magic number a spill file starts with. */
+	private static final int MAGIC = 0xF5B1F11E;
+
+	/** The version of the record format. */
+	private static final int VERSION = 1;
+
+	/** The size of the file header. */
+	private static final int HEADER_SIZE = 8;
+
+	/** The file. */
+	private final File file;
+
+	/** The open file. */
+	private final RandomAccessFile data;
+
+	/** The position of the next vote to read. */
+	private long readPosition;
+
+	/** The position to append the next vote at. */
+	private long writePosition;
+
+	/**
+	 * Opens a spill file, keeping any votes spilled before.
+	 * 
+	 * @param file
+	 *            The file
+	 * @throws IOException
+	 *             If the file cannot be opened
+	 */
+	SpillFile(File file) throws IOException {
+		this.file = file;
+		this.data = new RandomAccessFile(file, "rw");
+		long length = data.length();
+		if (length == 0) {
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+		} else if (length < HEADER_SIZE || data.readInt() != MAGIC) {
+			data.close();
+			throw new IOException(file + " is not a spill file");
+		} else {
+			int version = data.readInt();
+			if (version != VERSION) {
+				data.close();
+				throw new IOException("Unknown spill file version " + version
+						+ " in " + file);
+			}
+		}
+		this.readPosition = HEADER_SIZE;
+		this.writePosition = data.length();
+	}
+
+	/**
+	 * Checks whether there are spilled votes left to read.
+	 * 
+	 * @return True if no votes are left
+	 */
+	boolean isEmpty() {
+		return readPosition >= writePosition;
+	}
+
+	/**
+	 * Appends a vote.
+	 * 
+	 * @param queued
+	 *            The vote and its journal position
+	 * @throws IOException
+	 *             If the write fails
+	 */
+	void append(QueuedVote queued) throws IOException {
+		Vote vote = queued.vote;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(queued.position);
+		out.writeUTF(nullToEmpty(vote.getServiceName()));
+		out.writeUTF(nullToEmpty(vote.getUsername()));
+		out.writeUTF(nullToEmpty(vote.getAddress()));
+		out.writeUTF(nullToEmpty(vote.getTimeStamp()));
+		data.seek(writePosition);
+		data.write(bytes.toByteArray());
+		writePosition = data.getFilePointer();
+	}
+
+	/**
+	 * Reads the oldest spilled vote.
+	 * 
+	 * @return The vote and its journal position, or null if no votes are
+	 *         left
+	 * @throws IOException
+	 *             If the read fails
+	 */
+	QueuedVote next() throws IOException {
+		if (isEmpty())
+			return null;
+		Vote vote = new Vote();
+		long position;
+		try {
+			data.seek(readPosition);
+			position = data.readLong();
+			vote.setServiceName(data.readUTF());
+			vote.setUsername(data.readUTF());
+			vote.setAddress(data.readUTF());
+			vote.setTimeStamp(data.readUTF());
+			readPosition = data.getFilePointer();
+		} catch (EOFException ex) {
+			// A torn write from a crash, nothing after it can be trusted.
+			reset();
+			throw ex;
+		}
+		if (isEmpty())
+			reset();
+		return new QueuedVote(vote, position);
+	}
+
+	/**
+	 * Drops the spilled votes that are in the journal, keeping only those
+	 * that could not be journaled. The journal replays the others when
+	 * Votifier starts, so resuming them as well would deliver them twice.
+	 * 
+	 * @return The number of dropped votes
+	 * @throws IOException
+	 *             If the file cannot be rewritten
+	 */
+	int discardJournaled() throws IOException {
+		List<QueuedVote> kept = new ArrayList<QueuedVote>();
+		int discarded = 0;
+		try {
+			QueuedVote vote;
+			while ((vote = next()) != null) {
+				if (vote.position == QueuedVote.NOT_JOURNALED) {
+					kept.add(vote);
+				} else {
+					discarded++;
+				}
+			}
+		} catch (EOFException ex) {
+			// A torn write, next already dropped the rest.
+		}
+		reset();
+		for (QueuedVote vote : kept) {
+			append(vote);
+		}
+		return discarded;
+	}
+
+	/**
+	 * Closes the file, deleting it if no votes are left.
+	 */
+	void close() {
+		try {
+			data.close();
+		} catch (IOException ignored) {
+		}
+		if (isEmpty())
+			file.delete();
+	}
+
+	/**
+	 * Truncates the file once all votes have been read.
+	 * 
+	 * @throws IOException
+	 *             If the file cannot be truncated
+	 */
+	private void reset() throws IOException {
+		readPosition = HEADER_SIZE;
+		writePosition = HEADER_SIZE;
+		data.setLength(HEADER_SIZE);
+	}
+
+	private static String nullToEmpty(String value) {
+		return value == null ? "" : value;
+	}
+
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.dispatch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.*;
+
+import com.vexsoftware.votifier.journal.VoteJournal;
+import com.vexsoftware.votifier.metrics.VoteMetrics;
+import com.vexsoftware.votifier.model.Vote;
+import com.vexsoftware.votifier.model.VoteListener;
+
+/**
+ * Hands each vote to the queue of every listener and to the
+ * {@link EventQueue} that fires its event, if there is one. Repeated
+ * deliveries of a vote are dropped by the {@link DuplicateVoteFilter}. When a
+ * {@link VoteJournal} is configured, each vote is journaled first, and on
+ * start every listener and the event delivery replay the votes they had not
+ * acknowledged when Votifier last stopped.
+ * <p>
+ * The listeners can be replaced while votes arrive. Dispatching pauses while
+ * the old listeners finish the votes they hold, so no vote is lost in
+ * between.
+ */
+public class VoteDispatcher {
+
+	/** The logger instance. */
+	private static final Logger LOG = Logger.getLogger("Votifier");
+
+	/** How long (in milliseconds) each listener may take to drain on shutdown. */
+	private static final long SHUTDOWN_TIMEOUT = 5000;
+
+	/** The metrics. */
+	private final VoteMetrics metrics;
+
+	/** Whether to log duplicate votes. */
+	private final boolean debug;
+
+	/** The listener queues. */
+	private volatile List<ListenerQueue> queues;
+
+	/**
+	 * Held to dispatch a vote, and held exclusively to replace the listener
+	 * queues.
+	 */
+	private final ReadWriteLock queuesLock = new ReentrantReadWriteLock();
+
+	/** The event queue, or null if no events are fired. */
+	private final EventQueue events;
+
+	/** The vote journal, or null if votes are not journaled. */
+	private final VoteJournal journal;
+
+	/** The duplicate filter, or null if duplicates are not filtered. */
+	private final DuplicateVoteFilter duplicates;
+
+	/**
+	 * Instantiates a new vote dispatcher.
+	 * 
+	 * @param metrics
+	 *            The metrics to record in
+	 * @param debug
+	 *            Whether to log duplicate votes
+	 * @param queues
+	 *            The listener queues
+	 * @param events
+	 *            The event queue, or null to not fire events
+	 * @param journal
+	 *            The vote journal, or null to not journal votes
+	 * @param duplicates
+	 *            The duplicate filter, or null to not filter duplicates
+	 */
+	public VoteDispatcher(VoteMetrics metrics, boolean debug,
+			List<ListenerQueue> queues, EventQueue events, VoteJournal journal,
+			DuplicateVoteFilter duplicates) {
+		this.metrics = metrics;
+		this.debug = debug;
+		this.queues = Collections
+				.unmodifiableList(new ArrayList<ListenerQueue>(queues));
+		this.events = events;
+		this.journal = journal;
+		this.duplicates = duplicates;
+	}
+
+	/**
+	 * Starts the listener queues and the event queue, replaying
+	 * unacknowledged votes from the journal. Must be called before the first
+	 * vote is dispatched.
+	 */
+	public void start() {
+		for (ListenerQueue queue : queues) {
+			startQueue(queue);
+		}
+		if (journal == null) {
+			if (events != null)
+				events.start();
+			return;
+		}
+
+		if (events != null) {
+			VoteJournal.Consumer consumer = journal.consumer("events");
+			events.setJournalConsumer(consumer);
+			events.start();
+			replay(consumer, "events", new VoteJournal.ReplayHandler() {
+				public void replay(Vote vote, long position) {
+					events.enqueue(vote, position);
+				}
+			});
+		}
+		journal.start();
+	}
+
+	/**
+	 * Replaces the listeners. Listeners that stay keep their queues. The
+	 * queues of removed listeners are drained before the new queues are
+	 * created, and votes are not dispatched until the new queues are in
+	 * place.
+	 * 
+	 * @param listeners
+	 *            The new listeners
+	 * @param factory
+	 *            Creates the queues of new listeners
+	 */
+	public void replaceListeners(List<VoteListener> listeners,
+			QueueFactory factory) {
+		queuesLock.writeLock().lock();
+		try {
+			Map<VoteListener, ListenerQueue> removed = new IdentityHashMap<VoteListener, ListenerQueue>();
+			for (ListenerQueue queue : queues) {
+				removed.put(queue.getListener(), queue);
+			}
+			Map<VoteListener, ListenerQueue> kept = new IdentityHashMap<VoteListener, ListenerQueue>();
+			for (VoteListener listener : listeners) {
+				ListenerQueue queue = removed.remove(listener);
+				if (queue != null)
+					kept.put(listener, queue);
+			}
+
+			// Let the old listeners finish before a new one takes their place.
+			for (ListenerQueue queue : removed.values()) {
+				queue.shutdown(SHUTDOWN_TIMEOUT);
+			}
+			List<ListenerQueue> next = new ArrayList<ListenerQueue>();
+			for (VoteListener listener : listeners) {
+				ListenerQueue queue = kept.get(listener);
+				if (queue == null) {
+					try {
+						queue = factory.create(listener);
+					} catch (IOException ex) {
+						LOG.log(Level.SEVERE, "Error creating the queue of the '"
+								+ listener.getClass().getSimpleName()
+								+ "' listener", ex);
+						continue;
+					}
+					startQueue(queue);
+				}
+				next.add(queue);
+			}
+
+			// Forget the journal positions of listeners that are gone.
+			if (journal != null) {
+				for (ListenerQueue queue : removed.values()) {
+					if (!containsName(next, queue.getName()))
+						journal.removeConsumer("listener." + queue.getName());
+				}
+			}
+			queues = Collections.unmodifiableList(next);
+		} finally {
+			queuesLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Dispatches a vote, unless it is a duplicate of a recent one.
+	 * 
+	 * @param vote
+	 *            The vote
+	 * @return False if the vote was a duplicate
+	 */
+	public boolean dispatch(Vote vote) {
+		if (duplicates != null && duplicates.isDuplicate(vote)) {
+			if (debug)
+				LOG.info("Ignoring duplicate vote record -> " + vote);
+			return false;
+		}
+
+		queuesLock.readLock().lock();
+		try {
+			long position = QueuedVote.NOT_JOURNALED;
+			if (journal != null) {
+				try {
+					position = journal.append(vote);
+				} catch (IOException ex) {
+					LOG.log(Level.SEVERE, "Unable to journal vote " + vote, ex);
+				}
+			}
+
+			// Queue the vote for all listeners.
+			for (ListenerQueue queue : queues) {
+				queue.offer(vote, position);
+			}
+
+			// The event is fired from the main server thread, not this one.
+			if (events != null)
+				events.enqueue(vote, position);
+		} finally {
+			queuesLock.readLock().unlock();
+		}
+		return true;
+	}
+
+	/**
+	 * Stops the listener queues, giving them a moment to drain, and fires the
+	 * remaining events. Must be called from the main thread.
+	 */
+	public void shutdown() {
+		for (ListenerQueue queue : queues) {
+			queue.shutdown(SHUTDOWN_TIMEOUT);
+		}
+		if (events != null)
+			events.shutdown();
+		if (journal != null) {
+			journal.close();
+		}
+	}
+
+	/**
+	 * Gets the listener queues.
+	 * 
+	 * @return The listener queues
+	 */
+	public List<ListenerQueue> getQueues() {
+		return queues;
+	}
+
+	/**
+	 * Gets the duplicate filter.
+	 * 
+	 * @return The duplicate filter, or null if duplicates are not filtered
+	 */
+	public DuplicateVoteFilter getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * Gets the event queue.
+	 * 
+	 * @return The event queue, or null if no events are fired
+	 */
+	public EventQueue getEvents() {
+		return events;
+	}
+
+	/**
+	 * Starts a listener queue, replaying the votes its listener had not
+	 * acknowledged.
+	 * 
+	 * @param queue
+	 *            The listener queue
+	 */
+	private void startQueue(final ListenerQueue queue) {
+		queue.setMetrics(metrics);
+		if (journal == null) {
+			queue.start();
+			return;
+		}
+		VoteJournal.Consumer consumer = journal.consumer("listener."
+				+ queue.getName());
+		queue.setJournalConsumer(consumer);
+		queue.start();
+		replay(consumer, "the '" + queue.getName() + "' listener",
+				new VoteJournal.ReplayHandler() {
+					public void replay(Vote vote, long position) {
+						queue.offer(vote, position);
+					}
+				});
+	}
+
+	/**
+	 * Checks whether one of the listener queues has a name.
+	 * 
+	 * @param queues
+	 *            The listener queues
+	 * @param name
+	 *            The name
+	 * @return True if a queue has the name
+	 */
+	private static boolean containsName(List<ListenerQueue> queues,
+			String name) {
+		for (ListenerQueue queue : queues) {
+			if (queue.getName().equals(name))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Replays the unacknowledged votes of a journal consumer.
+	 * 
+	 * @param consumer
+	 *            The journal consumer
+	 * @param description
+	 *            What the consumer is, for log messages
+	 * @param handler
+	 *            The handler to replay to
+	 */
+	private void replay(VoteJournal.Consumer consumer, String description,
+			VoteJournal.ReplayHandler handler) {
+		try {
+			int replayed = consumer.replay(handler);
+			if (replayed > 0) {
+				LOG.info("Replayed " + replayed + " unacknowledged votes to "
+						+ description);
+			}
+		} catch (IOException ex) {
+			LOG.log(Level.SEVERE, "Unable to replay journaled votes to "
+					+ description, ex);
+		}
+	}
+
+	/**
+	 * Creates the queues of new listeners.
+	 */
+	public interface QueueFactory {
+
+		/**
+		 * Creates the queue of a listener.
+		 * 
+		 * @param listener
+		 *            The listener
+		 * @return The listener queue
+		 * @throws IOException
+		 *             If the queue cannot be created
+		 */
+		public ListenerQueue create(VoteListener listener) throws IOException;
+
+	}
+
+}
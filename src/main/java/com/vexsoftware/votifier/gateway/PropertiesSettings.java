@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.gateway;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.vexsoftware.votifier.core.Settings;
+
+/**
+ * The settings of the gateway, read from a properties file. Paths are the
+ * keys, like "pipeline.decrypt_threads=4", and lists are separated by commas.
+ */
+class PropertiesSettings implements Settings {
+
+	/** The properties. */
+	private final Properties properties;
+
+	/**
+	 * Instantiates new settings.
+	 * 
+	 * @param properties
+	 *            The properties
+	 */
+	PropertiesSettings(Properties properties) {
+		this.properties = properties;
+	}
+
+	public String getString(String path, String def) {
+		String value = properties.getProperty(path);
+		return value != null ? value.trim() : def;
+	}
+
+	public int getInt(String path, int def) {
+		try {
+			return Integer.parseInt(getString(path, String.valueOf(def)));
+		} catch (NumberFormatException ex) {
+			return def;
+		}
+	}
+
+	public long getLong(String path, long def) {
+		try {
+			return Long.parseLong(getString(path, String.valueOf(def)));
+		} catch (NumberFormatException ex) {
+			return def;
+		}
+	}
+
+	public double getDouble(String path, double def) {
+		try {
+			return Double.parseDouble(getString(path, String.valueOf(def)));
+		} catch (NumberFormatException ex) {
+			return def;
+		}
+	}
+
+	public boolean getBoolean(String path, boolean def) {
+		String value = getString(path, null);
+		if ("true".equalsIgnoreCase(value))
+			return true;
+		if ("false".equalsIgnoreCase(value))
+			return false;
+		return def;
+	}
+
+	public List<String> getStringList(String path) {
+		List<String> list = new ArrayList<String>();
+		for (String item : getString(path, "").split(",")) {
+			if (item.trim().length() > 0)
+				list.add(item.trim());
+		}
+		return list;
+	}
+
+	public Set<String> getKeys(String path) {
+		Set<String> keys = new TreeSet<String>();
+		String prefix = path + ".";
+		for (String key : properties.stringPropertyNames()) {
+			if (!key.startsWith(prefix))
+				continue;
+			int end = key.indexOf('.', prefix.length());
+			keys.add(key.substring(prefix.length(), end < 0 ? key.length()
+					: end));
+		}
+		return keys;
+	}
+
+	public Map<String, String> getStrings(String path) {
+		Map<String, String> strings = new TreeMap<String, String>();
+		String prefix = path + ".";
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(prefix))
+				strings.put(key.substring(prefix.length()), getString(key, ""));
+		}
+		return strings;
+	}
+
+}
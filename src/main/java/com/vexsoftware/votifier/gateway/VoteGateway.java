@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.gateway;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.*;
+
+import com.vexsoftware.votifier.core.VotifierCore;
+
+/**
+ * Runs Votifier on its own, without a Minecraft server, so that vote intake
+ * can live on its own machine or JVM. The gateway receives votes just like
+ * the plugin, and hands them to the listeners in its listener folder, the flat
+ * file listener and its forwarding targets, such as the Votifiers of the game
+ * servers. There are no events.
+ * <p>
+ * Run it from the plugin jar:
+ * 
+ * <pre>
+ * java -cp Votifier.jar com.vexsoftware.votifier.gateway.VoteGateway --data gateway
+ * </pre>
+ * 
+ * The first run creates the data folder with a {@value #CONFIG_FILE} that has
+ * the same settings as the plugin's config.yml, as well as the keys. The
+ * gateway reads "stats", "top &lt;hour|day|month&gt;", "reloadkeys" and "stop"
+ * commands from the console, and stops cleanly when the JVM is shut down.
+ */
+public class VoteGateway {
+
+	/** The logger instance. */
+	private static final Logger LOG = Logger.getLogger("Votifier");
+
+	/** The name of the configuration file in the data folder. */
+	public static final String CONFIG_FILE = "gateway.properties";
+
+	/** The charset of the configuration file. */
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private VoteGateway() {
+	}
+
+	/**
+	 * Starts the gateway.
+	 * 
+	 * @param args
+	 *            The command line options
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		options.put("data", "gateway");
+		for (int i = 0; i < args.length; i++) {
+			String name = args[i].startsWith("--") ? args[i].substring(2)
+					: null;
+			if (name == null || !options.containsKey(name)
+					|| i + 1 >= args.length) {
+				usage();
+				return;
+			}
+			options.put(name, args[++i]);
+		}
+
+		// One line per record, unless configured otherwise.
+		if (System.getProperty("java.util.logging.SimpleFormatter.format") == null)
+			System.setProperty("java.util.logging.SimpleFormatter.format",
+					"%1$tF %1$tT %4$s %5$s%6$s%n");
+
+		File dataFolder = new File(options.get("data"));
+		Properties properties;
+		try {
+			properties = loadConfiguration(dataFolder);
+		} catch (IOException ex) {
+			LOG.log(Level.SEVERE, "Error reading " + CONFIG_FILE, ex);
+			System.exit(1);
+			return;
+		}
+
+		final VotifierCore core = new VotifierCore(readVersion(), dataFolder,
+				new PropertiesSettings(properties), null);
+		final AtomicBoolean stopped = new AtomicBoolean();
+		Runtime.getRuntime().addShutdownHook(
+				new Thread("Votifier shutdown") {
+					@Override
+					public void run() {
+						if (stopped.compareAndSet(false, true))
+							core.shutdown();
+					}
+				});
+		if (!core.start() || !core.awaitStartup()) {
+			System.exit(1);
+			return;
+		}
+
+		BufferedReader console = new BufferedReader(new InputStreamReader(
+				System.in));
+		String line;
+		while ((line = console.readLine()) != null) {
+			String[] command = line.trim().split("\\s+");
+			if (command[0].equalsIgnoreCase("stop")) {
+				// Shut down here, where the log still works.
+				if (stopped.compareAndSet(false, true))
+					core.shutdown();
+				System.exit(0);
+			} else if (command[0].equalsIgnoreCase("stats")) {
+				print(core.getStats());
+			} else if (command[0].equalsIgnoreCase("top")
+					&& command.length == 2) {
+				print(core.getTop(command[1]));
+			} else if (command[0].equalsIgnoreCase("reloadkeys")) {
+				core.getKeyRotator().reloadLater();
+				System.out.println("Reloading the RSA keys. See the log for the result.");
+			} else if (command[0].length() > 0) {
+				System.out.println("Commands: stats | top <hour|day|month> | reloadkeys | stop");
+			}
+		}
+
+		// Without a console, run until the JVM is shut down.
+		while (true) {
+			Thread.sleep(Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Reads the configuration, creating it with the defaults on the first
+	 * run.
+	 * 
+	 * @param dataFolder
+	 *            The data folder
+	 * @return The configuration
+	 * @throws IOException
+	 *             If the configuration cannot be read or created
+	 */
+	private static Properties loadConfiguration(File dataFolder)
+			throws IOException {
+		File config = new File(dataFolder, CONFIG_FILE);
+		Properties properties = new Properties();
+		if (!config.exists()) {
+			LOG.info("Configuring the Votifier gateway for the first time...");
+			if (!dataFolder.isDirectory() && !dataFolder.mkdirs())
+				throw new IOException("Unable to create " + dataFolder);
+			String listenerFolder = new File(dataFolder, "listeners")
+					.getPath().replace("\\", "/");
+			Writer out = new OutputStreamWriter(new FileOutputStream(
+					config), ISO_8859_1);
+			try {
+				out.write("# Votifier gateway settings, see config.yml of the plugin for their meaning.\n");
+				out.write("# Lists are separated by commas.\n");
+				for (Map.Entry<String, Object> entry : VotifierCore
+						.getDefaults("0.0.0.0", listenerFolder).entrySet()) {
+					Object value = entry.getValue();
+					String text = value instanceof List ? join((List<?>) value)
+							: String.valueOf(value);
+					out.write(entry.getKey() + "=" + text.replace("\\", "\\\\")
+							+ "\n");
+				}
+			} finally {
+				out.close();
+			}
+			LOG.info("Created " + config + ". Votifier listens on port 8192.");
+		}
+		InputStream in = new FileInputStream(config);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return properties;
+	}
+
+	/**
+	 * Joins the items of a list with commas.
+	 * 
+	 * @param list
+	 *            The list
+	 * @return The joined items
+	 */
+	private static String join(List<?> list) {
+		StringBuilder joined = new StringBuilder();
+		for (Object item : list) {
+			if (joined.length() > 0)
+				joined.append(',');
+			joined.append(item);
+		}
+		return joined.toString();
+	}
+
+	/**
+	 * Reads the Votifier version from the plugin.yml in the jar.
+	 * 
+	 * @return The version, or "unknown" if there is no plugin.yml
+	 */
+	private static String readVersion() {
+		InputStream in = VoteGateway.class.getResourceAsStream("/plugin.yml");
+		if (in == null)
+			return "unknown";
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					in, "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith("version:"))
+						return line.substring("version:".length()).trim();
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException ignored) {
+		}
+		return "unknown";
+	}
+
+	/**
+	 * Prints lines to the console.
+	 * 
+	 * @param lines
+	 *            The lines
+	 */
+	private static void print(List<String> lines) {
+		for (String line : lines) {
+			System.out.println(line);
+		}
+	}
+
+	/**
+	 * Prints the command line options and their defaults, then exits.
+	 */
+	private static void usage() {
+		System.err.println("Usage: java -cp Votifier.jar "
+				+ VoteGateway.class.getName() + " [options]");
+		System.err.println("  --data <directory>     Data folder with " + CONFIG_FILE + " and the keys (default gateway)");
+		System.exit(1);
+	}
+
+}
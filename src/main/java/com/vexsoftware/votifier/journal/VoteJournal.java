@@ -0,0 +1,640 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.journal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.*;
+import java.util.zip.CRC32;
+
+import com.vexsoftware.votifier.model.Vote;
+import com.vexsoftware.votifier.util.NamedThreadFactory;
+
+/**
+ * A crash-safe, append-only log of received votes. Votes are appended to
+ * memory-mapped segment files before they are handed to the listeners, and a
+ * background thread forces the written segment to disk and saves the
+ * consumers' offsets at a fixed interval, so many votes share a single sync.
+ * <p>
+ * Every listener queue and the event delivery is a {@link Consumer} that
+ * acknowledges the position after each vote it handled, and every vote is
+ * tracked by each consumer as it is appended. Votes may be handled out of
+ * order, but a consumer's saved position never passes a vote it has not
+ * handled yet. After a crash each consumer replays the votes after its last
+ * saved position, which gives at-least-once delivery. Segments that every
+ * consumer is done with are deleted.
+ * <p>
+ * A record is the payload length, the CRC32 of the payload and the payload
+ * itself. A length of zero marks the end of a segment's data; a record whose
+ * checksum does not match is a torn write and ends the data as well.
+ */
+public class VoteJournal {
+
+	/** The logger instance. */
+	private static final Logger LOG = Logger.getLogger("Votifier");
+
+	/** The file name extension of segment files. */
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	/** The name of the consumer offset file. */
+	private static final String OFFSETS_FILE = "offsets.properties";
+
+	/** The size of a record header. */
+	private static final int HEADER_SIZE = 8;
+
+	/** The smallest allowed segment size. */
+	private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+
+	/** The journal directory. */
+	private final File directory;
+
+	/** The size of a segment file. */
+	private final int segmentSize;
+
+	/** How long (in milliseconds) between syncs. */
+	private final long flushInterval;
+
+	/** The segment files by base position. */
+	private final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+
+	/** The registered consumers. */
+	private final Map<String, Consumer> consumers = new ConcurrentHashMap<String, Consumer>();
+
+	/** The consumer positions saved by the previous run. */
+	private final Properties savedOffsets = new Properties();
+
+	/** The checksum used for appends. */
+	private final CRC32 checksum = new CRC32();
+
+	/** The active segment. */
+	private MappedByteBuffer active;
+
+	/** The base position of the active segment. */
+	private long activeBase;
+
+	/** The write position within the active segment. */
+	private int writePosition;
+
+	/** Set when votes were appended since the last sync. */
+	private volatile boolean appended;
+
+	/** Set when votes were acknowledged since the offsets were last saved. */
+	private volatile boolean acknowledged;
+
+	/** The background sync thread. */
+	private Thread flusher;
+
+	/** The running flag. */
+	private volatile boolean running;
+
+	/**
+	 * Opens a journal, recovering the data of a previous run.
+	 * 
+	 * @param directory
+	 *            The journal directory
+	 * @param segmentSize
+	 *            The size (in bytes) of a segment file
+	 * @param flushInterval
+	 *            How long (in milliseconds) between syncs
+	 * @throws IOException
+	 *             If the journal cannot be opened
+	 */
+	public VoteJournal(File directory, int segmentSize, long flushInterval)
+			throws IOException {
+		this.directory = directory;
+		this.segmentSize = Math.max(MIN_SEGMENT_SIZE, segmentSize);
+		this.flushInterval = flushInterval;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create journal directory "
+					+ directory);
+		File offsets = new File(directory, OFFSETS_FILE);
+		if (offsets.exists()) {
+			FileInputStream in = new FileInputStream(offsets);
+			try {
+				savedOffsets.load(in);
+			} finally {
+				in.close();
+			}
+		}
+
+		for (File file : directory.listFiles()) {
+			String name = file.getName();
+			if (!name.endsWith(SEGMENT_SUFFIX))
+				continue;
+			try {
+				segments.put(Long.parseLong(name.substring(0, name.length()
+						- SEGMENT_SUFFIX.length())), file);
+			} catch (NumberFormatException ex) {
+				LOG.warning("Ignoring unknown journal file " + file);
+			}
+		}
+
+		if (segments.isEmpty()) {
+			openSegment(0);
+		} else {
+			recover(segments.lastKey());
+		}
+	}
+
+	/**
+	 * Starts the background sync.
+	 */
+	public void start() {
+		running = true;
+		flusher = new NamedThreadFactory("Votifier journal")
+				.newThread(new Runnable() {
+					public void run() {
+						while (running) {
+							try {
+								Thread.sleep(flushInterval);
+							} catch (InterruptedException ex) {
+								break;
+							}
+							flush();
+						}
+					}
+				});
+		flusher.start();
+	}
+
+	/**
+	 * Appends a vote. The vote is safe from a process crash once this returns,
+	 * and safe from a power loss after the next sync. Every registered
+	 * consumer tracks the vote, and must acknowledge it.
+	 * 
+	 * @param vote
+	 *            The vote
+	 * @return The position after the vote, to be acknowledged by consumers
+	 * @throws IOException
+	 *             If the vote cannot be written
+	 */
+	public synchronized long append(Vote vote) throws IOException {
+		byte[] payload = encode(vote);
+		if (writePosition + HEADER_SIZE + payload.length > segmentSize) {
+			active.force();
+			openSegment(activeBase + writePosition);
+		}
+		checksum.reset();
+		checksum.update(payload, 0, payload.length);
+
+		// The length goes in last, it is what makes the record visible.
+		active.putInt(writePosition + 4, (int) checksum.getValue());
+		active.position(writePosition + HEADER_SIZE);
+		active.put(payload);
+		active.putInt(writePosition, payload.length);
+		writePosition += HEADER_SIZE + payload.length;
+		appended = true;
+		long position = activeBase + writePosition;
+		for (Consumer consumer : consumers.values()) {
+			consumer.track(position);
+		}
+		return position;
+	}
+
+	/**
+	 * Gets or registers a consumer. A consumer that was not seen before starts
+	 * at the end of the journal; otherwise it starts after the last vote it
+	 * acknowledged.
+	 * 
+	 * @param name
+	 *            The unique consumer name
+	 * @return The consumer
+	 */
+	public synchronized Consumer consumer(String name) {
+		Consumer consumer = consumers.get(name);
+		if (consumer == null) {
+			long end = activeBase + writePosition;
+			long position = end;
+			String saved = savedOffsets.getProperty(name);
+			if (saved != null) {
+				try {
+					position = Math.max(segments.firstKey(),
+							Math.min(end, Long.parseLong(saved)));
+				} catch (NumberFormatException ex) {
+					LOG.warning("Ignoring invalid journal offset for " + name);
+				}
+			}
+			consumer = new Consumer(name, position);
+			consumers.put(name, consumer);
+		}
+		return consumer;
+	}
+
+	/**
+	 * Unregisters a consumer that is gone for good, so that it no longer
+	 * keeps segments from being deleted. Its position is forgotten.
+	 * 
+	 * @param name
+	 *            The consumer name
+	 */
+	public synchronized void removeConsumer(String name) {
+		consumers.remove(name);
+		savedOffsets.remove(name);
+	}
+
+	/**
+	 * Stops the background sync and syncs one last time.
+	 */
+	public void close() {
+		running = false;
+		if (flusher != null) {
+			flusher.interrupt();
+			try {
+				flusher.join(flushInterval + 1000);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * Forces appended votes to disk, saves the consumer offsets and deletes
+	 * the segments every consumer is done with.
+	 */
+	private void flush() {
+		MappedByteBuffer segment;
+		synchronized (this) {
+			segment = active;
+		}
+		if (appended) {
+			appended = false;
+			segment.force();
+		}
+		if (acknowledged) {
+			acknowledged = false;
+			try {
+				saveOffsets();
+			} catch (IOException ex) {
+				LOG.log(Level.WARNING, "Unable to save journal offsets", ex);
+			}
+			deleteConsumedSegments();
+		}
+	}
+
+	/**
+	 * Writes the positions of all consumers, replacing the offset file.
+	 * 
+	 * @throws IOException
+	 *             If the file cannot be written
+	 */
+	private void saveOffsets() throws IOException {
+		Properties offsets = new Properties();
+		for (Consumer consumer : consumers.values()) {
+			offsets.setProperty(consumer.getName(),
+					Long.toString(consumer.getPosition()));
+		}
+		File file = new File(directory, OFFSETS_FILE);
+		File temp = new File(directory, OFFSETS_FILE + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			offsets.store(out, "Votifier journal consumer offsets");
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			// Windows does not rename over existing files.
+			file.delete();
+			if (!temp.renameTo(file))
+				throw new IOException("Cannot replace " + file);
+		}
+	}
+
+	/**
+	 * Deletes segments that all consumers have read past.
+	 */
+	private synchronized void deleteConsumedSegments() {
+		long lowest = activeBase + writePosition;
+		for (Consumer consumer : consumers.values()) {
+			lowest = Math.min(lowest, consumer.getPosition());
+		}
+		while (segments.size() > 1) {
+			Map.Entry<Long, File> oldest = segments.firstEntry();
+			Long next = segments.higherKey(oldest.getKey());
+			if (next > lowest)
+				break;
+			if (!oldest.getValue().delete()) {
+				// Still mapped on some platforms; try again later.
+				break;
+			}
+			segments.remove(oldest.getKey());
+		}
+	}
+
+	/**
+	 * Creates and maps a new, empty segment.
+	 * 
+	 * @param base
+	 *            The base position of the segment
+	 * @throws IOException
+	 *             If the segment cannot be created
+	 */
+	private void openSegment(long base) throws IOException {
+		File file = new File(directory, String.format("%020d%s", base,
+				SEGMENT_SUFFIX));
+		active = map(file, FileChannel.MapMode.READ_WRITE);
+		activeBase = base;
+		writePosition = 0;
+		segments.put(base, file);
+	}
+
+	/**
+	 * Maps the last segment of a previous run and finds the end of its data.
+	 * Anything after a torn record is cleared.
+	 * 
+	 * @param base
+	 *            The base position of the segment
+	 * @throws IOException
+	 *             If the segment cannot be mapped
+	 */
+	private void recover(long base) throws IOException {
+		active = map(segments.get(base), FileChannel.MapMode.READ_WRITE);
+		activeBase = base;
+		writePosition = 0;
+		int next;
+		while ((next = nextRecord(active, writePosition)) > 0) {
+			writePosition = next;
+		}
+		for (int i = writePosition; i < segmentSize; i++) {
+			active.put(i, (byte) 0);
+		}
+	}
+
+	/**
+	 * Maps a segment file.
+	 * 
+	 * @param file
+	 *            The segment file
+	 * @param mode
+	 *            The mapping mode
+	 * @return The mapped segment
+	 * @throws IOException
+	 *             If the file cannot be mapped
+	 */
+	private MappedByteBuffer map(File file, FileChannel.MapMode mode)
+			throws IOException {
+		RandomAccessFile data = new RandomAccessFile(file,
+				mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+		try {
+			long size = mode == FileChannel.MapMode.READ_ONLY ? data.length()
+					: segmentSize;
+			return data.getChannel().map(mode, 0, size);
+		} finally {
+			// The mapping stays valid after the file is closed.
+			data.close();
+		}
+	}
+
+	/**
+	 * Finds the record following the one at a segment offset.
+	 * 
+	 * @param segment
+	 *            The segment
+	 * @param offset
+	 *            The offset of the record
+	 * @return The offset of the next record, or -1 if there is no valid
+	 *         record at the offset
+	 */
+	private static int nextRecord(ByteBuffer segment, int offset) {
+		if (offset + HEADER_SIZE > segment.limit())
+			return -1;
+		int length = segment.getInt(offset);
+		if (length <= 0 || offset + HEADER_SIZE + length > segment.limit())
+			return -1;
+		CRC32 crc = new CRC32();
+		for (int i = offset + HEADER_SIZE; i < offset + HEADER_SIZE + length; i++) {
+			crc.update(segment.get(i));
+		}
+		if ((int) crc.getValue() != segment.getInt(offset + 4))
+			return -1;
+		return offset + HEADER_SIZE + length;
+	}
+
+	/**
+	 * Encodes a vote as a record payload.
+	 * 
+	 * @param vote
+	 *            The vote
+	 * @return The payload
+	 * @throws IOException
+	 *             Never
+	 */
+	private static byte[] encode(Vote vote) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(nullToEmpty(vote.getServiceName()));
+		out.writeUTF(nullToEmpty(vote.getUsername()));
+		out.writeUTF(nullToEmpty(vote.getAddress()));
+		out.writeUTF(nullToEmpty(vote.getTimeStamp()));
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a record payload.
+	 * 
+	 * @param segment
+	 *            The segment
+	 * @param offset
+	 *            The offset of the record
+	 * @return The vote
+	 * @throws IOException
+	 *             If the payload is malformed
+	 */
+	private static Vote decode(ByteBuffer segment, int offset)
+			throws IOException {
+		byte[] payload = new byte[segment.getInt(offset)];
+		ByteBuffer view = segment.duplicate();
+		view.position(offset + HEADER_SIZE);
+		view.get(payload);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				payload));
+		Vote vote = new Vote();
+		vote.setServiceName(in.readUTF());
+		vote.setUsername(in.readUTF());
+		vote.setAddress(in.readUTF());
+		vote.setTimeStamp(in.readUTF());
+		return vote;
+	}
+
+	private static String nullToEmpty(String value) {
+		return value == null ? "" : value;
+	}
+
+	/**
+	 * Receives the votes a consumer has not acknowledged yet.
+	 */
+	public interface ReplayHandler {
+
+		/**
+		 * Called for each unacknowledged vote, oldest first.
+		 * 
+		 * @param vote
+		 *            The vote
+		 * @param position
+		 *            The position after the vote
+		 */
+		public void replay(Vote vote, long position);
+
+	}
+
+	/**
+	 * A reader of the journal that keeps track of what it has handled.
+	 */
+	public class Consumer {
+
+		/** The consumer name. */
+		private final String name;
+
+		/** The position after the last acknowledged vote. */
+		private final AtomicLong position;
+
+		/** The positions of the tracked votes that were not handled yet. */
+		private final TreeSet<Long> outstanding = new TreeSet<Long>();
+
+		/** The positions of handled votes that an outstanding one precedes. */
+		private final TreeSet<Long> handled = new TreeSet<Long>();
+
+		private Consumer(String name, long position) {
+			this.name = name;
+			this.position = new AtomicLong(position);
+		}
+
+		/**
+		 * Tracks a vote that is about to be handled. Until it is acknowledged,
+		 * the consumer's position stays before it, even if newer votes are
+		 * acknowledged first. Appended votes are tracked already; replayed
+		 * votes only need to be tracked if they may be handled out of order.
+		 * 
+		 * @param position
+		 *            The position returned by {@link VoteJournal#append(Vote)}
+		 */
+		public synchronized void track(long position) {
+			outstanding.add(position);
+		}
+
+		/**
+		 * Marks a vote as handled. The consumer's position moves past it and
+		 * every vote before it, unless a tracked vote before it is still
+		 * outstanding; then it moves once that vote is handled.
+		 * 
+		 * @param position
+		 *            The position returned by {@link VoteJournal#append(Vote)}
+		 */
+		public synchronized void acknowledge(long position) {
+			outstanding.remove(position);
+			handled.add(position);
+			while (!handled.isEmpty()
+					&& (outstanding.isEmpty() || handled.first() < outstanding
+							.first())) {
+				advance(handled.pollFirst());
+			}
+		}
+
+		/**
+		 * Moves the position forward.
+		 * 
+		 * @param position
+		 *            The new position, ignored if it is not past the current
+		 *            one
+		 */
+		private void advance(long position) {
+			if (this.position.get() < position) {
+				this.position.set(position);
+				acknowledged = true;
+			}
+		}
+
+		/**
+		 * Replays all votes after the last acknowledged one. Should be called
+		 * before new votes are appended.
+		 * 
+		 * @param handler
+		 *            The handler to replay to
+		 * @return The number of replayed votes
+		 * @throws IOException
+		 *             If a segment cannot be read
+		 */
+		public int replay(ReplayHandler handler) throws IOException {
+			TreeMap<Long, File> files;
+			long end;
+			synchronized (VoteJournal.this) {
+				files = new TreeMap<Long, File>(segments);
+				end = activeBase + writePosition;
+			}
+			long from = position.get();
+			int replayed = 0;
+			Long base = files.floorKey(from);
+			while (base != null && base < end) {
+				ByteBuffer segment;
+				synchronized (VoteJournal.this) {
+					segment = base == activeBase ? active.duplicate() : map(
+							files.get(base), FileChannel.MapMode.READ_ONLY);
+				}
+				int offset = (int) Math.max(0, from - base);
+				int next;
+				while ((next = nextRecord(segment, offset)) > 0
+						&& base + next <= end) {
+					handler.replay(decode(segment, offset), base + next);
+					replayed++;
+					offset = next;
+				}
+				base = files.higherKey(base);
+			}
+			return replayed;
+		}
+
+		/**
+		 * Gets the name.
+		 * 
+		 * @return The name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Gets the position after the last acknowledged vote.
+		 * 
+		 * @return The position
+		 */
+		public long getPosition() {
+			return position.get();
+		}
+
+	}
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations. Each power of two is split into four
+ * buckets, so recorded values are kept to within 25% while the histogram
+ * stays a fixed 256 counters no matter how many values are recorded.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+	/** The number of buckets: four per bit of a long. */
+	private static final int BUCKETS = 256;
+
+	/** The bucket counts. */
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	/** The number of recorded values. */
+	private final AtomicLong count = new AtomicLong();
+
+	/** The sum of the recorded values. */
+	private final AtomicLong sum = new AtomicLong();
+
+	/** The largest recorded value. */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records the time since a start time from {@link VoteMetrics#start()}.
+	 * Does nothing if metrics are disabled.
+	 * 
+	 * @param start
+	 *            The start time
+	 */
+	public void recordSince(long start) {
+		if (start != 0)
+			record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Records a duration.
+	 * 
+	 * @param nanos
+	 *            The duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		buckets.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long current;
+		while ((current = max.get()) < nanos) {
+			if (max.compareAndSet(current, nanos))
+				break;
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMeanMicros() {
+		long n = count.get();
+		return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(sum.get() / n);
+	}
+
+	public long getMaxMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(max.get());
+	}
+
+	public long get50thPercentileMicros() {
+		return getPercentileMicros(0.5);
+	}
+
+	public long get99thPercentileMicros() {
+		return getPercentileMicros(0.99);
+	}
+
+	public long get999thPercentileMicros() {
+		return getPercentileMicros(0.999);
+	}
+
+	/**
+	 * Estimates a percentile of the recorded values.
+	 * 
+	 * @param quantile
+	 *            The quantile, between 0 and 1
+	 * @return The estimate in microseconds, or 0 if nothing was recorded
+	 */
+	public long getPercentileMicros(double quantile) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(quantile * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return TimeUnit.NANOSECONDS.toMicros(Math.min(max.get(),
+						upperBound(i)));
+			}
+		}
+		return getMaxMicros();
+	}
+
+	/**
+	 * Summarizes the histogram on one line.
+	 * 
+	 * @return The summary
+	 */
+	@Override
+	public String toString() {
+		return "count " + getCount() + ", mean " + getMeanMicros()
+				+ "us, p50 " + get50thPercentileMicros() + "us, p99 "
+				+ get99thPercentileMicros() + "us, max " + getMaxMicros()
+				+ "us";
+	}
+
+	private static int bucket(long value) {
+		if (value < 4)
+			return (int) value;
+		int log = 63 - Long.numberOfLeadingZeros(value);
+		return (log << 2) | (int) ((value >>> (log - 2)) & 3);
+	}
+
+	private static long upperBound(int bucket) {
+		if (bucket < 4)
+			return bucket;
+		int log = bucket >>> 2;
+		long upper = (long) (5 + (bucket & 3)) << (log - 2);
+		return upper < 0 ? Long.MAX_VALUE : upper - 1;
+	}
+
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.*;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for every stage of the vote path. Timing a
+ * stage is a call to {@link #start()} followed by
+ * {@link LatencyHistogram#recordSince(long)}; when metrics are disabled
+ * {@link #start()} returns 0 without reading the clock and nothing is
+ * recorded, so instrumented code costs a single branch.
+ * <p>
+ * The counters and histograms are published as MBeans under the
+ * "com.vexsoftware.votifier" domain.
+ */
+public class VoteMetrics implements VoteMetricsMBean {
+
+	/** The logger instance. */
+	private static final Logger LOG = Logger.getLogger("Votifier");
+
+	/** The JMX domain. */
+	private static final String DOMAIN = "com.vexsoftware.votifier";
+
+	/**
+	 * A timed stage of the vote path.
+	 */
+	public enum Stage {
+		/** Accepting a connection and sending the greeting. */
+		ACCEPT,
+		/** Receiving the vote block, from accept to the last byte. */
+		READ,
+		/** Decrypting the vote block. */
+		DECRYPT,
+		/** Verifying the signature of a protocol v2 packet. */
+		VERIFY,
+		/** Parsing the decrypted vote block. */
+		PARSE,
+		/** Firing a {@code VotifierEvent} on the main thread. */
+		EVENT
+	}
+
+	/**
+	 * A counted occurrence on the vote path.
+	 */
+	public enum Counter {
+		/** Accepted connections. */
+		CONNECTIONS,
+		/** Connections turned away by the throttle. */
+		THROTTLED,
+		/** Connections that did not send a complete block in time. */
+		TIMED_OUT,
+		/** Connections that failed with an I/O error. */
+		PROTOCOL_ERRORS,
+		/** Blocks dropped because the decrypt queue was full. */
+		PIPELINE_REJECTIONS,
+		/** Blocks that could not be decrypted or parsed. */
+		DECRYPT_FAILURES,
+		/** Protocol v2 packets that failed verification. */
+		SIGNATURE_FAILURES,
+		/** Connections and packets turned away while overloaded. */
+		SHED,
+		/** Votes that were received. */
+		VOTES
+	}
+
+	/** The enabled flag. */
+	private final boolean enabled;
+
+	/** The stage histograms. */
+	private final Map<Stage, LatencyHistogram> stages = new EnumMap<Stage, LatencyHistogram>(
+			Stage.class);
+
+	/** The listener histograms, by listener name. */
+	private final ConcurrentMap<String, LatencyHistogram> listeners = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	/** The counters. */
+	private final AtomicLongArray counters = new AtomicLongArray(
+			Counter.values().length);
+
+	/** The registered MBean names. */
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+	/** The overloaded flag, kept even if metrics are disabled. */
+	private volatile boolean overloaded;
+
+	/**
+	 * Instantiates a new set of metrics.
+	 * 
+	 * @param enabled
+	 *            Whether anything is recorded
+	 */
+	public VoteMetrics(boolean enabled) {
+		this.enabled = enabled;
+		for (Stage stage : Stage.values()) {
+			stages.put(stage, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * Checks whether metrics are recorded.
+	 * 
+	 * @return True if enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Gets the start time for timing a stage.
+	 * 
+	 * @return The current time, or 0 if metrics are disabled
+	 */
+	public long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Records the time since a start time for a stage.
+	 * 
+	 * @param stage
+	 *            The stage
+	 * @param start
+	 *            The start time from {@link #start()}
+	 */
+	public void record(Stage stage, long start) {
+		if (start != 0)
+			stages.get(stage).record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Counts an occurrence.
+	 * 
+	 * @param counter
+	 *            The counter
+	 */
+	public void increment(Counter counter) {
+		if (enabled)
+			counters.incrementAndGet(counter.ordinal());
+	}
+
+	/**
+	 * Gets a counter.
+	 * 
+	 * @param counter
+	 *            The counter
+	 * @return The count
+	 */
+	public long get(Counter counter) {
+		return counters.get(counter.ordinal());
+	}
+
+	/**
+	 * Gets the histogram of a stage.
+	 * 
+	 * @param stage
+	 *            The stage
+	 * @return The histogram
+	 */
+	public LatencyHistogram getStage(Stage stage) {
+		return stages.get(stage);
+	}
+
+	/**
+	 * Gets the histogram of a listener's vote handling, creating it if
+	 * needed.
+	 * 
+	 * @param name
+	 *            The listener name
+	 * @return The histogram
+	 */
+	public LatencyHistogram getListener(String name) {
+		LatencyHistogram histogram = listeners.get(name);
+		if (histogram == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			histogram = listeners.putIfAbsent(name, created);
+			if (histogram == null) {
+				histogram = created;
+				synchronized (this) {
+					if (!registered.isEmpty())
+						register(created, "Listener", name);
+				}
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Gets the listener histograms.
+	 * 
+	 * @return The histograms by listener name, sorted by name
+	 */
+	public Map<String, LatencyHistogram> getListeners() {
+		return Collections.unmodifiableMap(new TreeMap<String, LatencyHistogram>(
+				listeners));
+	}
+
+	/**
+	 * Publishes the metrics as MBeans. Does nothing if metrics are disabled.
+	 */
+	public synchronized void registerMBeans() {
+		if (!enabled || !registered.isEmpty())
+			return;
+		register(this, "Counters", null);
+		for (Map.Entry<Stage, LatencyHistogram> entry : stages.entrySet()) {
+			register(entry.getValue(), "Stage", entry.getKey().name()
+					.toLowerCase());
+		}
+		for (Map.Entry<String, LatencyHistogram> entry : listeners.entrySet()) {
+			register(entry.getValue(), "Listener", entry.getKey());
+		}
+	}
+
+	/**
+	 * Removes the published MBeans.
+	 */
+	public synchronized void unregisterMBeans() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : registered) {
+			try {
+				server.unregisterMBean(name);
+			} catch (Exception ignored) {
+			}
+		}
+		registered.clear();
+	}
+
+	public long getConnections() {
+		return get(Counter.CONNECTIONS);
+	}
+
+	public long getThrottledConnections() {
+		return get(Counter.THROTTLED);
+	}
+
+	public long getTimedOutConnections() {
+		return get(Counter.TIMED_OUT);
+	}
+
+	public long getProtocolErrors() {
+		return get(Counter.PROTOCOL_ERRORS);
+	}
+
+	public long getPipelineRejections() {
+		return get(Counter.PIPELINE_REJECTIONS);
+	}
+
+	public long getDecryptFailures() {
+		return get(Counter.DECRYPT_FAILURES);
+	}
+
+	public long getSignatureFailures() {
+		return get(Counter.SIGNATURE_FAILURES);
+	}
+
+	public long getVotes() {
+		return get(Counter.VOTES);
+	}
+
+	public long getShed() {
+		return get(Counter.SHED);
+	}
+
+	public boolean isOverloaded() {
+		return overloaded;
+	}
+
+	/**
+	 * Sets the overloaded flag.
+	 * 
+	 * @param overloaded
+	 *            Whether Votifier is overloaded
+	 */
+	public void setOverloaded(boolean overloaded) {
+		this.overloaded = overloaded;
+	}
+
+	/**
+	 * Registers an MBean.
+	 * 
+	 * @param bean
+	 *            The MBean
+	 * @param type
+	 *            The type key of its name
+	 * @param name
+	 *            The name key of its name, or null. It is quoted, as
+	 *            listener names may contain any character.
+	 */
+	private synchronized void register(Object bean, String type, String name) {
+		try {
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type
+					+ (name == null ? "" : ",name=" + ObjectName.quote(name)));
+			if (registered.contains(objectName))
+				return;
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(bean, objectName);
+			registered.add(objectName);
+		} catch (Exception ex) {
+			LOG.log(Level.WARNING, "Unable to register the " + type
+					+ " MBean", ex);
+		}
+	}
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.metrics;
+
+/**
+ * The JMX view of the {@link VoteMetrics} counters.
+ */
+public interface VoteMetricsMBean {
+
+	public long getConnections();
+
+	public long getThrottledConnections();
+
+	public long getTimedOutConnections();
+
+	public long getProtocolErrors();
+
+	public long getPipelineRejections();
+
+	public long getDecryptFailures();
+
+	public long getSignatureFailures();
+
+	public long getVotes();
+
+	public long getShed();
+
+	public boolean isOverloaded();
+
+}
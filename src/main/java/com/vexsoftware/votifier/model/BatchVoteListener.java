@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2011 Vex Software LLC
+ * This file is part of Votifier.
+ * 
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.model;
+
+import java.util.List;
+
+/**
+ * A listener that receives votes in batches, so that it can write many votes
+ * with a single I/O operation. Batches are collected until they reach the
+ * configured size or the configured linger time has passed, whichever comes
+ * first. Votifier never calls {@link #voteMade(Vote)} on a batch listener.
+ */
+public interface BatchVoteListener extends VoteListener {
+
+	/**
+	 * Called with one or more votes, in the order they were received.
+	 * 
+	 * @param votes
+	 *            The votes that were made
+	 */
+	public void votesMade(List<Vote> votes);
+
+}
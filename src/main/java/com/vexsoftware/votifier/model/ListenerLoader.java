@@ -1,13 +1,24 @@
 package com.vexsoftware.votifier.model;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.*;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
-import com.vexsoftware.votifier.Votifier;
+import com.vexsoftware.votifier.util.NamedThreadFactory;
 
 /**
  * Loads vote listeners. Listeners that cannot be instantiated will be skipped.
+ * <p>
+ * The listener folder may hold loose class files in the default package and
+ * listener jars. A jar names its listeners in a
+ * {@code META-INF/services/com.vexsoftware.votifier.model.VoteListener} file,
+ * one class name per line, and gets a class loader of its own. The class files
+ * and jars are loaded in parallel.
  * 
  * @author Blake Beaupain
  */
@@ -16,14 +27,32 @@ public class ListenerLoader {
 	/** The logger instance. */
 	private static final Logger LOG = Logger.getLogger("Votifier");
 
+	/** The descriptor that lists the listeners in a jar. */
+	public static final String SERVICE_FILE = "META-INF/services/"
+			+ VoteListener.class.getName();
+
 	/**
-	 * Loads all listener class files from a directory.
+	 * Loads all listener class files and listener jars from a directory.
 	 * 
 	 * @param directory
 	 *            The directory
 	 */
 	public static List<VoteListener> load(String directory) /* throws Exception */{
+		return loadSet(directory).getListeners();
+	}
+
+	/**
+	 * Loads all listener class files and listener jars from a directory. Jars
+	 * are loaded from copies, so the originals can be replaced while their
+	 * listeners are in use.
+	 * 
+	 * @param directory
+	 *            The directory
+	 * @return The listeners and their class loaders
+	 */
+	public static ListenerSet loadSet(String directory) {
 		List<VoteListener> listeners = new ArrayList<VoteListener>();
+		List<URLClassLoader> loaders = new ArrayList<URLClassLoader>();
 		File dir = new File(directory);
 
 		// Verify configured vote listener directory exists
@@ -31,48 +60,161 @@ public class ListenerLoader {
 			LOG.log(Level.WARNING,
 					"No listeners loaded! Cannot find listener directory '"
 							+ dir + "' ");
-			return listeners;
+			return new ListenerSet(listeners, loaders, null);
 		}
 
-		// Load the vote listener instances.
-		ClassLoader loader;
+		// Set up a task for each class file and each jar.
+		List<Callable<List<VoteListener>>> tasks = new ArrayList<Callable<List<VoteListener>>>();
+		URLClassLoader classLoader = null;
+		File copies = null;
+		File[] files = dir.listFiles();
+		Arrays.sort(files);
+		for (File file : files) {
+			final String fileName = file.getName();
+			try {
+				if (fileName.endsWith(".class")) {
+					if (classLoader == null) {
+						classLoader = new URLClassLoader(
+								new URL[] { dir.toURI().toURL() },
+								VoteListener.class.getClassLoader());
+						loaders.add(classLoader);
+					}
+					final ClassLoader loader = classLoader;
+					tasks.add(new Callable<List<VoteListener>>() {
+						public List<VoteListener> call() {
+							return loadClass(loader, fileName.substring(0,
+									fileName.lastIndexOf(".")));
+						}
+					});
+				} else if (fileName.endsWith(".jar")) {
+					if (copies == null) {
+						copies = Files.createTempDirectory(
+								"votifier-listeners").toFile();
+					}
+					File copy = new File(copies, fileName);
+					Files.copy(file.toPath(), copy.toPath());
+					final URLClassLoader loader = new URLClassLoader(
+							new URL[] { copy.toURI().toURL() },
+							VoteListener.class.getClassLoader());
+					loaders.add(loader);
+					tasks.add(new Callable<List<VoteListener>>() {
+						public List<VoteListener> call() {
+							return loadJar(loader, fileName);
+						}
+					});
+				}
+			} catch (IOException ex) {
+				LOG.log(Level.SEVERE, "Error while configuring the class loader for '"
+						+ fileName + "'", ex);
+			}
+		}
+		if (tasks.isEmpty())
+			return new ListenerSet(listeners, loaders, copies);
+
+		// Load them in parallel, keeping the order of the files.
+		ExecutorService pool = Executors.newFixedThreadPool(
+				Math.min(tasks.size(), Runtime.getRuntime()
+						.availableProcessors()), new NamedThreadFactory(
+						"Votifier listener loader"));
 		try {
-			loader = new URLClassLoader(new URL[] { dir.toURI().toURL() },
-					VoteListener.class.getClassLoader());
-		} catch (MalformedURLException ex) {
-			LOG.log(Level.SEVERE,
-					"Error while configuring listener class loader", ex);
-			return listeners;
+			for (Future<List<VoteListener>> result : pool.invokeAll(tasks)) {
+				try {
+					listeners.addAll(result.get());
+				} catch (ExecutionException ex) {
+					LOG.log(Level.WARNING, "Error loading listeners",
+							ex.getCause());
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.shutdown();
 		}
-		for (File file : dir.listFiles()) {
-			if (!file.getName().endsWith(".class")) {
-				continue; // Only load class files!
+		return new ListenerSet(listeners, loaders, copies);
+	}
+
+	/**
+	 * Loads a listener from a class file.
+	 * 
+	 * @param loader
+	 *            The class loader of the listener directory
+	 * @param name
+	 *            The class name
+	 * @return The listener, or nothing if it cannot be loaded
+	 */
+	private static List<VoteListener> loadClass(ClassLoader loader, String name) {
+		try {
+			Class<?> clazz = loader.loadClass(name);
+			Object object = clazz.newInstance();
+			if (!(object instanceof VoteListener)) {
+				LOG.info("Not a vote listener: " + clazz.getSimpleName());
+				return Collections.emptyList();
 			}
-			String name = file.getName().substring(0,
-					file.getName().lastIndexOf("."));
+			VoteListener listener = (VoteListener) object;
+			LOG.info("Loaded vote listener: "
+					+ listener.getClass().getSimpleName());
+			return Collections.singletonList(listener);
+		}
+		/*
+		 * Catch the usual definition and dependency problems with a loader and
+		 * skip the problem listener.
+		 */
+		catch (Exception ex) {
+			LOG.log(Level.WARNING, "Error loading '" + name
+					+ "' listener! Listener disabled.");
+		} catch (Error ex) {
+			LOG.log(Level.WARNING, "Error loading '" + name
+					+ "' listener! Listener disabled.");
+		}
+		return Collections.emptyList();
+	}
 
+	/**
+	 * Loads the listeners named in a jar's service file.
+	 * 
+	 * @param loader
+	 *            The class loader of the jar
+	 * @param jarName
+	 *            The file name of the jar
+	 * @return The listeners that could be loaded
+	 */
+	private static List<VoteListener> loadJar(URLClassLoader loader,
+			String jarName) {
+		List<VoteListener> listeners = new ArrayList<VoteListener>();
+		URL service = loader.findResource(SERVICE_FILE);
+		if (service == null) {
+			LOG.warning("Not a listener jar, it has no " + SERVICE_FILE
+					+ ": " + jarName);
+			return listeners;
+		}
+		List<String> names = new ArrayList<String>();
+		try {
+			URLConnection connection = service.openConnection();
+			// Read the copy directly, so it can be deleted on reload.
+			connection.setUseCaches(false);
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					connection.getInputStream(), "UTF-8"));
 			try {
-				Class<?> clazz = loader.loadClass(name);
-				Object object = clazz.newInstance();
-				if (!(object instanceof VoteListener)) {
-					LOG.info("Not a vote listener: " + clazz.getSimpleName());
-					continue;
+				String line;
+				while ((line = in.readLine()) != null) {
+					int comment = line.indexOf('#');
+					if (comment >= 0)
+						line = line.substring(0, comment);
+					line = line.trim();
+					if (line.length() > 0)
+						names.add(line);
 				}
-				VoteListener listener = (VoteListener) object;
-				listeners.add(listener);
-				LOG.info("Loaded vote listener: "
-						+ listener.getClass().getSimpleName());
+			} finally {
+				in.close();
 			}
-			/*
-			 * Catch the usual definition and dependency problems with a loader
-			 * and skip the problem listener.
-			 */
-			catch (Exception ex) {
-				LOG.log(Level.WARNING, "Error loading '" + name
-						+ "' listener! Listener disabled.");
-			} catch (Error ex) {
-				LOG.log(Level.WARNING, "Error loading '" + name
-						+ "' listener! Listener disabled.");
+		} catch (IOException ex) {
+			LOG.log(Level.WARNING, "Error reading " + SERVICE_FILE + " in "
+					+ jarName, ex);
+			return listeners;
+		}
+		for (String name : names) {
+			for (VoteListener listener : loadClass(loader, name)) {
+				listeners.add(listener);
 			}
 		}
 		return listeners;
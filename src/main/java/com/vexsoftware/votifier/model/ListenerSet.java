@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The vote listeners loaded from the listener folder at one time, with the
+ * class loaders they came from. A reload creates a new set; the old one is
+ * closed once its listeners have received their last votes.
+ */
+public class ListenerSet {
+
+	/** The logger instance. */
+	private static final Logger LOG = Logger.getLogger("Votifier");
+
+	/** The listeners. */
+	private final List<VoteListener> listeners;
+
+	/** The class loaders of the listeners. */
+	private final List<URLClassLoader> loaders;
+
+	/** The directory of the listener jar copies, or null. */
+	private final File copies;
+
+	/**
+	 * Instantiates a new listener set.
+	 * 
+	 * @param listeners
+	 *            The listeners
+	 * @param loaders
+	 *            The class loaders of the listeners
+	 * @param copies
+	 *            The directory the listener jars were copied to, or null
+	 */
+	public ListenerSet(List<VoteListener> listeners,
+			List<URLClassLoader> loaders, File copies) {
+		this.listeners = Collections
+				.unmodifiableList(new ArrayList<VoteListener>(listeners));
+		this.loaders = new ArrayList<URLClassLoader>(loaders);
+		this.copies = copies;
+	}
+
+	/**
+	 * Gets the listeners.
+	 * 
+	 * @return The listeners
+	 */
+	public List<VoteListener> getListeners() {
+		return listeners;
+	}
+
+	/**
+	 * Closes the class loaders and deletes the jar copies. The listeners must
+	 * not be used afterwards.
+	 */
+	public void close() {
+		for (URLClassLoader loader : loaders) {
+			try {
+				loader.close();
+			} catch (IOException ex) {
+				LOG.log(Level.WARNING, "Unable to close a listener class loader",
+						ex);
+			}
+		}
+		if (copies != null) {
+			File[] files = copies.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			copies.delete();
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2011 Vex Software LLC
+ * This file is part of Votifier.
+ * 
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.model.listeners;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vexsoftware.votifier.model.BatchVoteListener;
+import com.vexsoftware.votifier.model.Vote;
+
+/**
+ * A vote listener that logs to a file. Each batch of votes is appended and
+ * forced to disk through a channel that stays open before the listener
+ * returns, so a vote is only acknowledged once it is logged, and a burst of
+ * votes costs a single write. The log is rotated once it reaches a maximum
+ * size or age; rotated logs are renamed with the time of rotation, e.g.
+ * "votes-2012-06-01_12-00-00.log".
+ * 
+ * @author Blake Beaupain
+ */
+public class FlatfileVoteListener implements BatchVoteListener, Closeable {
+
+	/** The logger instance. */
+	private static final Logger log = Logger.getLogger("FlatfileVoteListener");
+
+	/** The log file encoding. */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** The line separator. */
+	private static final String NEWLINE = System.getProperty("line.separator");
+
+	/** The log file. */
+	private final File file;
+
+	/** The size (in bytes) at which the log is rotated, or 0 to never. */
+	private final long rotateSize;
+
+	/** The age (in milliseconds) at which the log is rotated, or 0 to never. */
+	private final long rotateInterval;
+
+	/** The votes that could not be written yet. */
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream(4096);
+
+	/** The open log file. */
+	private FileChannel channel;
+
+	/** The size of the open log file. */
+	private long size;
+
+	/** The time the open log file was started. */
+	private long openedAt;
+
+	/**
+	 * Instantiates a new flat file vote listener and opens the log.
+	 * 
+	 * @param file
+	 *            The log file
+	 * @param rotateSize
+	 *            The size (in bytes) at which the log is rotated, or 0 to
+	 *            never rotate by size
+	 * @param rotateInterval
+	 *            The age (in milliseconds) at which the log is rotated, or 0
+	 *            to never rotate by age
+	 * @throws IOException
+	 *             If the log cannot be opened
+	 */
+	public FlatfileVoteListener(File file, long rotateSize, long rotateInterval)
+			throws IOException {
+		this.file = file;
+		this.rotateSize = rotateSize;
+		this.rotateInterval = rotateInterval;
+		open();
+	}
+
+	public void voteMade(Vote vote) {
+		votesMade(Collections.singletonList(vote));
+	}
+
+	public void votesMade(List<Vote> votes) {
+		StringBuilder lines = new StringBuilder(votes.size() * 96);
+		for (Vote vote : votes) {
+			lines.append(vote).append(NEWLINE);
+		}
+		byte[] bytes = lines.toString().getBytes(UTF_8);
+		synchronized (this) {
+			pending.write(bytes, 0, bytes.length);
+			flush();
+		}
+	}
+
+	/**
+	 * Writes the remaining votes and closes the log.
+	 */
+	public synchronized void close() {
+		flush();
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			log.log(Level.WARNING, "Unable to close " + file, ex);
+		}
+	}
+
+	/**
+	 * Writes and forces the buffered votes, rotating the log first if it is
+	 * due. Votes that cannot be written stay buffered and are written with
+	 * the next batch.
+	 */
+	private void flush() {
+		if (pending.size() == 0)
+			return;
+		try {
+			rotateIfDue();
+			ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+			long start = channel.position();
+			try {
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(false);
+			} catch (IOException ex) {
+				// Cut off a partial line so the retry does not repeat it.
+				channel.truncate(start);
+				throw ex;
+			}
+			size += buffer.capacity();
+			pending.reset();
+		} catch (IOException ex) {
+			log.log(Level.WARNING, "Unable to log " + pending.size()
+					+ " bytes of votes to " + file
+					+ ", retrying with the next votes", ex);
+		}
+	}
+
+	/**
+	 * Rotates the log if it reached its maximum size or age.
+	 * 
+	 * @throws IOException
+	 *             If the log cannot be rotated
+	 */
+	private void rotateIfDue() throws IOException {
+		if (size == 0)
+			return;
+		boolean tooLarge = rotateSize > 0 && size >= rotateSize;
+		boolean tooOld = rotateInterval > 0
+				&& System.currentTimeMillis() - openedAt >= rotateInterval;
+		if (!tooLarge && !tooOld)
+			return;
+
+		channel.close();
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		String base = dot > 0 ? name.substring(0, dot) : name;
+		String extension = dot > 0 ? name.substring(dot) : "";
+		String stamp = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss")
+				.format(new Date());
+		File rotated = new File(file.getParentFile(), base + "-" + stamp
+				+ extension);
+		for (int i = 1; rotated.exists(); i++) {
+			rotated = new File(file.getParentFile(), base + "-" + stamp + "-"
+					+ i + extension);
+		}
+		if (!file.renameTo(rotated)) {
+			log.warning("Unable to rotate " + file + " to " + rotated);
+		}
+		open();
+	}
+
+	/**
+	 * Opens the log file for appending.
+	 * 
+	 * @throws IOException
+	 *             If the log cannot be opened
+	 */
+	private void open() throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+		channel = new FileOutputStream(file, true).getChannel();
+		size = channel.size();
+		openedAt = System.currentTimeMillis();
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.model.listeners;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vexsoftware.votifier.model.BatchVoteListener;
+import com.vexsoftware.votifier.model.Vote;
+import com.vexsoftware.votifier.net.VoteForwarder;
+
+/**
+ * A vote listener that forwards votes to another Votifier, such as a backend
+ * server behind a hub that receives the votes of a whole network. Each target
+ * gets a listener queue of its own, which doubles as its retry queue: a batch
+ * is only returned once every vote in it was accepted, so a target that is
+ * down holds up its own queue and no other.
+ */
+public class ForwardingVoteListener implements BatchVoteListener, Closeable {
+
+	/** The logger instance. */
+	private static final Logger LOG = Logger.getLogger("Votifier");
+
+	/** How long (in milliseconds) to wait before the first retry. */
+	private static final long MIN_BACKOFF = 250;
+
+	/** The longest time (in milliseconds) to wait between retries. */
+	private static final long MAX_BACKOFF = 30000;
+
+	/** The target name. */
+	private final String target;
+
+	/** The connection to the target. */
+	private final VoteForwarder forwarder;
+
+	/**
+	 * Instantiates a new forwarding vote listener.
+	 * 
+	 * @param target
+	 *            The target name
+	 * @param address
+	 *            The address of the target's Votifier
+	 * @param token
+	 *            The token the target accepts
+	 */
+	public ForwardingVoteListener(String target, InetSocketAddress address,
+			String token) {
+		this.target = target;
+		this.forwarder = new VoteForwarder(address, token);
+	}
+
+	public void voteMade(Vote vote) {
+		votesMade(Collections.singletonList(vote));
+	}
+
+	public void votesMade(List<Vote> votes) {
+		int sent = 0;
+		long backoff = 0;
+		while (sent < votes.size()) {
+			if (backoff > 0) {
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ex) {
+					// Shutting down, the rest is replayed from the journal.
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			String reply = null;
+			try {
+				forwarder.write(votes, sent);
+				while (sent < votes.size()) {
+					reply = forwarder.readReply();
+					if (reply.equals("OK")) {
+						sent++;
+					} else if (reply.equals("ERROR Busy")) {
+						break;
+					} else {
+						LOG.warning("Forwarding target '" + target
+								+ "' rejected " + votes.get(sent) + ": "
+								+ reply);
+						sent++;
+						break;
+					}
+				}
+				if (reply == null || !reply.equals("ERROR Busy")) {
+					if (backoff > MIN_BACKOFF)
+						LOG.info("Forwarding target '" + target
+								+ "' is reachable again.");
+					backoff = 0;
+					continue;
+				}
+			} catch (IOException ex) {
+				forwarder.close();
+				if (backoff == MIN_BACKOFF) {
+					LOG.log(Level.WARNING, "Unable to forward votes to '"
+							+ target + "', retrying until it is reachable: "
+							+ ex);
+				}
+			}
+			backoff = backoff == 0 ? MIN_BACKOFF : Math.min(backoff * 2,
+					MAX_BACKOFF);
+		}
+	}
+
+	/**
+	 * Gets the target name.
+	 * 
+	 * @return The target name
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	/**
+	 * Closes the connection to the target.
+	 */
+	public void close() {
+		forwarder.close();
+	}
+
+}
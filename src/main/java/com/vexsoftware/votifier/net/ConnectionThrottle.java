@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.net;
+
+import java.net.InetAddress;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Limits how often clients may connect, so that a misbehaving client cannot
+ * make Votifier spend its CPU on decrypting garbage. Each remote address is
+ * limited by a token bucket, and so are all connections together; addresses on
+ * the allow list are never limited.
+ * <p>
+ * The buckets are kept without locks using the generic cell rate algorithm:
+ * a bucket is just the time at which it will be full again, updated with a
+ * compare-and-set. Addresses are hashed onto a fixed number of buckets, so
+ * addresses that share a bucket also share its rate; that only ever makes
+ * the limit stricter, and keeps the memory used constant no matter how many
+ * addresses connect. The hash is seeded randomly on every start, so that no
+ * one can pick addresses that share the bucket of a vote site.
+ */
+public class ConnectionThrottle {
+
+	/** The number of per address buckets, a power of two. */
+	private static final int BUCKETS = 4096;
+
+	/** The per address buckets. */
+	private final AtomicLongArray addressBuckets = new AtomicLongArray(
+			BUCKETS);
+
+	/** The global bucket. */
+	private final AtomicLong globalBucket = new AtomicLong();
+
+	/** The seed of the address hash. */
+	private final int seed = new SecureRandom().nextInt();
+
+	/** The time (in nanoseconds) per connection of an address. */
+	private final long addressInterval;
+
+	/** How far (in nanoseconds) an address may run ahead of its rate. */
+	private final long addressTolerance;
+
+	/** The time (in nanoseconds) per connection of all addresses. */
+	private final long globalInterval;
+
+	/** How far (in nanoseconds) all addresses may run ahead of the rate. */
+	private final long globalTolerance;
+
+	/** The addresses that are never limited. */
+	private final Set<InetAddress> allowed;
+
+	/** The number of rejected connections. */
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Instantiates a new connection throttle. A rate of zero disables the
+	 * corresponding limit.
+	 * 
+	 * @param addressRate
+	 *            The connections per second allowed from one address
+	 * @param addressBurst
+	 *            The connections one address may make at once
+	 * @param globalRate
+	 *            The connections per second allowed in total
+	 * @param globalBurst
+	 *            The connections that may be made at once in total
+	 * @param allowed
+	 *            The addresses that are never limited
+	 */
+	public ConnectionThrottle(double addressRate, int addressBurst,
+			double globalRate, int globalBurst,
+			Collection<InetAddress> allowed) {
+		this.addressInterval = interval(addressRate);
+		this.addressTolerance = addressInterval * (Math.max(1, addressBurst) - 1);
+		this.globalInterval = interval(globalRate);
+		this.globalTolerance = globalInterval * (Math.max(1, globalBurst) - 1);
+		this.allowed = new HashSet<InetAddress>(allowed);
+
+		// Start with full buckets.
+		long now = System.nanoTime();
+		for (int i = 0; i < BUCKETS; i++) {
+			addressBuckets.set(i, now);
+		}
+		globalBucket.set(now);
+	}
+
+	/**
+	 * Takes a token for a new connection.
+	 * 
+	 * @param address
+	 *            The remote address
+	 * @return True if the connection may proceed, false if it should be
+	 *         closed right away
+	 */
+	public boolean tryAcquire(InetAddress address) {
+		if (allowed.contains(address))
+			return true;
+		long now = System.nanoTime();
+		int index = bucket(address);
+		if (addressInterval > 0
+				&& !take(addressBuckets, index, now, addressInterval,
+						addressTolerance)) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		if (globalInterval > 0
+				&& !take(globalBucket, now, globalInterval, globalTolerance)) {
+			// The address did not get to connect, so give its token back.
+			if (addressInterval > 0)
+				addressBuckets.addAndGet(index, -addressInterval);
+			rejected.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the number of rejected connections.
+	 * 
+	 * @return The rejected connection count
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	private static boolean take(AtomicLongArray buckets, int index,
+			long now, long interval, long tolerance) {
+		while (true) {
+			long full = buckets.get(index);
+			long start = full - now > 0 ? full : now;
+			if (start - now > tolerance)
+				return false;
+			if (buckets.compareAndSet(index, full, start + interval))
+				return true;
+		}
+	}
+
+	private static boolean take(AtomicLong bucket, long now, long interval,
+			long tolerance) {
+		while (true) {
+			long full = bucket.get();
+			long start = full - now > 0 ? full : now;
+			if (start - now > tolerance)
+				return false;
+			if (bucket.compareAndSet(full, start + interval))
+				return true;
+		}
+	}
+
+	/**
+	 * Hashes an address onto a bucket.
+	 * 
+	 * @param address
+	 *            The address
+	 * @return The bucket index
+	 */
+	private int bucket(InetAddress address) {
+		int hash = seed;
+		for (byte b : address.getAddress()) {
+			// Mix every byte into the seeded state, so collisions depend on it.
+			hash = (hash ^ (b & 0xff)) * 0x9e3779b1;
+			hash ^= hash >>> 15;
+		}
+		// Spread the bits, addresses of one network differ only at the end.
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		return hash & (BUCKETS - 1);
+	}
+
+	private static long interval(double rate) {
+		return rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+	}
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.net;
+
+/**
+ * Decides when Votifier is overloaded: when too many connections are open, or
+ * too many received votes are still waiting for their event. While
+ * overloaded, the {@link VoteReceiver} sheds new connections according to the
+ * {@link ShedPolicy} and answers protocol v2 packets with "ERROR Busy" while
+ * too many votes are waiting. Votifier stays overloaded until both have come
+ * down to three quarters of their limit, so that it does not flap at the
+ * edge.
+ */
+public class OverloadGuard {
+
+	/**
+	 * The number of received votes that are still waiting.
+	 */
+	public interface Backlog {
+
+		/**
+		 * Gets the number of waiting votes. Called from the I/O thread.
+		 * 
+		 * @return The number of waiting votes
+		 */
+		public int size();
+
+	}
+
+	/** The most connections that may be open, or 0 for no limit. */
+	private final int maxConnections;
+
+	/** The most votes that may be waiting, or 0 for no limit. */
+	private final int maxPendingVotes;
+
+	/** What to do with new connections while overloaded. */
+	private final ShedPolicy policy;
+
+	/** The waiting votes. */
+	private final Backlog backlog;
+
+	/** The overloaded flag. */
+	private volatile boolean overloaded;
+
+	/**
+	 * Instantiates a new overload guard.
+	 * 
+	 * @param maxConnections
+	 *            The most connections that may be open, or 0 for no limit
+	 * @param maxPendingVotes
+	 *            The most votes that may be waiting, or 0 for no limit
+	 * @param policy
+	 *            What to do with new connections while overloaded
+	 * @param backlog
+	 *            The waiting votes
+	 */
+	public OverloadGuard(int maxConnections, int maxPendingVotes,
+			ShedPolicy policy, Backlog backlog) {
+		this.maxConnections = maxConnections;
+		this.maxPendingVotes = maxPendingVotes;
+		this.policy = policy;
+		this.backlog = backlog;
+	}
+
+	/**
+	 * Updates the overloaded flag.
+	 * 
+	 * @param connections
+	 *            The number of open connections
+	 * @return True if the flag changed
+	 */
+	boolean update(int connections) {
+		int pending = backlog.size();
+		boolean over;
+		if (overloaded) {
+			over = exceeds(connections, maxConnections * 3 / 4)
+					|| exceeds(pending, maxPendingVotes * 3 / 4);
+		} else {
+			over = exceeds(connections, maxConnections)
+					|| exceeds(pending, maxPendingVotes);
+		}
+		if (over == overloaded)
+			return false;
+		overloaded = over;
+		return true;
+	}
+
+	/**
+	 * Checks whether too many votes are waiting to take another one.
+	 * 
+	 * @return True if votes should be turned away
+	 */
+	boolean isBacklogged() {
+		return exceeds(backlog.size(), maxPendingVotes);
+	}
+
+	/**
+	 * Checks whether Votifier is overloaded.
+	 * 
+	 * @return True if overloaded
+	 */
+	public boolean isOverloaded() {
+		return overloaded;
+	}
+
+	/**
+	 * Gets what to do with new connections while overloaded.
+	 * 
+	 * @return The shed policy
+	 */
+	public ShedPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Gets the most connections that may be open.
+	 * 
+	 * @return The limit, or 0 for no limit
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Gets the most votes that may be waiting.
+	 * 
+	 * @return The limit, or 0 for no limit
+	 */
+	public int getMaxPendingVotes() {
+		return maxPendingVotes;
+	}
+
+	/**
+	 * Gets the number of votes waiting.
+	 * 
+	 * @return The number of waiting votes
+	 */
+	public int getPendingVotes() {
+		return backlog.size();
+	}
+
+	private static boolean exceeds(int value, int limit) {
+		return limit > 0 && value >= limit;
+	}
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.net;
+
+/**
+ * What the {@link VoteReceiver} does with new connections while Votifier is
+ * overloaded.
+ */
+public enum ShedPolicy {
+
+	/**
+	 * Stop accepting, so that new connections wait in the operating system's
+	 * accept backlog and are refused once it is full.
+	 */
+	REFUSE,
+
+	/** Accept new connections and close them right away. */
+	CLOSE;
+
+	/**
+	 * Gets a policy by its configuration name, e.g. "refuse".
+	 * 
+	 * @param name
+	 *            The configuration name
+	 * @return The policy, or null if there is no such policy
+	 */
+	public static ShedPolicy fromName(String name) {
+		try {
+			return valueOf(name.trim().toUpperCase().replace('-', '_'));
+		} catch (IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.net;
+
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.vexsoftware.votifier.model.Vote;
+
+/**
+ * Verifies protocol v2 payloads. Each vote site shares a secret token with
+ * the server, and signs every payload with HMAC-SHA256 under that token. Sites
+ * without a token of their own use the "default" token. A payload is the
+ * legacy vote block followed by the connection's challenge:
+ * 
+ * <pre>
+ * VOTE\n serviceName\n username\n address\n timeStamp\n challenge\n
+ * </pre>
+ * 
+ * followed by the 32 byte signature. Signing the challenge keeps a captured
+ * packet from being replayed on another connection.
+ * <p>
+ * The MACs are kept in a pool and reused by whichever thread verifies next,
+ * so one authenticator can be shared by the I/O thread and any connection
+ * threads, even short-lived ones.
+ */
+public class TokenAuthenticator {
+
+	/** The name of the token used for sites without their own token. */
+	public static final String DEFAULT_TOKEN = "default";
+
+	/** The MAC algorithm. */
+	private static final String ALGORITHM = "HmacSHA256";
+
+	/** The size of a signature. */
+	static final int SIGNATURE_SIZE = 32;
+
+	/** The charset of the tokens. */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** The tokens, by service name. */
+	private final Map<String, String> tokens;
+
+	/** The idle MACs and signature buffers. */
+	private final Queue<State> states = new ConcurrentLinkedQueue<State>();
+
+	/**
+	 * Instantiates a new authenticator.
+	 * 
+	 * @param tokens
+	 *            The tokens, by service name
+	 */
+	public TokenAuthenticator(Map<String, String> tokens) {
+		this.tokens = new HashMap<String, String>(tokens);
+	}
+
+	/**
+	 * Verifies a signed payload and parses its vote.
+	 * 
+	 * @param data
+	 *            The data
+	 * @param offset
+	 *            The offset of the payload in the data
+	 * @param length
+	 *            The length of the payload, including its signature
+	 * @param challenge
+	 *            The challenge sent to the client
+	 * @return The vote
+	 * @throws ProtocolException
+	 *             If the payload is malformed, unsigned or signed for another
+	 *             challenge
+	 */
+	public Vote verify(byte[] data, int offset, int length, byte[] challenge)
+			throws ProtocolException {
+		int payloadLength = length - SIGNATURE_SIZE;
+		if (payloadLength <= challenge.length + 1)
+			throw new ProtocolException("Malformed packet");
+		int end = offset + payloadLength;
+		Vote vote = VoteParser.parse(data, offset, end);
+		if (vote == null)
+			throw new ProtocolException("Malformed packet");
+
+		// The payload must end with the challenge.
+		int challengeStart = end - challenge.length - 1;
+		if (data[challengeStart - 1] != '\n' || data[end - 1] != '\n')
+			throw new ProtocolException("Bad challenge");
+		for (int i = 0; i < challenge.length; i++) {
+			if (data[challengeStart + i] != challenge[i])
+				throw new ProtocolException("Bad challenge");
+		}
+
+		State state = states.poll();
+		if (state == null)
+			state = new State();
+		try {
+			byte[] signature = state.signature;
+			Mac mac = mac(state.macs, vote.getServiceName());
+			if (mac == null)
+				throw new ProtocolException("Unknown service");
+			try {
+				mac.update(data, offset, payloadLength);
+				mac.doFinal(signature, 0);
+			} catch (GeneralSecurityException ex) {
+				throw new ProtocolException("Unable to verify signature");
+			}
+			// Compare in constant time.
+			int difference = 0;
+			for (int i = 0; i < SIGNATURE_SIZE; i++) {
+				difference |= signature[i] ^ data[end + i];
+			}
+			if (difference != 0)
+				throw new ProtocolException("Bad signature");
+			return vote;
+		} finally {
+			states.offer(state);
+		}
+	}
+
+	/**
+	 * Gets the MAC of a service, initializing it on first use.
+	 * 
+	 * @param macs
+	 *            The MACs to look in, by service name
+	 * @param serviceName
+	 *            The service name
+	 * @return The MAC, or null if the service has no token
+	 */
+	private Mac mac(Map<String, Mac> macs, String serviceName) {
+		Mac mac = macs.get(serviceName);
+		if (mac != null)
+			return mac;
+		// Only remember configured services, not every name a client sends.
+		String name = tokens.containsKey(serviceName) ? serviceName
+				: DEFAULT_TOKEN;
+		mac = macs.get(name);
+		if (mac == null) {
+			String token = tokens.get(name);
+			if (token == null)
+				return null;
+			mac = create(token);
+			macs.put(name, mac);
+		}
+		return mac;
+	}
+
+	/**
+	 * Creates a MAC for a token.
+	 * 
+	 * @param token
+	 *            The token
+	 * @return The MAC
+	 */
+	static Mac create(String token) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(new SecretKeySpec(token.getBytes(UTF_8), ALGORITHM));
+			return mac;
+		} catch (GeneralSecurityException ex) {
+			// HmacSHA256 is available on every Java platform.
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * A set of MACs and a signature buffer, used by one thread at a time.
+	 */
+	private static class State {
+
+		/** The initialized MACs, by service name. */
+		final Map<String, Mac> macs = new HashMap<String, Mac>();
+
+		/** The buffer signatures are computed into. */
+		final byte[] signature = new byte[SIGNATURE_SIZE];
+
+	}
+
+}
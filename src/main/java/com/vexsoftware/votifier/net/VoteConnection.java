@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.net;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.logging.*;
+
+import com.vexsoftware.votifier.crypto.KeyRegistry;
+import com.vexsoftware.votifier.metrics.VoteMetrics;
+import com.vexsoftware.votifier.metrics.VoteMetrics.Counter;
+import com.vexsoftware.votifier.metrics.VoteMetrics.Stage;
+import com.vexsoftware.votifier.model.Vote;
+
+/**
+ * A single connection handled on a thread of its own, for a
+ * {@link VoteReceiver} with connection threads. It speaks the same protocols
+ * as a {@link VoteSession} on the selector, but reads with blocking calls:
+ * the greeting, then one 256 byte legacy block, optionally after a key hint,
+ * or any number of protocol v2 packets. The client has
+ * {@link VoteReceiver#READ_TIMEOUT} to deliver its block, or each of its
+ * packets.
+ */
+class VoteConnection implements Runnable {
+
+	/** The logger instance. */
+	private static final Logger LOG = Logger.getLogger("Votifier");
+
+	/** The receiver that accepted the connection. */
+	private final VoteReceiver receiver;
+
+	/** The client channel, in blocking mode once the thread starts. */
+	private final SocketChannel channel;
+
+	/** The greeting to send, including the challenge. */
+	private final byte[] greeting;
+
+	/** The challenge sent in the greeting. */
+	private final byte[] challenge;
+
+	/** The metrics start time of the connection. */
+	private final long acceptedAt;
+
+	/** The name of the key a legacy block is decrypted with. */
+	private String keyName;
+
+	/** The received bytes not processed yet. */
+	private byte[] input = new byte[VoteSession.BLOCK_SIZE];
+
+	/** The number of received bytes not processed yet. */
+	private int available;
+
+	/** The number of protocol v2 packets processed. */
+	private int packets;
+
+	/** The time (in milliseconds) after which the connection is dropped. */
+	private long deadline;
+
+	/** The socket input. */
+	private InputStream in;
+
+	/** The socket output. */
+	private OutputStream out;
+
+	/**
+	 * Instantiates a new connection.
+	 * 
+	 * @param receiver
+	 *            The receiver that accepted the connection
+	 * @param channel
+	 *            The accepted client channel
+	 * @param greeting
+	 *            The greeting to send to the client
+	 * @param challenge
+	 *            The challenge included in the greeting
+	 * @param keyName
+	 *            The name of the key of the port the client connected to
+	 * @param acceptedAt
+	 *            The metrics start time of the connection
+	 */
+	VoteConnection(VoteReceiver receiver, SocketChannel channel,
+			byte[] greeting, byte[] challenge, String keyName, long acceptedAt) {
+		this.receiver = receiver;
+		this.channel = channel;
+		this.greeting = greeting;
+		this.challenge = challenge;
+		this.keyName = keyName;
+		this.acceptedAt = acceptedAt;
+	}
+
+	public void run() {
+		VoteMetrics metrics = receiver.getMetrics();
+		try {
+			deadline = System.currentTimeMillis() + VoteReceiver.READ_TIMEOUT;
+			channel.configureBlocking(true);
+			Socket socket = channel.socket();
+			socket.setTcpNoDelay(true);
+			in = new BufferedInputStream(socket.getInputStream(),
+					VoteSession.BLOCK_SIZE);
+			out = socket.getOutputStream();
+			out.write(greeting);
+			metrics.record(Stage.ACCEPT, acceptedAt);
+
+			if (!fill(2))
+				throw new EOFException("Connection closed after " + available
+						+ " bytes");
+			if (((input[0] & 0xFF) << 8 | (input[1] & 0xFF)) == VoteReceiver.MAGIC) {
+				readPackets();
+				return;
+			}
+			if (input[0] == 'K' && input[1] == 'E' && fill(4)
+					&& input[2] == 'Y' && input[3] == ' ')
+				readHint();
+			readBlock(null);
+		} catch (SocketTimeoutException ex) {
+			if (receiver.isRunning()) {
+				metrics.increment(Counter.TIMED_OUT);
+				LOG.log(Level.WARNING,
+						"Protocol error. Ignoring packet - Read timed out");
+			}
+		} catch (IOException ex) {
+			if (receiver.isRunning()) {
+				metrics.increment(Counter.PROTOCOL_ERRORS);
+				LOG.log(Level.WARNING, "Protocol error. Ignoring packet - "
+						+ ex.getLocalizedMessage());
+			}
+		} finally {
+			close();
+			receiver.closed(this);
+		}
+	}
+
+	/**
+	 * Reads protocol v2 packets until the client stops sending. The first
+	 * two bytes of the first packet have been read.
+	 * 
+	 * @throws IOException
+	 *             If the client cannot be read from or replied to
+	 */
+	private void readPackets() throws IOException {
+		while (true) {
+			if (!fill(VoteReceiver.HEADER_SIZE))
+				break;
+			int length = (input[2] & 0xFF) << 8 | (input[3] & 0xFF);
+			if (length > VoteReceiver.MAX_PAYLOAD) {
+				if (packets == 0) {
+					// Not a packet after all, but a legacy block.
+					readBlock(null);
+				} else {
+					reject("Packet too large");
+				}
+				return;
+			}
+			int size = VoteReceiver.HEADER_SIZE + length;
+			if (input.length < size)
+				input = Arrays.copyOf(input, size);
+			boolean complete;
+			try {
+				complete = fill(size);
+			} catch (SocketTimeoutException ex) {
+				if (!salvage())
+					throw ex;
+				return;
+			}
+			if (!complete) {
+				if (salvage())
+					return;
+				break;
+			}
+
+			Vote vote;
+			long start = receiver.getMetrics().start();
+			try {
+				vote = receiver.getAuthenticator().verify(input,
+						VoteReceiver.HEADER_SIZE, length, challenge);
+				receiver.getMetrics().record(Stage.VERIFY, start);
+			} catch (ProtocolException ex) {
+				if (packets == 0 && size <= VoteSession.BLOCK_SIZE) {
+					// Probably a legacy block that starts with the magic
+					// bytes.
+					readBlock(ex.getMessage());
+				} else {
+					reject(ex.getMessage());
+				}
+				return;
+			}
+			packets++;
+			available = 0;
+			deadline = System.currentTimeMillis() + VoteReceiver.READ_TIMEOUT;
+			out.write(receiver.take(vote));
+
+			// Wait for the next packet, or for the client to leave.
+			try {
+				if (!fill(2)) {
+					if (available == 0)
+						return;
+					break;
+				}
+			} catch (SocketTimeoutException ex) {
+				if (available == 0)
+					return;
+				throw ex;
+			}
+		}
+		throw new EOFException("Connection closed after " + available
+				+ " bytes");
+	}
+
+	/**
+	 * Hands a legacy block that was mistaken for the start of a longer
+	 * protocol v2 packet to the pipeline, if that is what arrived before the
+	 * client stopped sending.
+	 * 
+	 * @return True if a block was handed on
+	 */
+	private boolean salvage() {
+		if (packets > 0 || available != VoteSession.BLOCK_SIZE)
+			return false;
+		submitBlock();
+		return true;
+	}
+
+	/**
+	 * Reads the key hint line in front of a legacy block. A hint that names
+	 * no known key is taken to be the start of a block that happens to begin
+	 * like one. The first four bytes of the hint have been read.
+	 * 
+	 * @throws IOException
+	 *             If the client cannot be read from
+	 */
+	private void readHint() throws IOException {
+		int start = VoteReceiver.KEY_HINT.length();
+		int limit = start + VoteReceiver.MAX_KEY_NAME + 1;
+		while (available < limit && fill(available + 1)) {
+			if (input[available - 1] != '\n')
+				continue;
+			String name = new String(input, start, available - 1 - start,
+					VoteReceiver.UTF_8);
+			KeyRegistry keys = receiver.getKeys();
+			if (keys != null && keys.get(name) != null) {
+				keyName = name;
+				available = 0;
+			}
+			return;
+		}
+	}
+
+	/**
+	 * Reads the rest of a legacy block and hands it to the pipeline. If the
+	 * client was taken for a protocol v2 client at first, and its first packet
+	 * was rejected, it is told why if no block follows.
+	 * 
+	 * @param rejection
+	 *            Why the first packet was rejected, or null
+	 * @throws IOException
+	 *             If the client cannot be read from
+	 */
+	private void readBlock(String rejection) throws IOException {
+		try {
+			if (fill(VoteSession.BLOCK_SIZE)) {
+				submitBlock();
+				return;
+			}
+		} catch (SocketTimeoutException ex) {
+			if (rejection == null)
+				throw ex;
+		}
+		if (rejection == null)
+			throw new EOFException("Connection closed after " + available
+					+ " bytes");
+		reject(rejection);
+	}
+
+	/**
+	 * Hands the received legacy block to the pipeline.
+	 */
+	private void submitBlock() {
+		receiver.submit(Arrays.copyOf(input, VoteSession.BLOCK_SIZE), keyName,
+				acceptedAt);
+	}
+
+	/**
+	 * Sends an error to a protocol v2 client.
+	 * 
+	 * @param reason
+	 *            The error
+	 * @throws IOException
+	 *             If the reply cannot be written
+	 */
+	private void reject(String reason) throws IOException {
+		out.write(receiver.rejected(channel.socket().getInetAddress(), reason));
+	}
+
+	/**
+	 * Reads until the given number of bytes has been received, or the client
+	 * closes its side of the connection.
+	 * 
+	 * @param size
+	 *            The number of bytes
+	 * @return False if the client closed the connection first
+	 * @throws SocketTimeoutException
+	 *             If the deadline passes first
+	 * @throws IOException
+	 *             If the read fails
+	 */
+	private boolean fill(int size) throws IOException {
+		while (available < size) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				throw new SocketTimeoutException("Read timed out");
+			channel.socket().setSoTimeout((int) remaining);
+			int read = in.read(input, available, size - available);
+			if (read < 0)
+				return false;
+			available += read;
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the connection, quietly ignoring errors.
+	 */
+	void close() {
+		try {
+			channel.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import javax.crypto.Mac;
+
+import com.vexsoftware.votifier.model.Vote;
+
+/**
+ * A protocol v2 client that sends votes to another Votifier. The connection
+ * is kept open between batches and replaced when it has been idle for long
+ * enough that the other side may have dropped it. The votes of a batch are
+ * written back to back, and the replies are read afterwards, one per vote.
+ * <p>
+ * An instance is not thread safe; it is meant to be used by a single listener
+ * queue worker.
+ */
+public class VoteForwarder implements Closeable {
+
+	/** How long (in milliseconds) to wait for a connection or a reply. */
+	private static final int TIMEOUT = 5000;
+
+	/**
+	 * How long (in milliseconds) a connection may be idle before it is
+	 * replaced, shorter than the time a receiver waits for the next packet.
+	 */
+	private static final long MAX_IDLE = 4000;
+
+	/** The charset of the payload. */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** The address of the other Votifier. */
+	private final InetSocketAddress address;
+
+	/** The MAC for the token shared with the other Votifier. */
+	private final Mac mac;
+
+	/** The connection, or null if not connected. */
+	private Socket socket;
+
+	/** The input stream of the connection. */
+	private InputStream in;
+
+	/** The output stream of the connection. */
+	private OutputStream out;
+
+	/** The challenge of the connection. */
+	private String challenge;
+
+	/** The time the connection was last used. */
+	private long lastUsed;
+
+	/**
+	 * Instantiates a new vote forwarder.
+	 * 
+	 * @param address
+	 *            The address of the other Votifier, resolved on every
+	 *            connect
+	 * @param token
+	 *            The token shared with the other Votifier
+	 */
+	public VoteForwarder(InetSocketAddress address, String token) {
+		this.address = address;
+		this.mac = TokenAuthenticator.create(token);
+	}
+
+	/**
+	 * Writes votes, connecting first if there is no usable connection. Read
+	 * one reply per vote with {@link #readReply()}.
+	 * 
+	 * @param votes
+	 *            The votes
+	 * @param offset
+	 *            The index of the first vote to write
+	 * @throws IOException
+	 *             If the votes cannot be written
+	 */
+	public void write(List<Vote> votes, int offset) throws IOException {
+		if (socket != null
+				&& System.currentTimeMillis() - lastUsed > MAX_IDLE)
+			close();
+		if (socket == null)
+			connect();
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream packets = new DataOutputStream(buffer);
+		for (int i = offset; i < votes.size(); i++) {
+			Vote vote = votes.get(i);
+			byte[] payload = ("VOTE\n" + vote.getServiceName() + "\n"
+					+ vote.getUsername() + "\n" + vote.getAddress() + "\n"
+					+ vote.getTimeStamp() + "\n" + challenge + "\n")
+					.getBytes(UTF_8);
+			packets.writeShort(VoteReceiver.MAGIC);
+			packets.writeShort(payload.length + mac.getMacLength());
+			packets.write(payload);
+			packets.write(mac.doFinal(payload));
+		}
+		out.write(buffer.toByteArray());
+		out.flush();
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Reads the reply to the next vote written: "OK", or "ERROR" and the
+	 * reason. The other Votifier closes the connection after an error.
+	 * 
+	 * @return The reply
+	 * @throws IOException
+	 *             If no reply arrives
+	 */
+	public String readReply() throws IOException {
+		String reply = readLine();
+		lastUsed = System.currentTimeMillis();
+		if (!reply.equals("OK"))
+			close();
+		return reply;
+	}
+
+	/**
+	 * Closes the connection, quietly ignoring errors.
+	 */
+	public void close() {
+		if (socket == null)
+			return;
+		try {
+			socket.close();
+		} catch (IOException ignored) {
+		}
+		socket = null;
+	}
+
+	/**
+	 * Connects and reads the greeting.
+	 * 
+	 * @throws IOException
+	 *             If the connection fails or the other side does not speak
+	 *             protocol v2
+	 */
+	private void connect() throws IOException {
+		socket = new Socket();
+		try {
+			// Resolve again every time, the target may have moved.
+			socket.connect(new InetSocketAddress(address.getHostString(),
+					address.getPort()), TIMEOUT);
+			socket.setSoTimeout(TIMEOUT);
+			socket.setTcpNoDelay(true);
+			in = socket.getInputStream();
+			out = socket.getOutputStream();
+			String[] greeting = readLine().split(" ");
+			if (greeting.length != 3 || !greeting[0].equals("VOTIFIER"))
+				throw new ProtocolException(address
+						+ " does not support protocol v2");
+			challenge = greeting[2];
+		} catch (IOException ex) {
+			close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Reads a line.
+	 * 
+	 * @return The line, without the newline
+	 * @throws IOException
+	 *             If the read fails
+	 */
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0)
+				throw new EOFException();
+			if (line.length() < 128)
+				line.append((char) b);
+		}
+		return line.toString();
+	}
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.net;
+
+import com.vexsoftware.votifier.crypto.KeyRegistry;
+import com.vexsoftware.votifier.model.Vote;
+
+/**
+ * What a {@link VotePipeline} needs from its owner: the keys to decrypt blocks
+ * with and somewhere to send the resulting votes. The plugin implements this
+ * by handing votes to its dispatcher, but the pipeline itself does not depend
+ * on the server, so it can also run on its own.
+ */
+public interface VoteHandler {
+
+	/**
+	 * Gets the keys received blocks are decrypted with. Called for every
+	 * block, including the blocks still queued while Votifier shuts down.
+	 * 
+	 * @return The key registry, or null if no keys are loaded
+	 */
+	public KeyRegistry getKeys();
+
+	/**
+	 * Handles a received vote. Called from a dispatch worker.
+	 * 
+	 * @param vote
+	 *            The vote
+	 */
+	public void voteReceived(Vote vote);
+
+	/**
+	 * Checks whether received votes should be logged.
+	 * 
+	 * @return True if debugging
+	 */
+	public boolean isDebug();
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.net;
+
+import java.nio.charset.Charset;
+
+import com.vexsoftware.votifier.model.Vote;
+
+/**
+ * Parses decrypted vote blocks. A block is the "VOTE" opcode followed by the
+ * service name, username, address and time stamp, each terminated by a
+ * newline; the newline after the time stamp may be left out.
+ * <p>
+ * The block is scanned once to find the field boundaries, and nothing is
+ * allocated for a block that turns out to be malformed. Fields are decoded as
+ * UTF-8. Service names repeat on almost every vote, so they are looked up in a
+ * small cache keyed by their bytes and shared instead of decoded again.
+ */
+public final class VoteParser {
+
+	/** The charset of the fields. */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** The opcode, including its delimiter. */
+	private static final byte[] OPCODE = { 'V', 'O', 'T', 'E', '\n' };
+
+	/** The number of fields after the opcode. */
+	private static final int FIELDS = 4;
+
+	/** The number of cached service names, a power of two. */
+	private static final int CACHE_SIZE = 64;
+
+	/** The longest service name that is cached. */
+	private static final int CACHE_MAX_LENGTH = 64;
+
+	/**
+	 * The cached service names, indexed by the low bits of their hash. Slots
+	 * are replaced without locking; entries are immutable, so a racing reader
+	 * sees either a complete entry or misses.
+	 */
+	private static final ServiceName[] cache = new ServiceName[CACHE_SIZE];
+
+	private VoteParser() {
+	}
+
+	/**
+	 * Parses a decrypted vote block.
+	 * 
+	 * @param data
+	 *            The decrypted data
+	 * @param offset
+	 *            The offset of the block in the data
+	 * @param limit
+	 *            The end of the block in the data
+	 * @return The vote, or null if the block is malformed
+	 */
+	public static Vote parse(byte[] data, int offset, int limit) {
+		// Perform the opcode check.
+		if (limit - offset < OPCODE.length)
+			return null;
+		for (int i = 0; i < OPCODE.length; i++) {
+			if (data[offset + i] != OPCODE[i])
+				return null;
+		}
+
+		// Find the end of each field, hashing the service name on the way.
+		int serviceEnd = -1, usernameEnd = -1, addressEnd = -1;
+		int timeStampEnd = limit;
+		int found = 0;
+		int serviceHash = 1;
+		for (int i = offset + OPCODE.length; i < limit; i++) {
+			byte b = data[i];
+			if (b != '\n') {
+				if (found == 0)
+					serviceHash = 31 * serviceHash + b;
+				continue;
+			}
+			if (found == 0) {
+				serviceEnd = i;
+			} else if (found == 1) {
+				usernameEnd = i;
+			} else if (found == 2) {
+				addressEnd = i;
+			} else {
+				timeStampEnd = i;
+				break;
+			}
+			found++;
+		}
+		if (found < FIELDS - 1)
+			return null;
+
+		// Build the vote.
+		int serviceStart = offset + OPCODE.length;
+		Vote vote = new Vote();
+		vote.setServiceName(serviceName(data, serviceStart, serviceEnd,
+				serviceHash));
+		vote.setUsername(decode(data, serviceEnd + 1, usernameEnd));
+		vote.setAddress(decode(data, usernameEnd + 1, addressEnd));
+		vote.setTimeStamp(decode(data, addressEnd + 1, timeStampEnd));
+		return vote;
+	}
+
+	/**
+	 * Decodes a field.
+	 * 
+	 * @param data
+	 *            The data
+	 * @param start
+	 *            The start of the field
+	 * @param end
+	 *            The end of the field, exclusive
+	 * @return The field
+	 */
+	private static String decode(byte[] data, int start, int end) {
+		return start == end ? "" : new String(data, start, end - start, UTF_8);
+	}
+
+	/**
+	 * Gets a service name from the cache, decoding and caching it on a miss.
+	 * 
+	 * @param data
+	 *            The data
+	 * @param start
+	 *            The start of the service name
+	 * @param end
+	 *            The end of the service name, exclusive
+	 * @param hash
+	 *            The hash of the service name bytes
+	 * @return The service name
+	 */
+	private static String serviceName(byte[] data, int start, int end,
+			int hash) {
+		int length = end - start;
+		if (length > CACHE_MAX_LENGTH)
+			return decode(data, start, end);
+		int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+		ServiceName cached = cache[slot];
+		if (cached != null && cached.matches(data, start, length))
+			return cached.name;
+		String name = decode(data, start, end);
+		cache[slot] = new ServiceName(data, start, length, name);
+		return name;
+	}
+
+	/**
+	 * A cached service name and the bytes it was decoded from.
+	 */
+	private static final class ServiceName {
+
+		private final byte[] bytes;
+
+		private final String name;
+
+		ServiceName(byte[] data, int start, int length, String name) {
+			this.bytes = new byte[length];
+			System.arraycopy(data, start, bytes, 0, length);
+			this.name = name;
+		}
+
+		boolean matches(byte[] data, int start, int length) {
+			if (bytes.length != length)
+				return false;
+			for (int i = 0; i < length; i++) {
+				if (bytes[i] != data[start + i])
+					return false;
+			}
+			return true;
+		}
+
+	}
+
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.net;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.*;
+import javax.crypto.BadPaddingException;
+
+import com.vexsoftware.votifier.crypto.KeyRegistry;
+import com.vexsoftware.votifier.crypto.RSADecryptor;
+import com.vexsoftware.votifier.metrics.VoteMetrics;
+import com.vexsoftware.votifier.metrics.VoteMetrics.Counter;
+import com.vexsoftware.votifier.metrics.VoteMetrics.Stage;
+import com.vexsoftware.votifier.model.Vote;
+import com.vexsoftware.votifier.util.NamedThreadFactory;
+
+/**
+ * The processing stages behind the {@link VoteReceiver}. Complete vote blocks
+ * are handed to a pool of decrypt workers, and the resulting votes are handed
+ * to a separate pool that passes them to the {@link VoteHandler}. Both
+ * hand-offs go through bounded queues: a full decrypt queue rejects new blocks
+ * so the I/O thread never waits, while a full dispatch queue makes the decrypt
+ * workers wait for the dispatcher to catch up.
+ */
+public class VotePipeline {
+
+	/** The logger instance. */
+	private static final Logger LOG = Logger.getLogger("Votifier");
+
+	/** How long (in seconds) to wait for queued votes on shutdown. */
+	private static final long SHUTDOWN_TIMEOUT = 5;
+
+	/** The handler that provides the key and receives the votes. */
+	private final VoteHandler handler;
+
+	/** The metrics. */
+	private final VoteMetrics metrics;
+
+	/** The decrypt stage. */
+	private final ThreadPoolExecutor decryptStage;
+
+	/** The dispatch stage. */
+	private final ThreadPoolExecutor dispatchStage;
+
+	/** The decryption buffer of each decrypt worker. */
+	private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[VoteSession.BLOCK_SIZE];
+		}
+	};
+
+	/**
+	 * Instantiates a new vote pipeline.
+	 *
+	 * @param handler
+	 *            The handler that provides the key and receives the votes
+	 * @param metrics
+	 *            The metrics to record in
+	 * @param decryptThreads
+	 *            The number of decrypt workers
+	 * @param decryptQueue
+	 *            The number of blocks that may wait for a decrypt worker
+	 * @param dispatchThreads
+	 *            The number of dispatch workers
+	 * @param dispatchQueue
+	 *            The number of votes that may wait for a dispatch worker
+	 */
+	public VotePipeline(VoteHandler handler, VoteMetrics metrics,
+			int decryptThreads, int decryptQueue, int dispatchThreads,
+			int dispatchQueue) {
+		this.handler = handler;
+		this.metrics = metrics;
+		decryptStage = new ThreadPoolExecutor(decryptThreads,
+				decryptThreads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(decryptQueue),
+				new NamedThreadFactory("Votifier decrypt"),
+				new ThreadPoolExecutor.AbortPolicy());
+		dispatchStage = new ThreadPoolExecutor(dispatchThreads,
+				dispatchThreads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(dispatchQueue),
+				new NamedThreadFactory("Votifier dispatch"),
+				new WaitPolicy());
+		// Votes may be queued directly, without going through execute.
+		dispatchStage.prestartAllCoreThreads();
+	}
+
+	/**
+	 * Queues a complete vote block for decryption.
+	 *
+	 * @param block
+	 *            The encrypted vote block, owned by the pipeline from now on
+	 * @param keyName
+	 *            The name of the key the block was encrypted with
+	 * @return False if the decrypt queue is full and the block was dropped
+	 */
+	public boolean submit(final byte[] block, final String keyName) {
+		try {
+			decryptStage.execute(new Runnable() {
+				public void run() {
+					decrypt(block, keyName);
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the keys blocks are decrypted with.
+	 *
+	 * @return The key registry
+	 */
+	public KeyRegistry getKeys() {
+		return handler.getKeys();
+	}
+
+	/**
+	 * Queues a vote that was already verified for dispatch, skipping the
+	 * decrypt stage. Never waits.
+	 *
+	 * @param vote
+	 *            The vote
+	 * @return False if the dispatch queue is full and the vote was dropped
+	 */
+	public boolean dispatch(Vote vote) {
+		if (handler.isDebug())
+			LOG.info("Received vote record -> " + vote);
+		return !dispatchStage.isShutdown()
+				&& dispatchStage.getQueue().offer(dispatchTask(vote));
+	}
+
+	/**
+	 * Stops accepting blocks and gives queued votes a moment to finish.
+	 */
+	public void shutdown() {
+		decryptStage.shutdown();
+		try {
+			if (decryptStage.awaitTermination(SHUTDOWN_TIMEOUT,
+					TimeUnit.SECONDS)) {
+				dispatchStage.shutdown();
+				dispatchStage.awaitTermination(SHUTDOWN_TIMEOUT,
+						TimeUnit.SECONDS);
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if (!decryptStage.isTerminated() || !dispatchStage.isTerminated()) {
+			LOG.log(Level.WARNING,
+					"Votes were still being processed when Votifier stopped.");
+		}
+		decryptStage.shutdownNow();
+		dispatchStage.shutdownNow();
+	}
+
+	/**
+	 * Decrypts and parses a vote block, then queues the vote for dispatch.
+	 *
+	 * @param block
+	 *            The encrypted vote block
+	 * @param keyName
+	 *            The name of the key the block was encrypted with
+	 */
+	private void decrypt(byte[] block, String keyName) {
+		KeyRegistry.Entry key = null;
+		try {
+			KeyRegistry keys = handler.getKeys();
+			if (keys == null)
+				throw new IllegalStateException("No RSA keys are loaded");
+			key = keys.get(keyName);
+			if (key == null)
+				key = keys.getDefault();
+
+			// Decrypt the block into this worker's buffer.
+			byte[] buffer = buffers.get();
+			Vote vote = null;
+			BadPaddingException failure = null;
+			try {
+				vote = decode(key.getDecryptor(), block, buffer);
+			} catch (BadPaddingException ex) {
+				failure = ex;
+			}
+			boolean retired = false;
+			RSADecryptor decryptor = key.getRetired();
+			if (vote == null && decryptor != null) {
+				// The server list may not have the new public key yet.
+				vote = decode(decryptor, block, buffer);
+				retired = true;
+			} else if (failure != null) {
+				throw failure;
+			}
+			if (vote == null) {
+				// Something went wrong in RSA.
+				key.failed();
+				metrics.increment(Counter.DECRYPT_FAILURES);
+				LOG.log(Level.WARNING,
+						"Unable to decode vote record. Ignoring malformed block.");
+				return;
+			}
+			if (retired) {
+				key.retiredDecrypted();
+			} else {
+				key.decrypted();
+			}
+			metrics.increment(Counter.VOTES);
+
+			if (handler.isDebug())
+				LOG.info("Received vote record -> " + vote);
+
+			dispatchStage.execute(dispatchTask(vote));
+		} catch (BadPaddingException ex) {
+			key.failed();
+			metrics.increment(Counter.DECRYPT_FAILURES);
+			LOG.log(Level.WARNING,
+					"Unable to decrypt vote record with the '" + key.getName()
+							+ "' key. Make sure that that your public key");
+			LOG.log(Level.WARNING,
+					"matches the one you gave the server list.", ex);
+		} catch (RejectedExecutionException ex) {
+			LOG.log(Level.WARNING,
+					"Votifier is shutting down. Dropping vote.");
+		} catch (Exception ex) {
+			if (key != null)
+				key.failed();
+			metrics.increment(Counter.DECRYPT_FAILURES);
+			LOG.log(Level.WARNING,
+					"Exception caught while receiving a vote notification",
+					ex);
+		}
+	}
+
+	/**
+	 * Decrypts and parses a vote block.
+	 *
+	 * @param decryptor
+	 *            The decryptor
+	 * @param block
+	 *            The encrypted vote block
+	 * @param buffer
+	 *            The buffer to decrypt into
+	 * @return The vote, or null if the block is malformed
+	 * @throws GeneralSecurityException
+	 *             If the block cannot be decrypted, e.g. a
+	 *             {@link BadPaddingException} if it was encrypted with
+	 *             another key
+	 */
+	private Vote decode(RSADecryptor decryptor, byte[] block, byte[] buffer)
+			throws GeneralSecurityException {
+		long start = metrics.start();
+		int length = decryptor.decrypt(block, 0, block.length, buffer, 0);
+		metrics.record(Stage.DECRYPT, start);
+		start = metrics.start();
+		Vote vote = VoteParser.parse(buffer, 0, length);
+		metrics.record(Stage.PARSE, start);
+		return vote;
+	}
+
+	/**
+	 * Creates the task that hands a vote to the handler.
+	 *
+	 * @param vote
+	 *            The vote
+	 * @return The task
+	 */
+	private Runnable dispatchTask(final Vote vote) {
+		return new Runnable() {
+			public void run() {
+				handler.voteReceived(vote);
+			}
+		};
+	}
+
+	/**
+	 * Makes the submitting thread wait for room in the queue instead of
+	 * dropping the task.
+	 */
+	private static class WaitPolicy implements RejectedExecutionHandler {
+
+		public void rejectedExecution(Runnable task,
+				ThreadPoolExecutor executor) {
+			try {
+				while (!executor.isShutdown()) {
+					if (executor.getQueue().offer(task, 100,
+							TimeUnit.MILLISECONDS))
+						return;
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			throw new RejectedExecutionException("Stage is shut down");
+		}
+
+	}
+
+}
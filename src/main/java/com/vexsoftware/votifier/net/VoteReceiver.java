@@ -18,23 +18,68 @@
 
 package com.vexsoftware.votifier.net;
 
-import java.io.BufferedWriter;
-import java.io.InputStream;
-import java.io.OutputStreamWriter;
+import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
+import java.net.ProtocolException;
 import java.net.Socket;
-import java.net.SocketException;
+import java.security.SecureRandom;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.*;
-import javax.crypto.BadPaddingException;
-import org.bukkit.Bukkit;
 
-import com.vexsoftware.votifier.Votifier;
-import com.vexsoftware.votifier.crypto.RSA;
-import com.vexsoftware.votifier.model.*;
+import com.vexsoftware.votifier.crypto.KeyRegistry;
+import com.vexsoftware.votifier.metrics.VoteMetrics;
+import com.vexsoftware.votifier.metrics.VoteMetrics.Counter;
+import com.vexsoftware.votifier.metrics.VoteMetrics.Stage;
+import com.vexsoftware.votifier.model.Vote;
+import com.vexsoftware.votifier.net.VoteSession.Protocol;
 
 /**
- * The vote receiving server.
+ * The vote receiving server. A single thread multiplexes all client
+ * connections with a selector, so a slow or idle client never holds up the
+ * others. Clients over their {@link ConnectionThrottle} rate are disconnected
+ * as soon as they are accepted, before anything is read from them.
+ * <p>
+ * Every client is greeted with the version and a random challenge. Legacy
+ * clients then send a 256 byte RSA encrypted block, which is handed to the
+ * {@link VotePipeline} for decryption. The block is decrypted with the key of
+ * the port it arrived on, unless the client names another key with a
+ * {@link #KEY_HINT} line before the block. Protocol v2 clients send packets that
+ * start with {@link #MAGIC}, followed by the payload length and a payload
+ * signed with the site's token, and get an "OK" or "ERROR" line back for
+ * each. Verifying a signature is cheap enough to do right here, so v2 votes
+ * go straight to the dispatch stage.
+ * <p>
+ * The receiver binds its ports as soon as it is created, but accepts no
+ * connections until it is told that Votifier is ready. Until then, clients
+ * wait in the operating system's accept backlog, and no vote reaches a
+ * pipeline whose keys or listeners are still loading.
+ * <p>
+ * An RSA block can begin with the magic bytes by chance. If the first packet
+ * of a connection fails to verify and exactly a block's worth of bytes
+ * arrived, it is treated as a legacy block instead.
+ * <p>
+ * Given a factory for connection threads, the receiver still accepts on its
+ * own thread, but hands every accepted connection to a {@link VoteConnection}
+ * on a thread of its own, which reads it with plain blocking calls. This is
+ * meant for virtual threads, which make a thread per connection as cheap as a
+ * session on the selector.
  * 
  * @author Blake Beaupain
  * @author Kramer Campbell
@@ -44,41 +89,178 @@ public class VoteReceiver extends Thread {
 	/** The logger instance. */
 	private static final Logger LOG = Logger.getLogger("Votifier");
 
-	private final Votifier plugin;
+	/** The time (in milliseconds) a client has to deliver its vote block. */
+	static final long READ_TIMEOUT = 5000;
+
+	/** The first two bytes of a protocol v2 packet. */
+	public static final int MAGIC = 0x733A;
+
+	/** The start of the optional line that names the key of a legacy block. */
+	public static final String KEY_HINT = "KEY ";
+
+	/** The longest key name accepted in a hint. */
+	static final int MAX_KEY_NAME = 64;
+
+	/** The charset of key hints. */
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** How many connections may wait to be accepted on each port. */
+	private static final int BACKLOG = 256;
+
+	/** The size of a protocol v2 packet header: magic and length. */
+	static final int HEADER_SIZE = 4;
+
+	/** The largest protocol v2 payload accepted. */
+	static final int MAX_PAYLOAD = 8192;
+
+	/** The number of random bytes in a challenge. */
+	private static final int CHALLENGE_SIZE = 16;
+
+	/** The hexadecimal digits. */
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	/** The reply to an accepted protocol v2 packet. */
+	private static final byte[] OK = { 'O', 'K', '\n' };
+
+	/** The reply to a protocol v2 packet that could not be taken. */
+	private static final byte[] BUSY = "ERROR Busy\n".getBytes();
+
+	/**
+	 * How often (in milliseconds) throttled connections and dropped votes are
+	 * reported.
+	 */
+	private static final long REPORT_INTERVAL = 60000;
+
+	/** The pipeline that processes received blocks. */
+	private final VotePipeline pipeline;
+
+	/** The connection throttle, or null if connections are not limited. */
+	private final ConnectionThrottle throttle;
+
+	/** The overload guard, or null if load is not limited. */
+	private final OverloadGuard guard;
+
+	/** The metrics. */
+	private final VoteMetrics metrics;
+
+	/** The authenticator for protocol v2 packets. */
+	private final TokenAuthenticator authenticator;
+
+	/**
+	 * The factory for connection threads, or null if all connections are
+	 * handled on the I/O thread.
+	 */
+	private final ThreadFactory connectionThreads;
+
+	/** The source of challenges. */
+	private final SecureRandom random = new SecureRandom();
 
 	/** The host to listen on. */
 	private final String host;
 
-	/** The port to listen on. */
-	private final int port;
+	/** The ports to listen on, with the name of the key used on each. */
+	private final Map<Integer, String> ports = new LinkedHashMap<Integer, String>();
+
+	/** The greeting sent to every client, before its challenge. */
+	private final byte[] greeting;
+
+	/** The open sessions, oldest first. */
+	private final ArrayDeque<VoteSession> sessions = new ArrayDeque<VoteSession>();
 
-	/** The server socket. */
-	private ServerSocket server;
+	/** The connections open on connection threads. */
+	private final Set<VoteConnection> connections = Collections
+			.newSetFromMap(new ConcurrentHashMap<VoteConnection, Boolean>());
+
+	/** The selector. */
+	private Selector selector;
+
+	/** The server socket channels. */
+	private final List<ServerSocketChannel> servers = new ArrayList<ServerSocketChannel>();
 
 	/** The running flag. */
-	private boolean running = true;
+	private volatile boolean running = true;
+
+	/** Whether connections may be accepted. */
+	private volatile boolean ready;
+
+	/** Whether the server channels are registered for accepting. */
+	private boolean accepting;
+
+	/** The rejected connection count at the last report. */
+	private long reportedRejections;
+
+	/** The number of votes dropped because the pipeline was full. */
+	private final AtomicLong pipelineRejections = new AtomicLong();
+
+	/** The dropped vote count at the last report. */
+	private long reportedPipelineRejections;
+
+	/** The time of the last report. */
+	private long lastReport = System.currentTimeMillis();
+
+	/** The number of connections and packets turned away while overloaded. */
+	private final AtomicLong shed = new AtomicLong();
+
+	/** The shed count when Votifier last became overloaded. */
+	private long shedAtOverload;
 
 	/**
 	 * Instantiates a new vote receiver.
 	 * 
+	 * @param version
+	 *            The version sent to clients in the greeting
+	 * @param metrics
+	 *            The metrics to record in
 	 * @param host
 	 *            The host to listen on
 	 * @param port
-	 *            The port to listen on
+	 *            The port to listen on with the default key
+	 * @param keyPorts
+	 *            Further ports to listen on, with the name of the key used on
+	 *            each
+	 * @param pipeline
+	 *            The pipeline that processes received blocks
+	 * @param throttle
+	 *            The connection throttle, or null to not limit connections
+	 * @param guard
+	 *            The overload guard, or null to not limit load
+	 * @param authenticator
+	 *            The authenticator for protocol v2 packets
+	 * @param connectionThreads
+	 *            The factory for connection threads, or null to handle all
+	 *            connections on the I/O thread
 	 */
-	public VoteReceiver(final Votifier plugin, String host, int port)
+	public VoteReceiver(String version, VoteMetrics metrics, String host,
+			int port, Map<Integer, String> keyPorts, VotePipeline pipeline,
+			ConnectionThrottle throttle, OverloadGuard guard,
+			TokenAuthenticator authenticator, ThreadFactory connectionThreads)
 			throws Exception {
-		this.plugin = plugin;
+		super("Votifier I/O");
+		this.pipeline = pipeline;
+		this.throttle = throttle;
+		this.guard = guard;
+		this.authenticator = authenticator;
+		this.connectionThreads = connectionThreads;
+		this.metrics = metrics;
 		this.host = host;
-		this.port = port;
+		this.ports.put(port, KeyRegistry.DEFAULT_KEY);
+		this.ports.putAll(keyPorts);
+		this.greeting = ("VOTIFIER " + version + " ").getBytes("UTF-8");
 
 		initialize();
 	}
 
 	private void initialize() throws Exception {
 		try {
-			server = new ServerSocket();
-			server.bind(new InetSocketAddress(host, port));
+			selector = Selector.open();
+			for (Map.Entry<Integer, String> port : ports.entrySet()) {
+				ServerSocketChannel server = ServerSocketChannel.open();
+				servers.add(server);
+				server.configureBlocking(false);
+				server.socket().bind(
+						new InetSocketAddress(host, port.getKey()), BACKLOG);
+				server.register(selector, 0, port.getValue());
+			}
 		} catch (Exception ex) {
 			LOG.log(Level.SEVERE,
 					"Error initializing vote receiver. Please verify that the configured");
@@ -87,21 +269,62 @@ public class VoteReceiver extends Thread {
 			LOG.log(Level.SEVERE,
 					"with hosting services and, if so, you should check with your hosting provider.",
 					ex);
+			closeQuietly();
 			throw new Exception(ex);
 		}
 	}
 
+	/**
+	 * Starts accepting connections, including those that waited until now.
+	 */
+	public void setReady() {
+		ready = true;
+		if (selector != null)
+			selector.wakeup();
+	}
+
+	/**
+	 * Checks whether connections are accepted.
+	 * 
+	 * @return True if ready
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Checks whether the receiver is still running.
+	 * 
+	 * @return False once it is shutting down
+	 */
+	boolean isRunning() {
+		return running;
+	}
+
 	/**
 	 * Shuts the vote receiver down cleanly.
 	 */
 	public void shutdown() {
 		running = false;
-		if (server == null)
+		if (selector == null)
 			return;
-		try {
-			server.close();
-		} catch (Exception ex) {
-			LOG.log(Level.WARNING, "Unable to shut down vote receiver cleanly.");
+		if (isAlive()) {
+			// The I/O thread closes everything on its way out.
+			selector.wakeup();
+			try {
+				join(READ_TIMEOUT);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		} else {
+			closeQuietly();
+		}
+		for (ServerSocketChannel server : servers) {
+			if (server.isOpen()) {
+				LOG.log(Level.WARNING,
+						"Unable to shut down vote receiver cleanly.");
+				break;
+			}
 		}
 	}
 
@@ -109,114 +332,602 @@ public class VoteReceiver extends Thread {
 	public void run() {
 
 		// Main loop.
-		while (running) {
-			try {
-				Socket socket = server.accept();
-				socket.setSoTimeout(5000); // Don't hang on slow connections.
-				BufferedWriter writer = new BufferedWriter(
-						new OutputStreamWriter(socket.getOutputStream()));
-				InputStream in = socket.getInputStream();
-
-				// Send them our version.
-				writer.write("VOTIFIER " + Votifier.getInstance().getVersion());
-				writer.newLine();
-				writer.flush();
-
-				// Read the 256 byte block.
-				byte[] block = new byte[256];
-				in.read(block, 0, block.length);
-
-				// Decrypt the block.
-				block = RSA.decrypt(block, Votifier.getInstance().getKeyPair()
-						.getPrivate());
-				int position = 0;
-
-				// Perform the opcode check.
-				String opcode = readString(block, position);
-				position += opcode.length() + 1;
-				if (!opcode.equals("VOTE")) {
-					// Something went wrong in RSA.
-					throw new Exception("Unable to decode RSA");
+		try {
+			while (running) {
+				boolean accept = ready
+						&& !(guard != null && guard.isOverloaded() && guard
+								.getPolicy() == ShedPolicy.REFUSE);
+				if (accept != accepting) {
+					for (ServerSocketChannel server : servers) {
+						server.keyFor(selector).interestOps(
+								accept ? SelectionKey.OP_ACCEPT : 0);
+					}
+					accepting = accept;
 				}
-
-				// Parse the block.
-				String serviceName = readString(block, position);
-				position += serviceName.length() + 1;
-				String username = readString(block, position);
-				position += username.length() + 1;
-				String address = readString(block, position);
-				position += address.length() + 1;
-				String timeStamp = readString(block, position);
-				position += timeStamp.length() + 1;
-
-				// Create the vote.
-				final Vote vote = new Vote();
-				vote.setServiceName(serviceName);
-				vote.setUsername(username);
-				vote.setAddress(address);
-				vote.setTimeStamp(timeStamp);
-
-				if (plugin.isDebug())
-					LOG.info("Received vote record -> " + vote);
-
-				// Dispatch the vote to all listeners.
-				for (VoteListener listener : Votifier.getInstance()
-						.getListeners()) {
-					try {
-						listener.voteMade(vote);
-					} catch (Exception ex) {
-						String vlName = listener.getClass().getSimpleName();
-						LOG.log(Level.WARNING,
-								"Exception caught while sending the vote notification to the '"
-										+ vlName + "' listener", ex);
+				selector.select(1000);
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable()) {
+						accept((ServerSocketChannel) key.channel(),
+								(String) key.attachment());
+					} else {
+						handle(key);
 					}
 				}
+				expireSessions();
+				updateOverload();
+				report();
+			}
+		} catch (Exception ex) {
+			if (running) {
+				LOG.log(Level.SEVERE, "Vote receiver stopped unexpectedly", ex);
+			}
+		} finally {
+			closeQuietly();
+		}
+	}
 
-				// Call event in a synchronized fashion to ensure that the
-				// custom event runs in the
-				// the main server thread, not this one.
-				plugin.getServer().getScheduler()
-						.scheduleSyncDelayedTask(plugin, new Runnable() {
-							public void run() {
-								Bukkit.getServer().getPluginManager()
-										.callEvent(new VotifierEvent(vote));
-							}
-						});
-
-				// Clean up.
-				writer.close();
-				in.close();
-				socket.close();
-			} catch (SocketException ex) {
+	/**
+	 * Accepts all pending connections and sends them our version.
+	 * 
+	 * @param server
+	 *            The server channel with pending connections
+	 * @param keyName
+	 *            The name of the key used on the server's port
+	 */
+	private void accept(ServerSocketChannel server, String keyName) {
+		SocketChannel channel;
+		while (true) {
+			try {
+				channel = server.accept();
+			} catch (IOException ex) {
+				LOG.log(Level.WARNING, "Unable to accept connection - "
+						+ ex.getLocalizedMessage());
+				return;
+			}
+			if (channel == null)
+				return;
+			long start = metrics.start();
+
+			// Turn away throttled clients before spending anything on them.
+			Socket socket = channel.socket();
+			if (throttle != null && !throttle.tryAcquire(socket.getInetAddress())) {
+				try {
+					socket.setSoLinger(true, 0);
+					channel.close();
+				} catch (IOException ignored) {
+				}
+				metrics.increment(Counter.THROTTLED);
+				continue;
+			}
+			// Count the connections accepted so far in this batch.
+			if (updateOverload()) {
+				try {
+					socket.setSoLinger(true, 0);
+					channel.close();
+				} catch (IOException ignored) {
+				}
+				metrics.increment(Counter.SHED);
+				shed.incrementAndGet();
+				continue;
+			}
+
+			metrics.increment(Counter.CONNECTIONS);
+			byte[] challenge = createChallenge();
+			byte[] hello = Arrays.copyOf(greeting, greeting.length
+					+ challenge.length + 1);
+			System.arraycopy(challenge, 0, hello, greeting.length,
+					challenge.length);
+			hello[hello.length - 1] = '\n';
+			if (connectionThreads != null) {
+				VoteConnection connection = new VoteConnection(this, channel,
+						hello, challenge, keyName, start);
+				connections.add(connection);
+				try {
+					connectionThreads.newThread(connection).start();
+				} catch (RuntimeException ex) {
+					LOG.log(Level.WARNING, "Unable to start connection thread",
+							ex);
+					connection.close();
+				}
+				continue;
+			}
+			VoteSession session = new VoteSession(channel, hello, challenge,
+					keyName, System.currentTimeMillis() + READ_TIMEOUT, start);
+			try {
+				channel.configureBlocking(false);
+				socket.setTcpNoDelay(true);
+				int ops = SelectionKey.OP_READ;
+				if (!session.flush())
+					ops |= SelectionKey.OP_WRITE;
+				session.setKey(channel.register(selector, ops, session));
+				sessions.add(session);
+				metrics.record(Stage.ACCEPT, start);
+			} catch (IOException ex) {
+				metrics.increment(Counter.PROTOCOL_ERRORS);
 				LOG.log(Level.WARNING, "Protocol error. Ignoring packet - "
 						+ ex.getLocalizedMessage());
-			} catch (BadPaddingException ex) {
-				LOG.log(Level.WARNING,
-						"Unable to decrypt vote record. Make sure that that your public key");
-				LOG.log(Level.WARNING,
-						"matches the one you gave the server list.", ex);
-			} catch (Exception ex) {
+				session.close();
+			}
+		}
+	}
+
+	/**
+	 * Handles a ready client connection.
+	 * 
+	 * @param key
+	 *            The selection key of the connection
+	 */
+	private void handle(SelectionKey key) {
+		VoteSession session = (VoteSession) key.attachment();
+		try {
+			if (key.isWritable() && session.flush()) {
+				if (session.isFinished()) {
+					session.close();
+					return;
+				}
+				key.interestOps(SelectionKey.OP_READ);
+			}
+			if (key.isReadable()) {
+				int read = session.read();
+				process(session);
+				if (read < 0 && !session.isClosed())
+					closed(session);
+			}
+		} catch (IOException ex) {
+			metrics.increment(Counter.PROTOCOL_ERRORS);
+			LOG.log(Level.WARNING, "Protocol error. Ignoring packet - "
+					+ ex.getLocalizedMessage());
+			session.close();
+		}
+	}
+
+	/**
+	 * Processes everything a client has sent so far.
+	 * 
+	 * @param session
+	 *            The session
+	 * @throws IOException
+	 *             If a reply cannot be written
+	 */
+	private void process(VoteSession session) throws IOException {
+		while (!session.isClosed() && !session.isFinished()) {
+			byte[] input = session.getInput();
+			int available = session.available();
+			switch (session.getProtocol()) {
+			case UNKNOWN:
+				if (available < 2)
+					return;
+				if (((input[0] & 0xFF) << 8 | (input[1] & 0xFF)) == MAGIC) {
+					session.setProtocol(Protocol.V2);
+				} else if (input[0] == 'K' && input[1] == 'E') {
+					if (available < KEY_HINT.length())
+						return;
+					boolean hint = input[2] == 'Y' && input[3] == ' ';
+					session.setProtocol(hint ? Protocol.HINT : Protocol.LEGACY);
+				} else {
+					session.setProtocol(Protocol.LEGACY);
+				}
+				break;
+			case HINT:
+				if (!processHint(session))
+					return;
+				break;
+			case LEGACY:
+				if (available < VoteSession.BLOCK_SIZE)
+					return;
+				submitBlock(session);
+				return;
+			case V2:
+				if (available < HEADER_SIZE)
+					return;
+				int length = (input[2] & 0xFF) << 8 | (input[3] & 0xFF);
+				if (length > MAX_PAYLOAD) {
+					if (session.getPackets() == 0) {
+						// Not a packet after all, but a legacy block.
+						session.setProtocol(Protocol.LEGACY);
+						break;
+					}
+					reject(session, "Packet too large");
+					return;
+				}
+				session.reserve(HEADER_SIZE + length);
+				if (available < HEADER_SIZE + length)
+					return;
+				if (!processPacket(session, length)) {
+					// Rejected, or a legacy block that may be complete.
+					break;
+				}
+				session.consume(HEADER_SIZE + length);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Reads the key hint line in front of a legacy block. A hint that names
+	 * no known key is taken to be the start of a block that happens to begin
+	 * like one.
+	 * 
+	 * @param session
+	 *            The session
+	 * @return False if the rest of the line has not arrived yet
+	 */
+	private boolean processHint(VoteSession session) {
+		byte[] input = session.getInput();
+		int available = session.available();
+		int limit = Math.min(available, KEY_HINT.length() + MAX_KEY_NAME + 1);
+		for (int i = KEY_HINT.length(); i < limit; i++) {
+			if (input[i] != '\n')
+				continue;
+			String name = new String(input, KEY_HINT.length(), i
+					- KEY_HINT.length(), UTF_8);
+			session.setProtocol(Protocol.LEGACY);
+			KeyRegistry keys = pipeline.getKeys();
+			if (keys != null && keys.get(name) != null) {
+				session.setKeyName(name);
+				session.consume(i + 1);
+			}
+			return true;
+		}
+		if (limit == available)
+			return false;
+		session.setProtocol(Protocol.LEGACY);
+		return true;
+	}
+
+	/**
+	 * Verifies and dispatches a complete protocol v2 packet, and replies to
+	 * the client.
+	 * 
+	 * @param session
+	 *            The session
+	 * @param length
+	 *            The payload length
+	 * @return True if the packet was consumed, false if the session switched
+	 *         to the legacy protocol or was rejected
+	 * @throws IOException
+	 *             If the reply cannot be written
+	 */
+	private boolean processPacket(VoteSession session, int length)
+			throws IOException {
+		Vote vote;
+		long start = metrics.start();
+		try {
+			vote = authenticator.verify(session.getInput(), HEADER_SIZE,
+					length, session.getChallenge());
+			metrics.record(Stage.VERIFY, start);
+		} catch (ProtocolException ex) {
+			if (session.getPackets() == 0
+					&& HEADER_SIZE + length <= VoteSession.BLOCK_SIZE) {
+				// Probably a legacy block that starts with the magic bytes.
+				session.setProtocol(Protocol.LEGACY);
+				session.setRejection(ex.getMessage());
+				return false;
+			}
+			reject(session, ex.getMessage());
+			return false;
+		}
+		session.packetProcessed(System.currentTimeMillis() + READ_TIMEOUT);
+		reply(session, take(vote));
+		return true;
+	}
+
+	/**
+	 * Hands a verified protocol v2 vote to the dispatch stage, unless too many
+	 * votes are waiting already.
+	 * 
+	 * @param vote
+	 *            The vote
+	 * @return The reply to the client
+	 */
+	byte[] take(Vote vote) {
+		if (guard != null && guard.isBacklogged()) {
+			// The client may try again later.
+			metrics.increment(Counter.SHED);
+			shed.incrementAndGet();
+			return BUSY;
+		}
+		metrics.increment(Counter.VOTES);
+		if (pipeline.dispatch(vote))
+			return OK;
+		metrics.increment(Counter.PIPELINE_REJECTIONS);
+		pipelineRejections.incrementAndGet();
+		return BUSY;
+	}
+
+	/**
+	 * Hands a complete legacy block to the pipeline and closes the session.
+	 * 
+	 * @param session
+	 *            The session
+	 */
+	private void submitBlock(VoteSession session) {
+		submit(session.getBlock(), session.getKeyName(),
+				session.getAcceptedAt());
+		session.close();
+	}
+
+	/**
+	 * Hands a complete legacy block to the pipeline.
+	 * 
+	 * @param block
+	 *            The vote block
+	 * @param keyName
+	 *            The name of the key to decrypt it with
+	 * @param acceptedAt
+	 *            The metrics start time of the connection
+	 */
+	void submit(byte[] block, String keyName, long acceptedAt) {
+		metrics.record(Stage.READ, acceptedAt);
+		if (!pipeline.submit(block, keyName)) {
+			metrics.increment(Counter.PIPELINE_REJECTIONS);
+			pipelineRejections.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Sends an error to a protocol v2 client and closes the session once it
+	 * is written.
+	 * 
+	 * @param session
+	 *            The session
+	 * @param reason
+	 *            The error
+	 * @throws IOException
+	 *             If the reply cannot be written
+	 */
+	private void reject(VoteSession session, String reason)
+			throws IOException {
+		byte[] error = rejected(session.getChannel().socket()
+				.getInetAddress(), reason);
+		session.finish();
+		reply(session, error);
+	}
+
+	/**
+	 * Records and logs a rejected protocol v2 packet.
+	 * 
+	 * @param address
+	 *            The address of the client
+	 * @param reason
+	 *            The error
+	 * @return The reply to the client
+	 */
+	byte[] rejected(InetAddress address, String reason) {
+		metrics.increment(Counter.SIGNATURE_FAILURES);
+		LOG.log(Level.WARNING, "Rejected vote from " + address + " - "
+				+ reason);
+		return ("ERROR " + reason + "\n").getBytes(UTF_8);
+	}
+
+	/**
+	 * Sends a reply to a protocol v2 client.
+	 * 
+	 * @param session
+	 *            The session
+	 * @param reply
+	 *            The reply
+	 * @throws IOException
+	 *             If the reply cannot be written
+	 */
+	private void reply(VoteSession session, byte[] reply) throws IOException {
+		session.send(reply);
+		if (session.flush()) {
+			if (session.isFinished())
+				session.close();
+		} else {
+			SelectionKey key = session.getChannel().keyFor(selector);
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Handles a client that closed its side of the connection.
+	 * 
+	 * @param session
+	 *            The session
+	 * @throws IOException
+	 *             If the connection ended in the middle of a vote
+	 */
+	private void closed(VoteSession session) throws IOException {
+		if (!end(session))
+			throw new IOException("Connection closed after "
+					+ session.available() + " bytes");
+	}
+
+	/**
+	 * Ends a session whose client stopped sending. Salvages a legacy block
+	 * that was mistaken for a protocol v2 packet, and tells a protocol v2
+	 * client whose first packet was mistaken for a legacy block why it was
+	 * rejected.
+	 * 
+	 * @param session
+	 *            The session
+	 * @return True if the session ended cleanly, false if a vote was cut off
+	 */
+	private boolean end(VoteSession session) {
+		if (session.getProtocol() == Protocol.V2 && session.getPackets() == 0
+				&& session.available() == VoteSession.BLOCK_SIZE) {
+			submitBlock(session);
+			return true;
+		}
+		if (session.getRejection() != null) {
+			try {
+				reject(session, session.getRejection());
+			} catch (IOException ignored) {
+			}
+			// The session is leaving the expiry queue, so do not wait for
+			// the reply to be written.
+			session.close();
+			return true;
+		}
+		boolean clean = session.getPackets() > 0 && session.available() == 0;
+		session.close();
+		return clean;
+	}
+
+	/**
+	 * Drops sessions that did not deliver their vote in time. Protocol v2
+	 * sessions stay open as long as packets keep arriving.
+	 */
+	private void expireSessions() {
+		long now = System.currentTimeMillis();
+		while (!sessions.isEmpty()) {
+			VoteSession session = sessions.peek();
+			if (!session.isClosed() && session.getQueuedDeadline() > now)
+				break;
+			sessions.poll();
+			if (session.isClosed())
+				continue;
+			if (session.getDeadline() > now) {
+				session.requeued();
+				sessions.add(session);
+			} else if (!end(session)) {
+				metrics.increment(Counter.TIMED_OUT);
 				LOG.log(Level.WARNING,
-						"Exception caught while receiving a vote notification",
-						ex);
+						"Protocol error. Ignoring packet - Read timed out");
+			}
+		}
+	}
+
+	/**
+	 * Creates a challenge for a new session.
+	 * 
+	 * @return The challenge as hexadecimal ASCII
+	 */
+	byte[] createChallenge() {
+		byte[] bytes = new byte[CHALLENGE_SIZE];
+		random.nextBytes(bytes);
+		byte[] challenge = new byte[CHALLENGE_SIZE * 2];
+		for (int i = 0; i < CHALLENGE_SIZE; i++) {
+			challenge[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+			challenge[i * 2 + 1] = HEX[bytes[i] & 0xF];
+		}
+		return challenge;
+	}
+
+	/**
+	 * Updates the overloaded flag and logs when it changes.
+	 * 
+	 * @return True if overloaded
+	 */
+	private boolean updateOverload() {
+		if (guard == null)
+			return false;
+		int open = connectionThreads != null ? connections.size() : selector
+				.keys().size() - servers.size();
+		if (!guard.update(open))
+			return guard.isOverloaded();
+		metrics.setOverloaded(guard.isOverloaded());
+		if (guard.isOverloaded()) {
+			shedAtOverload = shed.get();
+			LOG.log(Level.WARNING, "Votifier is overloaded with "
+					+ open + " connections open and "
+					+ guard.getPendingVotes() + " votes waiting. "
+					+ (guard.getPolicy() == ShedPolicy.REFUSE ? "Refusing"
+							: "Closing") + " new connections.");
+		} else {
+			LOG.info("Votifier is no longer overloaded. Turned away "
+					+ (shed.get() - shedAtOverload)
+					+ " connections and votes.");
+		}
+		return guard.isOverloaded();
+	}
+
+	/**
+	 * Logs how many connections were throttled and how many votes were
+	 * dropped because the pipeline was full, at most once per interval.
+	 */
+	private void report() {
+		long now = System.currentTimeMillis();
+		if (now - lastReport < REPORT_INTERVAL)
+			return;
+		long seconds = (now - lastReport) / 1000;
+		if (throttle != null) {
+			long rejections = throttle.getRejected();
+			if (rejections > reportedRejections) {
+				LOG.log(Level.WARNING, "Throttled "
+						+ (rejections - reportedRejections)
+						+ " connections in the last " + seconds + " seconds.");
 			}
+			reportedRejections = rejections;
+		}
+		long dropped = pipelineRejections.get();
+		if (dropped > reportedPipelineRejections) {
+			LOG.log(Level.WARNING, "Dropped "
+					+ (dropped - reportedPipelineRejections)
+					+ " votes in the last " + seconds
+					+ " seconds because the vote pipeline was full.");
 		}
+		reportedPipelineRejections = dropped;
+		lastReport = now;
+	}
+
+	/**
+	 * Notes that a connection thread is done with its connection.
+	 * 
+	 * @param connection
+	 *            The connection
+	 */
+	void closed(VoteConnection connection) {
+		connections.remove(connection);
 	}
 
 	/**
-	 * Reads a string from a block of data.
+	 * Gets the metrics.
 	 * 
-	 * @param data
-	 *            The data to read from
-	 * @return The string
+	 * @return The metrics
 	 */
-	private String readString(byte[] data, int offset) {
-		StringBuilder builder = new StringBuilder();
-		for (int i = offset; i < data.length; i++) {
-			if (data[i] == '\n')
-				break; // Delimiter reached.
-			builder.append((char) data[i]);
+	VoteMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Gets the authenticator for protocol v2 packets.
+	 * 
+	 * @return The authenticator
+	 */
+	TokenAuthenticator getAuthenticator() {
+		return authenticator;
+	}
+
+	/**
+	 * Gets the keys legacy blocks are decrypted with.
+	 * 
+	 * @return The key registry
+	 */
+	KeyRegistry getKeys() {
+		return pipeline.getKeys();
+	}
+
+	/**
+	 * Closes the selector, the server channel and all open sessions and
+	 * connections.
+	 */
+	private void closeQuietly() {
+		for (VoteSession session : sessions) {
+			session.close();
+		}
+		sessions.clear();
+		for (VoteConnection connection : connections) {
+			connection.close();
+		}
+		for (ServerSocketChannel server : servers) {
+			try {
+				server.close();
+			} catch (IOException ignored) {
+			}
+		}
+		try {
+			if (selector != null)
+				selector.close();
+		} catch (IOException ignored) {
 		}
-		return builder.toString();
 	}
 }
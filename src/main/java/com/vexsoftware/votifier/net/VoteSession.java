@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * The state of a single connection handled by the {@link VoteReceiver}. A
+ * session sends the greeting and then collects what the client sends, either
+ * one 256 byte legacy vote block or any number of protocol v2 packets, across
+ * as many reads as the client needs.
+ */
+class VoteSession {
+
+	/** The size of a legacy vote block. */
+	static final int BLOCK_SIZE = 256;
+
+	/**
+	 * The protocol a client speaks, known once its first two bytes arrived.
+	 */
+	enum Protocol {
+		UNKNOWN, HINT, LEGACY, V2
+	}
+
+	/** The client channel. */
+	private final SocketChannel channel;
+
+	/** The challenge sent in the greeting. */
+	private final byte[] challenge;
+
+	/** The metrics start time of the session. */
+	private final long acceptedAt;
+
+	/** The name of the key a legacy block is decrypted with. */
+	private String keyName;
+
+	/** The pending output, starting with the greeting. */
+	private ByteBuffer output;
+
+	/** The received bytes not processed yet. */
+	private ByteBuffer input = ByteBuffer.allocate(BLOCK_SIZE);
+
+	/** The protocol. */
+	private Protocol protocol = Protocol.UNKNOWN;
+
+	/** The number of protocol v2 packets processed. */
+	private int packets;
+
+	/**
+	 * Why the first packet was rejected, if the session fell back to the
+	 * legacy protocol because of it.
+	 */
+	private String rejection;
+
+	/** The time (in milliseconds) after which the session is dropped. */
+	private long deadline;
+
+	/** The deadline the session was queued for expiry with. */
+	private long queuedDeadline;
+
+	/** The selection key, once registered. */
+	private SelectionKey key;
+
+	/** Whether to close the session once the output is written. */
+	private boolean finished;
+
+	/** The closed flag. */
+	private boolean closed;
+
+	/**
+	 * Instantiates a new session.
+	 *
+	 * @param channel
+	 *            The accepted client channel
+	 * @param greeting
+	 *            The greeting to send to the client
+	 * @param challenge
+	 *            The challenge included in the greeting
+	 * @param keyName
+	 *            The name of the key of the port the client connected to
+	 * @param deadline
+	 *            The time after which the session times out
+	 * @param acceptedAt
+	 *            The metrics start time of the session
+	 */
+	VoteSession(SocketChannel channel, byte[] greeting, byte[] challenge,
+			String keyName, long deadline, long acceptedAt) {
+		this.channel = channel;
+		this.output = ByteBuffer.wrap(greeting);
+		this.challenge = challenge;
+		this.keyName = keyName;
+		this.deadline = deadline;
+		this.queuedDeadline = deadline;
+		this.acceptedAt = acceptedAt;
+	}
+
+	/**
+	 * Writes as much of the pending output as the socket accepts.
+	 *
+	 * @return True if all output has been sent
+	 * @throws IOException
+	 *             If the write fails
+	 */
+	boolean flush() throws IOException {
+		channel.write(output);
+		return !output.hasRemaining();
+	}
+
+	/**
+	 * Queues output for the client. Call {@link #flush()} to send it.
+	 *
+	 * @param data
+	 *            The data to send
+	 */
+	void send(byte[] data) {
+		if (!output.hasRemaining()) {
+			output = ByteBuffer.wrap(data);
+			return;
+		}
+		ByteBuffer combined = ByteBuffer.allocate(output.remaining()
+				+ data.length);
+		combined.put(output).put(data).flip();
+		output = combined;
+	}
+
+	/**
+	 * Reads as much as is available and fits in the input buffer.
+	 *
+	 * @return The number of bytes read, or -1 if the client closed the
+	 *         connection
+	 * @throws IOException
+	 *             If the read fails
+	 */
+	int read() throws IOException {
+		return channel.read(input);
+	}
+
+	/**
+	 * Gets the received bytes, which start at index 0.
+	 *
+	 * @return The input buffer
+	 */
+	byte[] getInput() {
+		return input.array();
+	}
+
+	/**
+	 * Gets the number of received bytes not processed yet.
+	 *
+	 * @return The number of bytes
+	 */
+	int available() {
+		return input.position();
+	}
+
+	/**
+	 * Makes room for at least the given number of received bytes.
+	 *
+	 * @param size
+	 *            The number of bytes
+	 */
+	void reserve(int size) {
+		if (input.capacity() >= size)
+			return;
+		ByteBuffer larger = ByteBuffer.allocate(size);
+		input.flip();
+		larger.put(input);
+		input = larger;
+	}
+
+	/**
+	 * Discards processed bytes from the start of the input.
+	 *
+	 * @param count
+	 *            The number of bytes
+	 */
+	void consume(int count) {
+		input.flip();
+		input.position(count);
+		input.compact();
+	}
+
+	/**
+	 * Gets the legacy vote block, the first {@link #BLOCK_SIZE} received
+	 * bytes.
+	 *
+	 * @return The vote block
+	 */
+	byte[] getBlock() {
+		byte[] data = input.array();
+		return data.length == BLOCK_SIZE ? data : Arrays.copyOf(data,
+				BLOCK_SIZE);
+	}
+
+	/**
+	 * Gets the challenge sent in the greeting.
+	 *
+	 * @return The challenge
+	 */
+	byte[] getChallenge() {
+		return challenge;
+	}
+
+	/**
+	 * Gets the name of the key a legacy block is decrypted with.
+	 *
+	 * @return The key name
+	 */
+	String getKeyName() {
+		return keyName;
+	}
+
+	/**
+	 * Sets the name of the key a legacy block is decrypted with.
+	 *
+	 * @param keyName
+	 *            The key name
+	 */
+	void setKeyName(String keyName) {
+		this.keyName = keyName;
+	}
+
+	/**
+	 * Gets the protocol.
+	 *
+	 * @return The protocol
+	 */
+	Protocol getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * Sets the protocol.
+	 *
+	 * @param protocol
+	 *            The protocol
+	 */
+	void setProtocol(Protocol protocol) {
+		this.protocol = protocol;
+	}
+
+	/**
+	 * Gets why the first packet was rejected.
+	 *
+	 * @return The reason, or null if it was not rejected
+	 */
+	String getRejection() {
+		return rejection;
+	}
+
+	/**
+	 * Sets why the first packet was rejected.
+	 *
+	 * @param rejection
+	 *            The reason
+	 */
+	void setRejection(String rejection) {
+		this.rejection = rejection;
+	}
+
+	/**
+	 * Gets the number of protocol v2 packets processed.
+	 *
+	 * @return The number of packets
+	 */
+	int getPackets() {
+		return packets;
+	}
+
+	/**
+	 * Records a processed protocol v2 packet and extends the deadline.
+	 *
+	 * @param deadline
+	 *            The new deadline
+	 */
+	void packetProcessed(long deadline) {
+		packets++;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Gets the channel.
+	 *
+	 * @return The channel
+	 */
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Gets the deadline.
+	 *
+	 * @return The deadline
+	 */
+	long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Gets the deadline the session was queued for expiry with.
+	 *
+	 * @return The queued deadline
+	 */
+	long getQueuedDeadline() {
+		return queuedDeadline;
+	}
+
+	/**
+	 * Notes that the session was queued again with its current deadline.
+	 */
+	void requeued() {
+		queuedDeadline = deadline;
+	}
+
+	/**
+	 * Gets the metrics start time of the session.
+	 *
+	 * @return The start time, 0 if metrics are disabled
+	 */
+	long getAcceptedAt() {
+		return acceptedAt;
+	}
+
+	/**
+	 * Sets the selection key.
+	 *
+	 * @param key
+	 *            The selection key
+	 */
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Marks the session to be closed once its output is written.
+	 */
+	void finish() {
+		finished = true;
+	}
+
+	/**
+	 * Checks whether the session is to be closed once its output is written.
+	 *
+	 * @return True if finished
+	 */
+	boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Checks whether the session has been closed.
+	 *
+	 * @return True if closed
+	 */
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Closes the session, quietly ignoring errors.
+	 */
+	void close() {
+		if (closed)
+			return;
+		closed = true;
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.tally;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Counts votes by name, for one time bucket and one kind of name. The counts
+ * are split into independently locked stripes by name. The names with the
+ * most votes are kept in a bounded min-heap that is updated as votes are
+ * counted. As counts only grow, a name can only enter it when one of its
+ * votes is counted. Votes that cannot reach the heap only take their stripe's
+ * lock.
+ */
+class TallyCounter {
+
+	/** The number of stripes, a power of two. */
+	private static final int STRIPES = 16;
+
+	/** Orders ranks by votes, fewest first. */
+	private static final Comparator<Rank> FEWEST_FIRST = new Comparator<Rank>() {
+		public int compare(Rank a, Rank b) {
+			return a.votes < b.votes ? -1 : a.votes == b.votes ? 0 : 1;
+		}
+	};
+
+	/** Whether names that differ only in case are counted together. */
+	private final boolean ignoreCase;
+
+	/** The number of names kept in the heap. */
+	private final int topSize;
+
+	/** The stripes, each mapping names to their counts. */
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	/** The names with the most votes, guarded by itself. */
+	private final PriorityQueue<Rank> top;
+
+	/**
+	 * The votes a name needs to enter the full heap, or 0 while it is not
+	 * full.
+	 */
+	private volatile long threshold;
+
+	/**
+	 * Instantiates a new tally counter.
+	 * 
+	 * @param ignoreCase
+	 *            Whether names that differ only in case are counted together
+	 * @param topSize
+	 *            The number of names kept in the heap
+	 */
+	TallyCounter(boolean ignoreCase, int topSize) {
+		this.ignoreCase = ignoreCase;
+		this.topSize = topSize;
+		this.top = new PriorityQueue<Rank>(topSize, FEWEST_FIRST);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Adds votes for a name.
+	 * 
+	 * @param name
+	 *            The name
+	 * @param votes
+	 *            The number of votes
+	 */
+	void add(String name, long votes) {
+		String key = ignoreCase ? name.toLowerCase(Locale.ENGLISH) : name;
+		Stripe stripe = stripe(key);
+		Count count;
+		long total;
+		synchronized (stripe) {
+			count = stripe.get(key);
+			if (count == null) {
+				count = new Count(name);
+				stripe.put(key, count);
+			}
+			count.votes += votes;
+			total = count.votes;
+		}
+		if (count.rank != null || total > threshold) {
+			synchronized (top) {
+				rank(count, total);
+			}
+		}
+	}
+
+	/**
+	 * Gets the votes of a name.
+	 * 
+	 * @param name
+	 *            The name
+	 * @return The number of votes
+	 */
+	long get(String name) {
+		String key = ignoreCase ? name.toLowerCase(Locale.ENGLISH) : name;
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			Count count = stripe.get(key);
+			return count == null ? 0 : count.votes;
+		}
+	}
+
+	/**
+	 * Gets the names with the most votes.
+	 * 
+	 * @param count
+	 *            The maximum number of names, at most the heap size
+	 * @return The names and their votes, most votes first
+	 */
+	List<VoteTally.Entry> top(int count) {
+		List<Rank> ranks;
+		synchronized (top) {
+			ranks = new ArrayList<Rank>(top);
+		}
+		Collections.sort(ranks, Collections.reverseOrder(FEWEST_FIRST));
+		List<VoteTally.Entry> entries = new ArrayList<VoteTally.Entry>(
+				Math.min(count, ranks.size()));
+		for (Rank rank : ranks) {
+			if (entries.size() == count)
+				break;
+			entries.add(new VoteTally.Entry(rank.count.name, rank.votes));
+		}
+		return entries;
+	}
+
+	/**
+	 * Writes all counts.
+	 * 
+	 * @param out
+	 *            The output
+	 * @throws IOException
+	 *             If the counts cannot be written
+	 */
+	void write(DataOutput out) throws IOException {
+		List<String> names = new ArrayList<String>();
+		List<Long> votes = new ArrayList<Long>();
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				for (Count count : stripe.values()) {
+					names.add(count.name);
+					votes.add(count.votes);
+				}
+			}
+		}
+		out.writeInt(names.size());
+		for (int i = 0; i < names.size(); i++) {
+			out.writeUTF(names.get(i));
+			out.writeLong(votes.get(i));
+		}
+	}
+
+	/**
+	 * Adds counts written by {@link #write(DataOutput)}.
+	 * 
+	 * @param in
+	 *            The input
+	 * @throws IOException
+	 *             If the counts cannot be read
+	 */
+	void read(DataInput in) throws IOException {
+		for (int i = in.readInt(); i > 0; i--) {
+			add(in.readUTF(), in.readLong());
+		}
+	}
+
+	/**
+	 * Updates the rank of a count in the heap, if it made it in.
+	 * 
+	 * @param count
+	 *            The count
+	 * @param votes
+	 *            The votes it reached
+	 */
+	private void rank(Count count, long votes) {
+		if (count.rank != null) {
+			// Another vote for the name may have been ranked already.
+			if (votes <= count.rank.votes)
+				return;
+			top.remove(count.rank);
+		} else if (top.size() >= topSize) {
+			if (votes <= top.peek().votes)
+				return;
+			top.poll().count.rank = null;
+		}
+		count.rank = new Rank(count, votes);
+		top.add(count.rank);
+		threshold = top.size() >= topSize ? top.peek().votes : 0;
+	}
+
+	/**
+	 * Gets the stripe of a name.
+	 * 
+	 * @param key
+	 *            The name, in lower case if case is ignored
+	 * @return The stripe
+	 */
+	private Stripe stripe(String key) {
+		int hash = key.hashCode();
+		return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+	}
+
+	/**
+	 * The votes of a name.
+	 */
+	private static class Count {
+
+		/** The name, spelled as in its first vote. */
+		final String name;
+
+		/** The votes, guarded by the stripe. */
+		long votes;
+
+		/** The rank in the heap, or null. Guarded by the heap. */
+		volatile Rank rank;
+
+		Count(String name) {
+			this.name = name;
+		}
+
+	}
+
+	/**
+	 * A name in the heap, with the votes it had when it was ranked.
+	 */
+	private static class Rank {
+
+		/** The count. */
+		final Count count;
+
+		/** The votes when ranked. */
+		final long votes;
+
+		Rank(Count count, long votes) {
+			this.count = count;
+			this.votes = votes;
+		}
+
+	}
+
+	/**
+	 * A map of names to counts.
+	 */
+	@SuppressWarnings("serial")
+	private static class Stripe extends HashMap<String, Count> {
+	}
+
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.tally;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vexsoftware.votifier.model.Vote;
+import com.vexsoftware.votifier.util.NamedThreadFactory;
+
+/**
+ * Counts the votes of every player and every server list for the current and
+ * the previous hour, day and month, in the server's time zone, to serve vote
+ * leaderboards without a database. Players are counted regardless of the
+ * case of their name. A background thread saves the tallies to a file at a
+ * fixed interval, and they are read back on the next start.
+ * <p>
+ * The tallies are available through
+ * {@link com.vexsoftware.votifier.Votifier#getTallies()}, for example:
+ * 
+ * <pre>
+ * for (VoteTally.Entry entry : Votifier.getInstance().getTallies()
+ * 		.getTopVoters(VoteTally.Period.MONTH, 10)) {
+ * 	...
+ * }
+ * </pre>
+ */
+public class VoteTally {
+
+	/** The logger instance. */
+	private static final Logger LOG = Logger.getLogger("Votifier");
+
+	/** The version of the file format. */
+	private static final int VERSION = 1;
+
+	/**
+	 * A time bucket length.
+	 */
+	public enum Period {
+		HOUR, DAY, MONTH;
+
+		/**
+		 * Gets the start of the bucket a time falls into.
+		 * 
+		 * @param time
+		 *            The time
+		 * @return The start of the bucket
+		 */
+		long start(long time) {
+			Calendar calendar = Calendar.getInstance();
+			calendar.setTimeInMillis(time);
+			calendar.set(Calendar.MILLISECOND, 0);
+			calendar.set(Calendar.SECOND, 0);
+			calendar.set(Calendar.MINUTE, 0);
+			if (this != HOUR)
+				calendar.set(Calendar.HOUR_OF_DAY, 0);
+			if (this == MONTH)
+				calendar.set(Calendar.DAY_OF_MONTH, 1);
+			return calendar.getTimeInMillis();
+		}
+
+		/**
+		 * Gets the start of the bucket after the one starting at a time.
+		 * 
+		 * @param start
+		 *            The start of a bucket
+		 * @return The start of the next bucket
+		 */
+		long next(long start) {
+			Calendar calendar = Calendar.getInstance();
+			calendar.setTimeInMillis(start);
+			calendar.add(this == HOUR ? Calendar.HOUR_OF_DAY
+					: this == DAY ? Calendar.DAY_OF_MONTH : Calendar.MONTH, 1);
+			return calendar.getTimeInMillis();
+		}
+	}
+
+	/**
+	 * A name and its votes.
+	 */
+	public static class Entry {
+
+		/** The player or service name. */
+		private final String name;
+
+		/** The votes. */
+		private final long votes;
+
+		Entry(String name, long votes) {
+			this.name = name;
+			this.votes = votes;
+		}
+
+		/**
+		 * Gets the player or service name.
+		 * 
+		 * @return The name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Gets the votes.
+		 * 
+		 * @return The number of votes
+		 */
+		public long getVotes() {
+			return votes;
+		}
+
+		@Override
+		public String toString() {
+			return name + ": " + votes;
+		}
+
+	}
+
+	/** The file the tallies are saved to. */
+	private final File file;
+
+	/** The number of names kept for each leaderboard. */
+	private final int topSize;
+
+	/** The buckets of each period. */
+	private final Slot[] slots = new Slot[Period.values().length];
+
+	/** The background saver, while running. */
+	private ScheduledExecutorService saver;
+
+	/**
+	 * Instantiates new tallies, reading the saved ones if there are any.
+	 * 
+	 * @param file
+	 *            The file the tallies are saved to
+	 * @param topSize
+	 *            The number of names kept for each leaderboard
+	 * @throws IOException
+	 *             If the saved tallies cannot be read
+	 */
+	public VoteTally(File file, int topSize) throws IOException {
+		this.file = file;
+		this.topSize = topSize;
+		long now = System.currentTimeMillis();
+		for (Period period : Period.values()) {
+			long start = period.start(now);
+			slots[period.ordinal()] = new Slot(newBucket(
+					period.start(start - 1), start), newBucket(start,
+					period.next(start)));
+		}
+		if (file.exists())
+			load();
+	}
+
+	/**
+	 * Counts a vote.
+	 * 
+	 * @param vote
+	 *            The vote
+	 */
+	public void record(Vote vote) {
+		long now = System.currentTimeMillis();
+		String username = vote.getUsername();
+		String serviceName = vote.getServiceName();
+		for (Period period : Period.values()) {
+			Bucket bucket = current(period, now);
+			if (username != null && !username.isEmpty())
+				bucket.users.add(username, 1);
+			if (serviceName != null && !serviceName.isEmpty())
+				bucket.services.add(serviceName, 1);
+		}
+	}
+
+	/**
+	 * Gets the votes of a player in the current period.
+	 * 
+	 * @param period
+	 *            The period
+	 * @param username
+	 *            The player's name, in any case
+	 * @return The number of votes
+	 */
+	public long getVotes(Period period, String username) {
+		return current(period, System.currentTimeMillis()).users.get(username);
+	}
+
+	/**
+	 * Gets the votes from a server list in the current period.
+	 * 
+	 * @param period
+	 *            The period
+	 * @param serviceName
+	 *            The service name of the server list
+	 * @return The number of votes
+	 */
+	public long getServiceVotes(Period period, String serviceName) {
+		return current(period, System.currentTimeMillis()).services
+				.get(serviceName);
+	}
+
+	/**
+	 * Gets the players with the most votes in the current period.
+	 * 
+	 * @param period
+	 *            The period
+	 * @param count
+	 *            The maximum number of players, at most
+	 *            {@link #getTopSize()}
+	 * @return The players and their votes, most votes first
+	 */
+	public List<Entry> getTopVoters(Period period, int count) {
+		return current(period, System.currentTimeMillis()).users.top(count);
+	}
+
+	/**
+	 * Gets the players with the most votes in the previous period, such as
+	 * last month's winners.
+	 * 
+	 * @param period
+	 *            The period
+	 * @param count
+	 *            The maximum number of players, at most
+	 *            {@link #getTopSize()}
+	 * @return The players and their votes, most votes first
+	 */
+	public List<Entry> getPreviousTopVoters(Period period, int count) {
+		current(period, System.currentTimeMillis());
+		return slots[period.ordinal()].previous.users.top(count);
+	}
+
+	/**
+	 * Gets the server lists with the most votes in the current period.
+	 * 
+	 * @param period
+	 *            The period
+	 * @param count
+	 *            The maximum number of server lists, at most
+	 *            {@link #getTopSize()}
+	 * @return The service names and their votes, most votes first
+	 */
+	public List<Entry> getTopServices(Period period, int count) {
+		return current(period, System.currentTimeMillis()).services
+				.top(count);
+	}
+
+	/**
+	 * Gets the number of names kept for each leaderboard.
+	 * 
+	 * @return The leaderboard size
+	 */
+	public int getTopSize() {
+		return topSize;
+	}
+
+	/**
+	 * Starts saving the tallies at a fixed interval.
+	 * 
+	 * @param interval
+	 *            How long (in seconds) between saves
+	 */
+	public void start(long interval) {
+		saver = Executors
+				.newSingleThreadScheduledExecutor(new NamedThreadFactory(
+						"Votifier tallies"));
+		saver.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					save();
+				} catch (IOException ex) {
+					LOG.log(Level.WARNING, "Unable to save the vote tallies",
+							ex);
+				}
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops the background saver and saves the tallies one last time.
+	 */
+	public void shutdown() {
+		if (saver != null) {
+			saver.shutdown();
+			try {
+				saver.awaitTermination(5, TimeUnit.SECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			saver = null;
+		}
+		try {
+			save();
+		} catch (IOException ex) {
+			LOG.log(Level.WARNING, "Unable to save the vote tallies", ex);
+		}
+	}
+
+	/**
+	 * Saves the tallies, replacing the file.
+	 * 
+	 * @throws IOException
+	 *             If the file cannot be written
+	 */
+	public synchronized void save() throws IOException {
+		long now = System.currentTimeMillis();
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(temp);
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(stream));
+			out.writeInt(VERSION);
+			for (Period period : Period.values()) {
+				current(period, now);
+				Slot slot = slots[period.ordinal()];
+				write(out, slot.previous);
+				write(out, slot.current);
+			}
+			out.flush();
+			stream.getFD().sync();
+		} finally {
+			stream.close();
+		}
+		if (!temp.renameTo(file)) {
+			// Windows does not rename over existing files.
+			file.delete();
+			if (!temp.renameTo(file))
+				throw new IOException("Cannot replace " + file);
+		}
+	}
+
+	/**
+	 * Reads the saved tallies into the empty buckets of the same periods.
+	 * Buckets that are over by now are moved along on their next use.
+	 * 
+	 * @throws IOException
+	 *             If the file cannot be read
+	 */
+	private void load() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if (in.readInt() != VERSION)
+				throw new IOException("Unknown tally file version");
+			for (Period period : Period.values()) {
+				Bucket previous = read(in);
+				Bucket current = read(in);
+				slots[period.ordinal()] = new Slot(previous, current);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Gets the current bucket of a period, moving on to a new one if the
+	 * current one is over.
+	 * 
+	 * @param period
+	 *            The period
+	 * @param now
+	 *            The current time
+	 * @return The current bucket
+	 */
+	private Bucket current(Period period, long now) {
+		Slot slot = slots[period.ordinal()];
+		Bucket current = slot.current;
+		if (now < current.end)
+			return current;
+		synchronized (slot) {
+			current = slot.current;
+			if (now < current.end)
+				return current;
+			long start = period.start(now);
+			// The old bucket is only the previous one if it directly precedes.
+			slot.previous = current.end == start ? current : newBucket(
+					period.start(start - 1), start);
+			slot.current = newBucket(start, period.next(start));
+			return slot.current;
+		}
+	}
+
+	/**
+	 * Creates an empty bucket.
+	 * 
+	 * @param start
+	 *            The start of the bucket
+	 * @param end
+	 *            The end of the bucket
+	 * @return The bucket
+	 */
+	private Bucket newBucket(long start, long end) {
+		return new Bucket(start, end, new TallyCounter(true, topSize),
+				new TallyCounter(false, topSize));
+	}
+
+	private static void write(DataOutputStream out, Bucket bucket)
+			throws IOException {
+		out.writeLong(bucket.start);
+		out.writeLong(bucket.end);
+		bucket.users.write(out);
+		bucket.services.write(out);
+	}
+
+	private Bucket read(DataInputStream in) throws IOException {
+		Bucket bucket = newBucket(in.readLong(), in.readLong());
+		bucket.users.read(in);
+		bucket.services.read(in);
+		return bucket;
+	}
+
+	/**
+	 * The counts of one period, from its start until just before its end.
+	 */
+	private static class Bucket {
+
+		final long start;
+
+		final long end;
+
+		/** The votes of each player. */
+		final TallyCounter users;
+
+		/** The votes from each server list. */
+		final TallyCounter services;
+
+		Bucket(long start, long end, TallyCounter users,
+				TallyCounter services) {
+			this.start = start;
+			this.end = end;
+			this.users = users;
+			this.services = services;
+		}
+
+	}
+
+	/**
+	 * The current and the previous bucket of a period.
+	 */
+	private static class Slot {
+
+		volatile Bucket previous;
+
+		volatile Bucket current;
+
+		Slot(Bucket previous, Bucket current) {
+			this.previous = previous;
+			this.current = current;
+		}
+
+	}
+
+}
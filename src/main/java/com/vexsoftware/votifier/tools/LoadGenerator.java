@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.vexsoftware.votifier.crypto.RSA;
+import com.vexsoftware.votifier.crypto.RSAIO;
+import com.vexsoftware.votifier.metrics.LatencyHistogram;
+import com.vexsoftware.votifier.net.VoteReceiver;
+
+/**
+ * A command line client that sends votes to a Votifier server at a fixed
+ * rate, the way a vote site would during a burst. Each vote is a valid block
+ * encrypted with the server's public key, or a protocol v2 packet signed with
+ * a token if one is given, sent on its own connection. A number
+ * of workers share a schedule of send times; latency is measured from the time
+ * a vote was scheduled rather than from when a worker got to it, so a server
+ * that falls behind shows up as growing latency instead of a lower send rate.
+ * <p>
+ * Run it from the plugin jar:
+ * 
+ * <pre>
+ * java -cp Votifier.jar com.vexsoftware.votifier.tools.LoadGenerator --keys plugins/Votifier/rsa --rate 200
+ * </pre>
+ */
+public class LoadGenerator {
+
+	/** The connect and read timeout, in milliseconds. */
+	private static final int TIMEOUT = 5000;
+
+	/** The size of a vote block. */
+	private static final int BLOCK_SIZE = 256;
+
+	/** The server address. */
+	private final InetSocketAddress address;
+
+	/** The server's public key. */
+	private final PublicKey key;
+
+	/** The protocol v2 token, or null to send legacy blocks. */
+	private final String token;
+
+	/** The MAC of each worker, for protocol v2. */
+	private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+
+	/** The service name sent with every vote. */
+	private final String service;
+
+	/** The number of concurrent connections. */
+	private final int connections;
+
+	/** The time between scheduled votes, in nanoseconds, or 0 for no limit. */
+	private final long interval;
+
+	/** The test duration, in nanoseconds. */
+	private final long duration;
+
+	/** The latencies of successful votes. */
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	/** The number of the next vote. */
+	private final AtomicLong sequence = new AtomicLong();
+
+	/** The errors, by kind. */
+	private final Map<String, AtomicLong> errors = new LinkedHashMap<String, AtomicLong>();
+
+	/** The start of the test, in nanoseconds. */
+	private long start;
+
+	/**
+	 * Instantiates a new load generator.
+	 * 
+	 * @param address
+	 *            The server address
+	 * @param key
+	 *            The server's public key, only used without a token
+	 * @param token
+	 *            The protocol v2 token, or null to send legacy blocks
+	 * @param service
+	 *            The service name sent with every vote
+	 * @param connections
+	 *            The number of concurrent connections
+	 * @param rate
+	 *            The target number of votes per second, or 0 for no limit
+	 * @param duration
+	 *            The test duration, in seconds
+	 */
+	public LoadGenerator(InetSocketAddress address, PublicKey key,
+			String token, String service, int connections, double rate,
+			long duration) {
+		this.address = address;
+		this.key = key;
+		this.token = token;
+		this.service = service;
+		this.connections = connections;
+		this.interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate)
+				: 0;
+		this.duration = TimeUnit.SECONDS.toNanos(duration);
+		for (String kind : new String[] { "connect", "timeout", "greeting",
+				"io", "encrypt", "rejected" }) {
+			errors.put(kind, new AtomicLong());
+		}
+	}
+
+	/**
+	 * Runs the test and prints a report.
+	 * 
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the workers
+	 */
+	public void run() throws InterruptedException {
+		System.out.println("Sending votes to " + address + " for "
+				+ TimeUnit.NANOSECONDS.toSeconds(duration) + "s over "
+				+ connections + " connections using "
+				+ (token != null ? "protocol v2" : "RSA")
+				+ (interval > 0 ? " at " + TimeUnit.SECONDS.toNanos(1) / interval
+						+ " votes/s" : " as fast as possible"));
+		final CountDownLatch done = new CountDownLatch(connections);
+		start = System.nanoTime();
+		for (int i = 0; i < connections; i++) {
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					try {
+						work();
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "LoadGenerator #" + (i + 1));
+			worker.setDaemon(true);
+			worker.start();
+		}
+		done.await();
+		report(System.nanoTime() - start);
+	}
+
+	/**
+	 * The worker loop. Takes the next scheduled vote, waits for its time and
+	 * sends it, until the test is over.
+	 */
+	private void work() {
+		while (true) {
+			long n = sequence.getAndIncrement();
+			long scheduled = start + n * interval;
+			long now = System.nanoTime();
+			if (now - start >= duration || scheduled - start >= duration)
+				return;
+			if (scheduled > now) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(scheduled - now);
+				} catch (InterruptedException ex) {
+					return;
+				}
+			} else if (interval == 0) {
+				scheduled = now;
+			}
+			String kind = send(n);
+			if (kind == null) {
+				latency.record(System.nanoTime() - scheduled);
+			} else {
+				errors.get(kind).incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Sends one vote on a new connection.
+	 * 
+	 * @param n
+	 *            The number of the vote
+	 * @return The kind of error, or null if the vote was sent
+	 */
+	private String send(long n) {
+		String vote = "VOTE\n" + service + "\nload" + n + "\n127.0.0.1\n"
+				+ System.currentTimeMillis() / 1000 + "\n";
+		byte[] block = null;
+		if (token == null) {
+			try {
+				block = RSA.encrypt(vote.getBytes("UTF-8"), key);
+			} catch (Exception ex) {
+				return "encrypt";
+			}
+		}
+		Socket socket = new Socket();
+		try {
+			try {
+				socket.connect(address, TIMEOUT);
+			} catch (IOException ex) {
+				return "connect";
+			}
+			socket.setSoTimeout(TIMEOUT);
+			socket.setTcpNoDelay(true);
+			InputStream in = socket.getInputStream();
+			String greeting = readLine(in);
+			if (!greeting.startsWith("VOTIFIER"))
+				return "greeting";
+			OutputStream out = socket.getOutputStream();
+			if (token == null) {
+				out.write(block, 0, Math.min(block.length, BLOCK_SIZE));
+				out.flush();
+				return null;
+			}
+			String challenge = greeting.substring(greeting.lastIndexOf(' ') + 1);
+			out.write(packet((vote + challenge + "\n").getBytes("UTF-8")));
+			out.flush();
+			return readLine(in).equals("OK") ? null : "rejected";
+		} catch (SocketTimeoutException ex) {
+			return "timeout";
+		} catch (IOException ex) {
+			return "io";
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Builds a signed protocol v2 packet.
+	 * 
+	 * @param payload
+	 *            The payload
+	 * @return The packet
+	 * @throws IOException
+	 *             If the token cannot be used
+	 */
+	private byte[] packet(byte[] payload) throws IOException {
+		Mac mac = macs.get();
+		if (mac == null) {
+			try {
+				mac = Mac.getInstance("HmacSHA256");
+				mac.init(new SecretKeySpec(token.getBytes("UTF-8"),
+						"HmacSHA256"));
+			} catch (Exception ex) {
+				throw new IOException(ex);
+			}
+			macs.set(mac);
+		}
+		ByteArrayOutputStream packet = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(packet);
+		out.writeShort(VoteReceiver.MAGIC);
+		out.writeShort(payload.length + mac.getMacLength());
+		out.write(payload);
+		out.write(mac.doFinal(payload));
+		return packet.toByteArray();
+	}
+
+	/**
+	 * Reads a line from the server.
+	 * 
+	 * @param in
+	 *            The input stream
+	 * @return The line
+	 * @throws IOException
+	 *             If the read fails
+	 */
+	private String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0)
+				throw new EOFException();
+			if (line.length() < 128)
+				line.append((char) b);
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Prints the results.
+	 * 
+	 * @param elapsed
+	 *            The test duration, in nanoseconds
+	 */
+	private void report(long elapsed) {
+		double seconds = elapsed / 1e9;
+		long sent = latency.getCount();
+		long failed = 0;
+		for (AtomicLong count : errors.values()) {
+			failed += count.get();
+		}
+		System.out.println(String.format("Sent %d votes in %.1fs (%.1f votes/s)",
+				sent, seconds, sent / seconds));
+		System.out.println("Latency: p50 " + latency.getPercentileMicros(0.5)
+				+ "us, p90 " + latency.getPercentileMicros(0.9) + "us, p99 "
+				+ latency.getPercentileMicros(0.99) + "us, p99.9 "
+				+ latency.getPercentileMicros(0.999) + "us, max "
+				+ latency.getMaxMicros() + "us");
+		StringBuilder details = new StringBuilder();
+		for (Map.Entry<String, AtomicLong> entry : errors.entrySet()) {
+			if (entry.getValue().get() > 0) {
+				details.append(details.length() == 0 ? " (" : ", ")
+						.append(entry.getKey()).append(' ')
+						.append(entry.getValue().get());
+			}
+		}
+		System.out.println("Errors: " + failed
+				+ (details.length() > 0 ? details.append(')') : ""));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		options.put("host", "127.0.0.1");
+		options.put("port", "8192");
+		options.put("keys", "plugins/Votifier/rsa");
+		options.put("token", "");
+		options.put("service", "LoadGenerator");
+		options.put("connections", "16");
+		options.put("rate", "100");
+		options.put("duration", "30");
+		for (int i = 0; i < args.length; i++) {
+			String name = args[i].startsWith("--") ? args[i].substring(2)
+					: null;
+			if (name == null || !options.containsKey(name)
+					|| i + 1 >= args.length) {
+				usage();
+				return;
+			}
+			options.put(name, args[++i]);
+		}
+
+		String token = options.get("token").length() > 0 ? options
+				.get("token") : null;
+		PublicKey key = null;
+		if (token == null) {
+			try {
+				key = RSAIO.loadPublicKey(new File(options.get("keys")));
+			} catch (Exception ex) {
+				System.err.println("Unable to read " + options.get("keys")
+						+ "/public.key: " + ex);
+				System.exit(1);
+				return;
+			}
+		}
+		try {
+			new LoadGenerator(new InetSocketAddress(options.get("host"),
+					Integer.parseInt(options.get("port"))), key, token,
+					options.get("service"), Math.max(1,
+							Integer.parseInt(options.get("connections"))),
+					Math.max(0, Double.parseDouble(options.get("rate"))),
+					Math.max(1, Long.parseLong(options.get("duration")))).run();
+		} catch (NumberFormatException ex) {
+			usage();
+		}
+	}
+
+	/**
+	 * Prints the command line options and their defaults, then exits.
+	 */
+	private static void usage() {
+		System.err.println("Usage: java -cp Votifier.jar "
+				+ LoadGenerator.class.getName() + " [options]");
+		System.err.println("  --host <host>          Server address (default 127.0.0.1)");
+		System.err.println("  --port <port>          Server port (default 8192)");
+		System.err.println("  --keys <directory>     Directory with public.key (default plugins/Votifier/rsa)");
+		System.err.println("  --token <token>        Send protocol v2 packets signed with this token");
+		System.err.println("  --service <name>       Service name of the votes (default LoadGenerator)");
+		System.err.println("  --connections <n>      Concurrent connections (default 16)");
+		System.err.println("  --rate <votes/s>       Target rate, 0 for no limit (default 100)");
+		System.err.println("  --duration <seconds>   Test duration (default 30)");
+		System.exit(1);
+	}
+
+}
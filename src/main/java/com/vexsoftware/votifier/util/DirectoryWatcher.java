@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches a directory, and optionally its subdirectories, and runs a task on
+ * its own thread whenever something in it changed. The task runs once the
+ * directory has stayed unchanged for a moment, so that a file being copied in
+ * is complete and a burst of changes causes a single run.
+ */
+public class DirectoryWatcher {
+
+	/** The logger instance. */
+	private static final Logger LOG = Logger.getLogger("Votifier");
+
+	/**
+	 * How long (in milliseconds) the directory must stay unchanged before the
+	 * task runs.
+	 */
+	private static final long QUIET_PERIOD = 2000;
+
+	/** The directory. */
+	private final File directory;
+
+	/** Whether subdirectories are watched as well. */
+	private final boolean subdirectories;
+
+	/** The task to run after changes. */
+	private final Runnable task;
+
+	/** The watch service, once started. */
+	private WatchService watchService;
+
+	/**
+	 * Instantiates a new directory watcher.
+	 * 
+	 * @param directory
+	 *            The directory
+	 * @param subdirectories
+	 *            Whether to watch the directory's subdirectories as well
+	 * @param task
+	 *            The task to run after changes
+	 */
+	public DirectoryWatcher(File directory, boolean subdirectories,
+			Runnable task) {
+		this.directory = directory;
+		this.subdirectories = subdirectories;
+		this.task = task;
+	}
+
+	/**
+	 * Starts watching.
+	 * 
+	 * @param name
+	 *            The name of the watching thread
+	 * @throws IOException
+	 *             If the directory cannot be watched
+	 */
+	public void start(String name) throws IOException {
+		watchService = FileSystems.getDefault().newWatchService();
+		register();
+		new NamedThreadFactory(name).newThread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						WatchKey key = watchService.take();
+						do {
+							key.pollEvents();
+							key.reset();
+							key = watchService.poll(QUIET_PERIOD,
+									TimeUnit.MILLISECONDS);
+						} while (key != null);
+						// New subdirectories are watched as well.
+						register();
+						task.run();
+					}
+				} catch (InterruptedException ex) {
+					// Stopped.
+				} catch (ClosedWatchServiceException ex) {
+					// Stopped.
+				}
+			}
+		}).start();
+	}
+
+	/**
+	 * Stops watching.
+	 */
+	public void close() {
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Registers the directory, and its subdirectories if watched, with the
+	 * watch service. Directories that are already registered are left as
+	 * they are.
+	 */
+	private void register() {
+		try {
+			watch(directory);
+			File[] children = subdirectories ? directory.listFiles() : null;
+			if (children != null) {
+				for (File child : children) {
+					if (child.isDirectory())
+						watch(child);
+				}
+			}
+		} catch (ClosedWatchServiceException ex) {
+			// Stopped.
+		}
+	}
+
+	/**
+	 * Registers a directory with the watch service.
+	 * 
+	 * @param dir
+	 *            The directory
+	 */
+	private void watch(File dir) {
+		try {
+			dir.toPath().register(watchService,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE);
+		} catch (IOException ex) {
+			LOG.log(Level.WARNING, "Unable to watch " + dir + " for changes",
+					ex);
+		}
+	}
+
+}
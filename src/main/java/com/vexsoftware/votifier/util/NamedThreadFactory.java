@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vexsoftware.votifier.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates numbered daemon threads so that Votifier's workers are easy to spot
+ * in thread dumps and never keep the server from stopping.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+	/** The thread name prefix. */
+	private final String prefix;
+
+	/** The number of the next thread. */
+	private final AtomicInteger next = new AtomicInteger(1);
+
+	/**
+	 * Instantiates a new thread factory.
+	 * 
+	 * @param prefix
+	 *            The thread name prefix, e.g. "Votifier decrypt"
+	 */
+	public NamedThreadFactory(String prefix) {
+		this.prefix = prefix;
+	}
+
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, prefix + " #"
+				+ next.getAndIncrement());
+		thread.setDaemon(true);
+		return thread;
+	}
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * This file is part of Votifier.
+ *
+ * Votifier is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Votifier is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Votifier.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads on Java 21 and newer. Votifier is built for older
+ * servers too, so the builder API is looked up at runtime.
+ */
+public class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * Creates a factory for numbered virtual threads.
+	 * 
+	 * @param prefix
+	 *            The thread name prefix, e.g. "Votifier connection"
+	 * @return The thread factory, or null if this Java version has no virtual
+	 *         threads
+	 */
+	public static ThreadFactory create(String prefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method name = Class.forName("java.lang.Thread$Builder$OfVirtual")
+					.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, prefix + " #", 1L);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory").invoke(builder);
+		} catch (Exception ex) {
+			// Missing, or a preview feature that is not enabled.
+			return null;
+		}
+	}
+
+}